@@ -0,0 +1,114 @@
+package weka.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import weka.classifiers.meta.FilterTree;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building a FilterTree and predicting with it, single rows and whole batches, over a range of data sizes
+ * and filters. The data is made by {@link SyntheticData}, so runs of different versions are comparable.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FilterTreeBenchmark {
+
+    /** The number of training rows */
+    @Param({"2000", "20000"})
+    public int rows;
+
+    /** The number of attributes */
+    @Param({"8", "32"})
+    public int attributes;
+
+    /** The number of classes */
+    @Param({"3"})
+    public int classes;
+
+    /** The filter used at every node, as a Weka option string */
+    @Param({"weka.filters.AllFilter",
+            "weka.filters.unsupervised.attribute.RandomProjection -N 4",
+            "weka.filters.unsupervised.attribute.PrincipalComponents",
+            "weka.filters.unsupervised.attribute.Standardize"})
+    public String filter;
+
+    /** Further FilterTree options, such as "-num-bins 64" or "-compile" */
+    @Param({""})
+    public String options;
+
+    protected Instances m_Train;
+
+    protected Instances m_Test;
+
+    protected FilterTree m_Tree;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        m_Train = SyntheticData.generate(rows, attributes, classes, 1);
+        m_Test = SyntheticData.generate(1000, attributes, classes, 2);
+        m_Tree = newTree();
+        m_Tree.buildClassifier(m_Train);
+    }
+
+    /**
+     * @return an unbuilt tree with the benchmark's filter and options
+     */
+    protected FilterTree newTree() throws Exception {
+
+        FilterTree tree = new FilterTree();
+        tree.setOptions(Utils.splitOptions(options));
+        String[] filterOptions = Utils.splitOptions(filter);
+        String filterName = filterOptions[0];
+        filterOptions[0] = "";
+        tree.setFilter((Filter) Utils.forName(Filter.class, filterName, filterOptions));
+        return tree;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public FilterTree buildClassifier() throws Exception {
+
+        FilterTree tree = newTree();
+        //buildClassifier() removes rows with a missing class, so it gets a copy
+        tree.buildClassifier(new Instances(m_Train));
+        return tree;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void distributionForInstance(Blackhole blackhole) throws Exception {
+
+        for (int i = 0; i < m_Test.numInstances(); i++) {
+            blackhole.consume(m_Tree.distributionForInstance(m_Test.instance(i)));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public double[][] distributionsForInstances() throws Exception {
+        return m_Tree.distributionForInstance(m_Test);
+    }
+}
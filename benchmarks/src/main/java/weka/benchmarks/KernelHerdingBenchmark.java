@@ -0,0 +1,71 @@
+package weka.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.classifiers.functions.supportVector.Kernel;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.instance.KernelHerding;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks subsampling with KernelHerding, whose cost grows with the square of the number of rows, over a range
+ * of data sizes and kernels. The data is made by {@link SyntheticData}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class KernelHerdingBenchmark {
+
+    /** The number of rows */
+    @Param({"500", "2000"})
+    public int rows;
+
+    /** The number of attributes */
+    @Param({"8", "32"})
+    public int attributes;
+
+    /** The kernel, as a Weka option string */
+    @Param({"weka.classifiers.functions.supportVector.PolyKernel",
+            "weka.classifiers.functions.supportVector.RBFKernel"})
+    public String kernel;
+
+    /** The size of the subsample, in percent of the rows */
+    @Param({"10"})
+    public double sampleSizePercent;
+
+    protected Instances m_Data;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_Data = SyntheticData.generate(rows, attributes, 3, 1);
+    }
+
+    @Benchmark
+    public Instances process() throws Exception {
+
+        KernelHerding herding = new KernelHerding();
+        String[] kernelOptions = Utils.splitOptions(kernel);
+        String kernelName = kernelOptions[0];
+        kernelOptions[0] = "";
+        herding.setKernel((Kernel) Utils.forName(Kernel.class, kernelName, kernelOptions));
+        herding.setSampleSizePercent(sampleSizePercent);
+        herding.setInputFormat(m_Data);
+        return Filter.useFilter(m_Data, herding);
+    }
+}
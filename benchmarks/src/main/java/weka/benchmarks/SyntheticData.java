@@ -0,0 +1,53 @@
+package weka.benchmarks;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Reproducible synthetic classification data for the benchmarks. Every third attribute takes small integer values,
+ * the others are Gaussian; the class is a noisy function of a weighted sum of the attributes, so trees have a
+ * realistic mix of informative splits and noise. The same arguments always give the same data.
+ */
+public class SyntheticData {
+
+    /**
+     * Generates a data set.
+     *
+     * @param numRows       the number of rows
+     * @param numAttributes the number of numeric attributes
+     * @param numClasses    the number of class values
+     * @param seed          the seed of the generator
+     * @return the data, with the class as the last attribute
+     */
+    public static Instances generate(int numRows, int numAttributes, int numClasses, long seed) {
+
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int j = 0; j < numAttributes; j++) {
+            attributes.add(new Attribute("a" + j));
+        }
+        ArrayList<String> classValues = new ArrayList<String>();
+        for (int c = 0; c < numClasses; c++) {
+            classValues.add("c" + c);
+        }
+        attributes.add(new Attribute("class", classValues));
+        Instances data = new Instances("synthetic-" + numRows + "x" + numAttributes + "x" + numClasses, attributes, numRows);
+        data.setClassIndex(numAttributes);
+
+        Random random = new Random(seed);
+        for (int i = 0; i < numRows; i++) {
+            double[] values = new double[numAttributes + 1];
+            double sum = 0;
+            for (int j = 0; j < numAttributes; j++) {
+                values[j] = j % 3 == 0 ? random.nextInt(5) : random.nextGaussian();
+                sum += values[j] * (j % 2 == 0 ? 1 : -0.5);
+            }
+            values[numAttributes] = (int) Math.floor(Math.abs(sum + random.nextGaussian() * 0.5)) % numClasses;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+}
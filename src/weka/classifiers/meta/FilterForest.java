@@ -0,0 +1,478 @@
+package weka.classifiers.meta;
+
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.RandomizableClassifier;
+import weka.core.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A bagged ensemble of FilterTrees. The trees are built in parallel from one read-only copy of the training data,
+ * each from a bootstrap sample given as an array of row indices, so no tree copies the data. Every tree gets its
+ * own seed, which a randomizable filter inherits at every node.
+ */
+public class FilterForest extends RandomizableClassifier implements AdditionalMeasureProducer {
+
+    //Option
+    // The tree to build the ensemble from, including its filter
+    protected FilterTree m_TreeTemplate = new FilterTree();
+
+    // The number of trees
+    protected int m_NumTrees = 10;
+
+    // The size of every bootstrap sample as a percentage of the training data
+    protected double m_BagSizePercent = 100;
+
+    // The number of threads to use for building and batch prediction (0 = number of available processors)
+    protected int m_NumThreads = 0;
+
+    // Whether to compute the out-of-bag error while building
+    protected boolean m_CalcOutOfBag = false;
+
+    //The data that should be stored
+
+    // The trees of the ensemble
+    protected FilterTree[] m_Trees;
+
+    // The out-of-bag error of the last build, NaN if it was not computed or no row was ever out of bag
+    protected double m_OutOfBagError = Double.NaN;
+
+    // The least number of rows worth handing to another thread when predicting
+    protected static final int MIN_PARALLEL_ROWS = 256;
+
+
+    @OptionMetadata(
+            displayName = "tree",
+            description = "The FilterTree to build the ensemble from, including its options (default = FilterTree).",
+            commandLineParamName = "tree", commandLineParamSynopsis = "-tree <classifier specification>",
+            displayOrder = 1)
+    public FilterTree getTree() {
+        return m_TreeTemplate;
+    }
+
+    public void setTree(FilterTree tree) {
+        this.m_TreeTemplate = tree;
+    }
+
+    @OptionMetadata(
+            displayName = "number of trees",
+            description = "The number of trees in the ensemble (default = 10).",
+            commandLineParamName = "num-trees", commandLineParamSynopsis = "-num-trees <int>",
+            displayOrder = 2)
+    public int getNumTrees() {
+        return m_NumTrees;
+    }
+
+    public void setNumTrees(int numTrees) {
+        this.m_NumTrees = numTrees;
+    }
+
+    @OptionMetadata(
+            displayName = "bag size percent",
+            description = "The size of every bootstrap sample as a percentage of the training data (default = 100).",
+            commandLineParamName = "bag-size", commandLineParamSynopsis = "-bag-size <double>",
+            displayOrder = 3)
+    public double getBagSizePercent() {
+        return m_BagSizePercent;
+    }
+
+    public void setBagSizePercent(double bagSizePercent) {
+        this.m_BagSizePercent = bagSizePercent;
+    }
+
+    @OptionMetadata(
+            displayName = "number of threads",
+            description = "The number of threads to use for building the trees and for batch prediction,"
+                    + " 0 = number of available processors (default = 0).",
+            commandLineParamName = "num-threads", commandLineParamSynopsis = "-num-threads <int>",
+            displayOrder = 4)
+    public int getNumThreads() {
+        return m_NumThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.m_NumThreads = numThreads;
+    }
+
+    @OptionMetadata(
+            displayName = "calculate out-of-bag error",
+            description = "Compute the out-of-bag error while building, from the rows every tree did not see.",
+            commandLineParamName = "oob", commandLineParamSynopsis = "-oob",
+            commandLineParamIsFlag = true, displayOrder = 5)
+    public boolean getCalcOutOfBag() {
+        return m_CalcOutOfBag;
+    }
+
+    public void setCalcOutOfBag(boolean calcOutOfBag) {
+        this.m_CalcOutOfBag = calcOutOfBag;
+    }
+
+    /**
+     * @return the out-of-bag error of the last build, NaN if it was not computed
+     */
+    public double getOutOfBagError() {
+        return m_OutOfBagError;
+    }
+
+    /**
+     * Returns a string describing this classifier
+     *
+     * @return a description of the classifier suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String globalInfo() {
+        return "Class for building a bagged ensemble of FilterTrees in parallel, with an optional out-of-bag error.";
+    }
+
+    /**
+     * Returns default capabilities of the classifier.
+     *
+     * @return the capabilities of this classifier
+     */
+    public Capabilities getCapabilities() {
+        Capabilities result = m_TreeTemplate.getCapabilities();
+        result.setOwner(this);
+        return result;
+    }
+
+    /**
+     * @return the number of threads to use
+     */
+    protected int numThreads() {
+        return m_NumThreads > 0 ? m_NumThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    //build Classifier and distribution
+    @Override
+    public void buildClassifier(Instances instances) throws Exception {
+        // can classifier handle the data?
+        getCapabilities().testWithFail(instances);
+        //remove instances with missing class, from a copy that all trees then share
+        final Instances data = new Instances(instances);
+        data.deleteWithMissingClass();
+
+        m_Trees = new FilterTree[m_NumTrees];
+        for (int i = 0; i < m_Trees.length; i++) {
+            m_Trees[i] = (FilterTree) AbstractClassifier.makeCopy(m_TreeTemplate);
+        }
+        final int bagSize = (int) (data.numInstances() * m_BagSizePercent / 100);
+        //the seeds are drawn up front, so every tree is the same whichever thread builds it
+        Random random = new Random(m_Seed);
+        int[] seeds = new int[m_NumTrees];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = random.nextInt();
+        }
+        final OutOfBagVotes votes = m_CalcOutOfBag ? new OutOfBagVotes(data) : null;
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < m_Trees.length; i++) {
+            final int index = i;
+            final int seed = seeds[i];
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    FilterTree tree = m_Trees[index];
+                    Random treeRandom = new Random(seed);
+                    int[] rows = new int[bagSize];
+                    boolean[] inBag = new boolean[data.numInstances()];
+                    for (int j = 0; j < rows.length; j++) {
+                        rows[j] = treeRandom.nextInt(data.numInstances());
+                        inBag[rows[j]] = true;
+                    }
+                    tree.setSeed(seed);
+                    tree.buildClassifier(data, rows);
+                    if (votes != null) {
+                        votes.add(index, tree, inBag);
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks, Math.min(numThreads(), m_Trees.length));
+        m_OutOfBagError = votes != null ? votes.error() : Double.NaN;
+    }
+
+    /**
+     * Runs tasks on the given number of threads and waits for all of them.
+     *
+     * @param tasks      the tasks
+     * @param numThreads the number of threads
+     * @throws Exception the first exception thrown by a task
+     */
+    protected static void run(List<Callable<Void>> tasks, int numThreads) throws Exception {
+
+        if (numThreads <= 1) {
+            for (Callable<Void> task : tasks) {
+                task.call();
+            }
+            return;
+        }
+        ExecutorService pool = new ForkJoinPool(numThreads);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    //a task failed, rethrow what it was wrapping
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The out-of-bag votes of a build. Every tree's votes for the rows it did not see are merged in the order of
+     * the trees, whichever finishes first, so the error does not depend on the number of threads; a tree's votes
+     * are only kept until all trees before it have been merged.
+     */
+    protected static class OutOfBagVotes {
+
+        // The training data
+        protected Instances m_Data;
+
+        // The summed class distributions of the trees that did not see each row, null for rows no tree left out
+        protected double[][] m_Sums;
+
+        // The votes of trees that finished before a tree with a smaller index, by tree index
+        protected List<double[][]> m_Pending = new ArrayList<double[][]>();
+
+        // The index of the next tree to merge
+        protected int m_Next;
+
+        /**
+         * @param data the training data
+         */
+        public OutOfBagVotes(Instances data) {
+            m_Data = data;
+            m_Sums = new double[data.numInstances()][];
+        }
+
+        /**
+         * Predicts the rows a tree did not see and merges the votes.
+         *
+         * @param index the index of the tree
+         * @param tree  the tree
+         * @param inBag true for the rows of the tree's bootstrap sample
+         */
+        public void add(int index, FilterTree tree, boolean[] inBag) throws Exception {
+
+            int numOut = 0;
+            for (boolean in : inBag) {
+                if (!in) {
+                    numOut++;
+                }
+            }
+            int[] rows = new int[numOut];
+            double[][] distribution = new double[inBag.length][];
+            numOut = 0;
+            for (int row = 0; row < inBag.length; row++) {
+                if (!inBag[row]) {
+                    rows[numOut++] = row;
+                    distribution[row] = new double[m_Data.numClasses()];
+                }
+            }
+            tree.distributionForInstance(distribution, m_Data, rows);
+            for (int row : rows) {
+                Utils.normalize(distribution[row]);
+            }
+            synchronized (this) {
+                while (m_Pending.size() <= index) {
+                    m_Pending.add(null);
+                }
+                m_Pending.set(index, distribution);
+                while (m_Next < m_Pending.size() && m_Pending.get(m_Next) != null) {
+                    merge(m_Pending.get(m_Next));
+                    m_Pending.set(m_Next++, null);
+                }
+            }
+        }
+
+        /**
+         * Adds the votes of one tree to the sums.
+         */
+        protected void merge(double[][] distribution) {
+
+            for (int row = 0; row < distribution.length; row++) {
+                if (distribution[row] == null) {
+                    continue;
+                }
+                if (m_Sums[row] == null) {
+                    m_Sums[row] = distribution[row];
+                } else {
+                    for (int i = 0; i < distribution[row].length; i++) {
+                        m_Sums[row][i] += distribution[row][i];
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the weighted error of the merged votes over the rows some tree left out, NaN if there are none
+         */
+        public double error() {
+
+            double errors = 0;
+            double total = 0;
+            for (int row = 0; row < m_Sums.length; row++) {
+                if (m_Sums[row] == null) {
+                    continue;
+                }
+                Instance instance = m_Data.instance(row);
+                total += instance.weight();
+                if (Utils.maxIndex(m_Sums[row]) != (int) instance.classValue()) {
+                    errors += instance.weight();
+                }
+            }
+            return total > 0 ? errors / total : Double.NaN;
+        }
+    }
+
+    /**
+     * Method that returns estimated class probabilities for the given instance, the average of the trees'
+     * estimates.
+     *
+     * @param instance the instance for which a prediction is to be generated.
+     * @return the estimates obtained from the ensemble
+     */
+    public double[] distributionForInstance(Instance instance) throws Exception {
+
+        double[] distribution = new double[instance.numClasses()];
+        for (FilterTree tree : m_Trees) {
+            double[] treeDistribution = tree.distributionForInstance(instance);
+            for (int i = 0; i < distribution.length; i++) {
+                distribution[i] += treeDistribution[i];
+            }
+        }
+        Utils.normalize(distribution);
+        return distribution;
+    }
+
+    /**
+     * Method that returns estimated class probabilities for the given instances, the average of the trees'
+     * estimates. The rows are split into one block per thread, and every thread passes its block through all
+     * trees, so each tree sees a batch at a time.
+     *
+     * @param instances the instances for which a prediction are to be generated.
+     * @return the estimates obtained from the ensemble
+     */
+    public double[][] distributionForInstance(final Instances instances) throws Exception {
+
+        final int numClasses = instances.numClasses();
+        final double[][] distribution = new double[instances.numInstances()][numClasses];
+        //the trees write their estimates into rows of the scratch array, which the blocks never share
+        final double[][] scratch = new double[instances.numInstances()][numClasses];
+        int numBlocks = Math.max(1, Math.min(numThreads(), instances.numInstances() / MIN_PARALLEL_ROWS));
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int b = 0; b < numBlocks; b++) {
+            final int from = (int) ((long) b * instances.numInstances() / numBlocks);
+            final int to = (int) ((long) (b + 1) * instances.numInstances() / numBlocks);
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    int[] rows = new int[to - from];
+                    for (int i = 0; i < rows.length; i++) {
+                        rows[i] = from + i;
+                    }
+                    for (FilterTree tree : m_Trees) {
+                        tree.distributionForInstance(scratch, instances, rows);
+                        for (int row : rows) {
+                            Utils.normalize(scratch[row]);
+                            for (int i = 0; i < numClasses; i++) {
+                                distribution[row][i] += scratch[row][i];
+                                scratch[row][i] = 0;
+                            }
+                        }
+                    }
+                    for (int row : rows) {
+                        Utils.normalize(distribution[row]);
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks, numBlocks);
+        return distribution;
+    }
+
+    @Override
+    public boolean implementsMoreEfficientBatchPrediction() {
+        return true;
+    }
+
+    /**
+     * Weka's batch prediction, as used by Evaluation when implementsMoreEfficientBatchPrediction() is true.
+     *
+     * @param instances the instances for which a prediction are to be generated.
+     * @return the estimates obtained from the forest
+     */
+    @Override
+    public double[][] distributionsForInstances(Instances instances) throws Exception {
+        return distributionForInstance(instances);
+    }
+
+    /**
+     * Returns an enumeration of the additional measure names.
+     *
+     * @return an enumeration of the measure names
+     */
+    public Enumeration<String> enumerateMeasures() {
+        return Collections.enumeration(Collections.singletonList("measureOutOfBagError"));
+    }
+
+    /**
+     * Returns the value of the named measure.
+     *
+     * @param additionalMeasureName the name of the measure to query for its value
+     * @return the value of the named measure
+     * @throws IllegalArgumentException if the named measure is not supported
+     */
+    public double getMeasure(String additionalMeasureName) {
+
+        if (additionalMeasureName.equalsIgnoreCase("measureOutOfBagError")) {
+            return m_OutOfBagError;
+        }
+        throw new IllegalArgumentException(additionalMeasureName + " not supported (FilterForest)");
+    }
+
+    /**
+     * Method that returns a textual description of the classifier.
+     *
+     * @return the textual description as a string
+     */
+    public String toString() {
+
+        if (m_Trees == null) {
+            return "FilterForest: No classifier built yet.";
+        }
+        StringBuffer stringBuffer = new StringBuffer();
+        stringBuffer.append("FilterForest: ").append(m_Trees.length).append(" trees, bag size ")
+                .append(Utils.doubleToString(m_BagSizePercent, 2)).append("%");
+        if (!Double.isNaN(m_OutOfBagError)) {
+            stringBuffer.append("\nOut of bag error: ").append(Utils.doubleToString(m_OutOfBagError * 100, 4)).append("%");
+        }
+        return stringBuffer.toString();
+    }
+
+
+    /**
+     * Main method to run this classifier from the command-line with the standard option handling.
+     *
+     * @param args the command-line options
+     */
+    public static void main(String[] args) {
+
+        runClassifier(new FilterForest(), args);
+    }
+}
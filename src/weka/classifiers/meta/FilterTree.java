@@ -1,13 +1,39 @@
 package weka.classifiers.meta;
 
 import weka.classifiers.RandomizableClassifier;
+import weka.classifiers.functions.supportVector.RBFKernel;
+import weka.classifiers.meta.filtertree.BinnedColumns;
+import weka.classifiers.meta.filtertree.BuildListener;
+import weka.classifiers.meta.filtertree.BuildMetrics;
+import weka.classifiers.meta.filtertree.ColumnData;
+import weka.classifiers.meta.filtertree.ColumnFile;
+import weka.classifiers.meta.filtertree.ColumnIndex;
+import weka.classifiers.meta.filtertree.FilterTransform;
+import weka.classifiers.meta.filtertree.FlatTree;
+import weka.classifiers.meta.filtertree.NodeBuildEvent;
+import weka.classifiers.meta.filtertree.SplitColumns;
+import weka.classifiers.meta.filtertree.SparseColumns;
+import weka.classifiers.meta.filtertree.SplitScanner;
+import weka.classifiers.meta.filtertree.WorkerConnection;
 import weka.core.*;
 import weka.filters.AllFilter;
+import weka.gui.ProgrammaticProperty;
 import weka.filters.Filter;
+import weka.filters.unsupervised.instance.KernelHerding;
 
+import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class FilterTree extends RandomizableClassifier {
 
@@ -22,14 +48,130 @@ public class FilterTree extends RandomizableClassifier {
     // The minimum number of instances required for splitting
     protected double m_Threshold = 2.0;
 
+    // The number of threads to use for building the tree (0 = number of available processors)
+    protected int m_NumThreads = 1;
+
+    // The maximum number of bins per attribute for the approximate split search (0 = exact search)
+    protected int m_NumBins = 0;
+
+    // The maximum number of leaves (0 = unlimited)
+    protected int m_MaxLeaves = 0;
+
+    // The maximum depth of the tree (0 = unlimited)
+    protected int m_MaxDepth = 0;
+
+    // The maximum number of bytes held by unexpanded nodes while building (0 = unlimited)
+    protected long m_MaxBytes = 0;
+
+    // The time allowed for building in seconds; the best tree so far is kept when it runs out (0 = unlimited)
+    protected double m_TimeBudget = 0;
+
+    // The addresses of the workers holding the training data, as host:port separated by commas (empty = local build)
+    protected String m_Workers = "";
+
+    // The maximum number of rows a node fits its filter and searches for its split on (0 = all rows)
+    protected int m_SplitSample = 0;
+
+    // How the rows of a node's sample are chosen
+    protected int m_SplitSampleMethod = SAMPLE_UNIFORM;
+
+    // The herding filter choosing the sample rows, for SAMPLE_HERDING
+    protected KernelHerding m_Herding = defaultHerding();
+
+    // Sample rows chosen uniformly, in proportion to the classes, or by kernel herding
+    public static final int SAMPLE_UNIFORM = 0;
+    public static final int SAMPLE_STRATIFIED = 1;
+    public static final int SAMPLE_HERDING = 2;
+    public static final Tag[] TAGS_SPLIT_SAMPLE = {
+            new Tag(SAMPLE_UNIFORM, "uniform"),
+            new Tag(SAMPLE_STRATIFIED, "stratified"),
+            new Tag(SAMPLE_HERDING, "herding"),
+    };
+
+    // The number of candidate rows per sample row that herding chooses from
+    protected static final int HERDING_POOL_FACTOR = 4;
+
+    // Whether to keep the filtered values as floats for the exact split search
+    protected boolean m_FloatColumns = false;
+
+    // How the tree is pruned after it is built
+    protected int m_Pruning = PRUNE_NONE;
+
+    // Do not prune, prune by the errors on held out rows, or by the errors on the training rows
+    public static final int PRUNE_NONE = 0;
+    public static final int PRUNE_REDUCED_ERROR = 1;
+    public static final int PRUNE_COST_COMPLEXITY = 2;
+    public static final Tag[] TAGS_PRUNING = {
+            new Tag(PRUNE_NONE, "none"),
+            new Tag(PRUNE_REDUCED_ERROR, "reduced-error"),
+            new Tag(PRUNE_COST_COMPLEXITY, "cost-complexity"),
+    };
+
+    // The fraction of the training rows held out for reduced-error pruning
+    protected double m_PruneHoldout = 0.25;
+
+    // The number of errors a split node must save to be kept when pruning, the cost of its filter
+    protected double m_SplitCost = 1;
+
+    // Whether to compile the built tree into flat arrays for predicting single instances
+    protected boolean m_Compile = false;
+
+    // Whether to collect build metrics for toString()
+    protected boolean m_CollectBuildMetrics = false;
+
+    // The listener told about every node built, null for none
+    protected transient BuildListener m_BuildListener;
+
     //The data that should be stored
 
     // The root node of the decision tree
     protected Node RootNode;
 
+    // The tree compiled into flat arrays, if m_Compile is set
+    protected FlatTree m_FlatTree;
+
+    // The header of the training data
+    protected Instances m_Header;
+
+    // The metrics of the last build, if m_CollectBuildMetrics is set
+    protected transient BuildMetrics m_BuildMetrics;
+
+    // The size of the tree before and after pruning: nodes, split nodes with a filter and the average path length
+    // of the training rows, null if the tree was not pruned
+    protected double[] m_SizeBeforePruning;
+    protected double[] m_SizeAfterPruning;
+
+    // The listener of the current build (the set listener and/or the build metrics), only kept while building
+    protected transient BuildListener m_Listener;
+
     // A random number generator
     protected Random random;
 
+    // The tables of n*log2(n) and log2(n) used by the split search, only kept while building
+    protected transient double[] m_NLogN;
+    protected transient double[] m_Log2;
+
+    // The pool running the build tasks, only kept while building with more than one thread
+    protected transient ForkJoinPool m_Pool;
+
+    // The training data all nodes refer to, only kept while building
+    protected transient Instances m_Data;
+
+    // The memory-mapped training data, instead of m_Data when building from a column file
+    protected transient ColumnFile m_ColumnFile;
+
+    // The rows of the training data, ordered so that the rows of every unexpanded node are one range
+    protected transient int[] m_Rows;
+
+    // The System.nanoTime() at which the time budget runs out, only kept while building
+    protected transient long m_Deadline;
+
+    // The least number of values (rows times attributes) worth handing to another thread
+    protected static final int MIN_PARALLEL_WORK = 1 << 15;
+
+    // The most histogram values a distributed build asks for at once, and keeps for the next level of nodes
+    protected static final long MAX_DISTRIBUTED_HISTOGRAM_VALUES = 1 << 24;
+
 
     @OptionMetadata(
             displayName = "threshold",
@@ -57,6 +199,272 @@ public class FilterTree extends RandomizableClassifier {
         this.FilterTemplate = filter;
     }
 
+    @OptionMetadata(
+            displayName = "number of threads",
+            description = "The number of threads to use for building the tree; attributes and sibling subtrees are"
+                    + " then processed in parallel, 0 = number of available processors (default = 1).",
+            commandLineParamName = "num-threads", commandLineParamSynopsis = "-num-threads <int>",
+            displayOrder = 3)
+    public int getNumThreads() {
+        return m_NumThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.m_NumThreads = numThreads;
+    }
+
+    @OptionMetadata(
+            displayName = "number of bins",
+            description = "The maximum number of quantile bins per attribute; nodes with more instances than this"
+                    + " only consider splits between bins, and with an AllFilter so do all their descendants, which"
+                    + " inherit the bins. 0 = always search every distinct value (default = 0).",
+            commandLineParamName = "num-bins", commandLineParamSynopsis = "-num-bins <int>",
+            displayOrder = 4)
+    public int getNumBins() {
+        return m_NumBins;
+    }
+
+    public void setNumBins(int numBins) {
+        this.m_NumBins = numBins;
+    }
+
+    @OptionMetadata(
+            displayName = "maximum number of leaves",
+            description = "The maximum number of leaves; nodes are expanded best first, 0 = unlimited (default = 0).",
+            commandLineParamName = "max-leaves", commandLineParamSynopsis = "-max-leaves <int>",
+            displayOrder = 5)
+    public int getMaxLeaves() {
+        return m_MaxLeaves;
+    }
+
+    public void setMaxLeaves(int maxLeaves) {
+        this.m_MaxLeaves = maxLeaves;
+    }
+
+    @OptionMetadata(
+            displayName = "maximum depth",
+            description = "The maximum depth of the tree, 0 = unlimited (default = 0).",
+            commandLineParamName = "max-depth", commandLineParamSynopsis = "-max-depth <int>",
+            displayOrder = 6)
+    public int getMaxDepth() {
+        return m_MaxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.m_MaxDepth = maxDepth;
+    }
+
+    @OptionMetadata(
+            displayName = "maximum bytes of node data",
+            description = "The maximum number of bytes the unexpanded nodes may hold while building; nodes are"
+                    + " expanded best first, and no more nodes are evaluated while the limit is exceeded,"
+                    + " 0 = unlimited (default = 0).",
+            commandLineParamName = "max-bytes", commandLineParamSynopsis = "-max-bytes <long>",
+            displayOrder = 7)
+    public long getMaxBytes() {
+        return m_MaxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.m_MaxBytes = maxBytes;
+    }
+
+    @OptionMetadata(
+            displayName = "compile tree",
+            description = "Compile the built tree into flat arrays for faster prediction of single instances.",
+            commandLineParamName = "compile", commandLineParamSynopsis = "-compile",
+            commandLineParamIsFlag = true, displayOrder = 8)
+    public boolean getCompile() {
+        return m_Compile;
+    }
+
+    public void setCompile(boolean compile) {
+        this.m_Compile = compile;
+    }
+
+    @OptionMetadata(
+            displayName = "time budget",
+            description = "The time allowed for building in seconds; nodes are expanded best first and the tree built"
+                    + " so far is returned when the time runs out; a node being evaluated is finished first,"
+                    + " 0 = unlimited (default = 0).",
+            commandLineParamName = "time-budget", commandLineParamSynopsis = "-time-budget <double>",
+            displayOrder = 10)
+    public double getTimeBudget() {
+        return m_TimeBudget;
+    }
+
+    public void setTimeBudget(double timeBudget) {
+        this.m_TimeBudget = timeBudget;
+    }
+
+    @OptionMetadata(
+            displayName = "workers",
+            description = "The addresses of HistogramWorkers holding shards of the training data, as host:port separated"
+                    + " by commas; the tree is then built from the workers' class counts, and the training data only"
+                    + " supplies the header. Needs an AllFilter and -num-bins (default = local build).",
+            commandLineParamName = "workers", commandLineParamSynopsis = "-workers <host:port,...>",
+            displayOrder = 11)
+    public String getWorkers() {
+        return m_Workers;
+    }
+
+    public void setWorkers(String workers) {
+        this.m_Workers = workers;
+    }
+
+    @OptionMetadata(
+            displayName = "split sample",
+            description = "The maximum number of rows a node fits its filter and searches for its split on; all rows"
+                    + " are partitioned by the split found. AllFilter nodes use all rows (default = 0, all rows).",
+            commandLineParamName = "split-sample", commandLineParamSynopsis = "-split-sample <int>",
+            displayOrder = 12)
+    public int getSplitSample() {
+        return m_SplitSample;
+    }
+
+    public void setSplitSample(int splitSample) {
+        this.m_SplitSample = splitSample;
+    }
+
+    @OptionMetadata(
+            displayName = "split sample method",
+            description = "How the sample rows are chosen: uniform, stratified (by class) or herding"
+                    + " (default = uniform).",
+            commandLineParamName = "split-sample-method",
+            commandLineParamSynopsis = "-split-sample-method <uniform|stratified|herding>",
+            displayOrder = 13)
+    public SelectedTag getSplitSampleMethod() {
+        return new SelectedTag(m_SplitSampleMethod, TAGS_SPLIT_SAMPLE);
+    }
+
+    public void setSplitSampleMethod(SelectedTag method) {
+        if (method.getTags() == TAGS_SPLIT_SAMPLE) {
+            this.m_SplitSampleMethod = method.getSelectedTag().getID();
+        }
+    }
+
+    @OptionMetadata(
+            displayName = "herding filter",
+            description = "The kernel herding filter choosing a node's sample from " + HERDING_POOL_FACTOR
+                    + " times as many uniformly chosen rows, for -split-sample-method herding; its seed and sample"
+                    + " size are set for every node.",
+            commandLineParamName = "herding", commandLineParamSynopsis = "-herding <filter specification>",
+            displayOrder = 14)
+    public KernelHerding getHerding() {
+        return m_Herding;
+    }
+
+    public void setHerding(KernelHerding herding) {
+        this.m_Herding = herding;
+    }
+
+    @OptionMetadata(
+            displayName = "float columns",
+            description = "Keep the filtered values of the exact split search as floats, halving the memory of the"
+                    + " column stores; thresholds then lie halfway between float values (default = doubles).",
+            commandLineParamName = "float-columns", commandLineParamSynopsis = "-float-columns",
+            commandLineParamIsFlag = true, displayOrder = 15)
+    public boolean getFloatColumns() {
+        return m_FloatColumns;
+    }
+
+    public void setFloatColumns(boolean floatColumns) {
+        this.m_FloatColumns = floatColumns;
+    }
+
+    @OptionMetadata(
+            displayName = "pruning",
+            description = "How the tree is pruned once built: none, reduced-error (by the errors on rows held out"
+                    + " from training) or cost-complexity (by the errors on the training rows); a subtree becomes a"
+                    + " leaf unless it saves -split-cost errors per split node (default = none).",
+            commandLineParamName = "pruning",
+            commandLineParamSynopsis = "-pruning <none|reduced-error|cost-complexity>",
+            displayOrder = 16)
+    public SelectedTag getPruning() {
+        return new SelectedTag(m_Pruning, TAGS_PRUNING);
+    }
+
+    public void setPruning(SelectedTag pruning) {
+        if (pruning.getTags() == TAGS_PRUNING) {
+            this.m_Pruning = pruning.getSelectedTag().getID();
+        }
+    }
+
+    @OptionMetadata(
+            displayName = "prune holdout",
+            description = "The fraction of the training rows held out for reduced-error pruning (default = 0.25).",
+            commandLineParamName = "prune-holdout", commandLineParamSynopsis = "-prune-holdout <double>",
+            displayOrder = 17)
+    public double getPruneHoldout() {
+        return m_PruneHoldout;
+    }
+
+    public void setPruneHoldout(double pruneHoldout) {
+        this.m_PruneHoldout = pruneHoldout;
+    }
+
+    @OptionMetadata(
+            displayName = "split cost",
+            description = "The number of misclassified rows a split node must save to be kept when pruning, the cost"
+                    + " of its filter in errors (default = 1).",
+            commandLineParamName = "split-cost", commandLineParamSynopsis = "-split-cost <double>",
+            displayOrder = 18)
+    public double getSplitCost() {
+        return m_SplitCost;
+    }
+
+    public void setSplitCost(double splitCost) {
+        this.m_SplitCost = splitCost;
+    }
+
+    /**
+     * @return a herding filter with an RBF kernel, whose samples match the whole distribution of a node rather than
+     * only its mean, as with the filter's default linear kernel
+     */
+    protected static KernelHerding defaultHerding() {
+
+        KernelHerding herding = new KernelHerding();
+        herding.setKernel(new RBFKernel());
+        return herding;
+    }
+
+    @OptionMetadata(
+            displayName = "collect build metrics",
+            description = "Measure the time spent filtering, searching and partitioning at every node and print a summary"
+                    + " with the tree.",
+            commandLineParamName = "build-metrics", commandLineParamSynopsis = "-build-metrics",
+            commandLineParamIsFlag = true, displayOrder = 9)
+    public boolean getCollectBuildMetrics() {
+        return m_CollectBuildMetrics;
+    }
+
+    public void setCollectBuildMetrics(boolean collectBuildMetrics) {
+        this.m_CollectBuildMetrics = collectBuildMetrics;
+    }
+
+    @ProgrammaticProperty
+    public BuildListener getBuildListener() {
+        return m_BuildListener;
+    }
+
+    /**
+     * Sets a listener that is told about every node built, for measuring where the build spends its time. The
+     * listener is called from the threads that build the tree.
+     *
+     * @param buildListener the listener, null for none
+     */
+    @ProgrammaticProperty
+    public void setBuildListener(BuildListener buildListener) {
+        this.m_BuildListener = buildListener;
+    }
+
+    /**
+     * @return the metrics of the last build, null if they were not collected
+     */
+    public BuildMetrics getBuildMetrics() {
+        return m_BuildMetrics;
+    }
+
     /**
      * Returns a string describing this classifier
      *
@@ -102,6 +510,9 @@ public class FilterTree extends RandomizableClassifier {
         protected Node Right;
         protected Node Left;
 
+        // The transform for predicting with the filter, made when the node is first used for prediction
+        protected transient volatile FilterTransform m_Transform;
+
         /**
          * Constructs a SplitNodeInfo object
          *
@@ -117,6 +528,23 @@ public class FilterTree extends RandomizableClassifier {
             Right = right;
             SplitFilter = filter;
         }
+
+        /**
+         * @return the transform for predicting with the node's filter, which several threads can use at once
+         */
+        protected FilterTransform transform() {
+
+            FilterTransform transform = m_Transform;
+            if (transform == null) {
+                synchronized (this) {
+                    if (m_Transform == null) {
+                        m_Transform = new FilterTransform(SplitFilter, SplitAttribute.index(), SplitValue);
+                    }
+                    transform = m_Transform;
+                }
+            }
+            return transform;
+        }
     }
 
     /**
@@ -143,16 +571,71 @@ public class FilterTree extends RandomizableClassifier {
      */
     protected class UnexpandedNodeInfo implements NodeInfo {
 
-        // The data to be used for expanding the node.
-        protected Instances Data;
+        // The range of m_Rows holding the rows to be used for expanding the node.
+        protected int From;
+        protected int To;
+
+        // The columns inherited from the parent, if the parent's filter left the data unchanged (may be null)
+        protected transient SplitColumns Columns;
+
+        // The seed of this node, derived from the path to the node
+        protected long Seed;
+
+        // The depth of this node, 0 for the root
+        protected int Depth;
+
+        // The split found for this node by evaluateNode()
+        protected Filter SplitFilter;
+        protected Attribute SplitAttribute;
+        protected SplitInfo Split;
+        // The side of every row of the node under the split (in the order of the node's range)
+        protected transient boolean[] GoesLeft;
+        // The transform that partitioned the rows of a node searched on a sample, for the split node to predict with
+        protected transient FilterTransform Transform;
+        // The number of bytes held by this node while it waits to be expanded
+        protected long Bytes;
+        // The order in which the node was queued, to break ties between nodes with the same gain
+        protected long Order;
+        // The time spent filtering (for a sampled node, the sample and then all of its rows) and searching for the
+        // split, only measured if there is a build listener
+        protected long FilterNanos;
+        protected long SearchNanos;
 
         /**
          * Constructs an UnexpandedNodeInfo object.
          *
-         * @param data the data to be used for turning this node into an expanded node.
+         * @param from the first position in m_Rows of the rows to be used for turning this node into an expanded node.
+         * @param to   the position after the last one
+         * @param seed the seed of the node
          */
-        public UnexpandedNodeInfo(Instances data) {
-            Data = data;
+        public UnexpandedNodeInfo(int from, int to, long seed) {
+            From = from;
+            To = to;
+            Seed = seed;
+        }
+
+        /**
+         * Constructs an UnexpandedNodeInfo object for a child node.
+         *
+         * @param from    the first position in m_Rows of the rows to be used for turning this node into an expanded node.
+         * @param to      the position after the last one
+         * @param seed    the seed of the node
+         * @param depth   the depth of the node
+         * @param columns the columns of the data, ready for the split search (may be null)
+         */
+        public UnexpandedNodeInfo(int from, int to, long seed, int depth, SplitColumns columns) {
+            From = from;
+            To = to;
+            Seed = seed;
+            Depth = depth;
+            Columns = columns;
+        }
+
+        /**
+         * @return the number of rows at the node
+         */
+        public int numInstances() {
+            return To - From;
         }
     }
 
@@ -177,79 +660,643 @@ public class FilterTree extends RandomizableClassifier {
     //build Classifier and distribution
     @Override
     public void buildClassifier(Instances instances) throws Exception {
+        if (m_Workers.trim().length() > 0) {
+            //the rows are on the workers
+            Capabilities capabilities = getCapabilities();
+            capabilities.setMinimumNumberInstances(0);
+            capabilities.testWithFail(instances);
+            buildDistributed(instances);
+            return;
+        }
         // can classifier handle the data?
         getCapabilities().testWithFail(instances);
         //remove instances with missing class
         instances.deleteWithMissingClass();
+        buildClassifier(instances, null);
+    }
+
+    /**
+     * Builds the tree from some rows of the given data without copying them. The data is only read, so several
+     * trees can be built from the same data at the same time.
+     *
+     * @param instances the training data, without missing class values
+     * @param rows      the rows to train on, which may repeat as in a bootstrap sample, or null for all rows
+     * @throws Exception if the tree cannot be built
+     */
+    public void buildClassifier(Instances instances, int[] rows) throws Exception {
 
         random = instances.getRandomNumberGenerator(getSeed());
-        //set RootNode
-        RootNode = new Node(new UnexpandedNodeInfo(instances));
-        //building tree
-        RootNode = makeTree(RootNode);
+        m_Data = instances;
+        m_Header = new Instances(instances, 0);
+        buildTree(instances.numInstances(), rows);
+    }
 
+    /**
+     * Builds the tree from a memory-mapped column file. The values are read from the mapping by the column stores,
+     * and only the rows passed to the filter of a node are turned into instances, so the data need not fit on the
+     * heap; with -num-bins the column stores of the largest nodes also take less space than the data. The tree is
+     * the same as the one built from the instances the file was converted from.
+     *
+     * @param data the training data
+     * @throws Exception if the tree cannot be built
+     */
+    public void buildClassifier(ColumnFile data) throws Exception {
+
+        if (m_Workers.trim().length() > 0) {
+            throw new Exception("A column file is used on this machine only, it cannot be combined with -workers.");
+        }
+        // can classifier handle the data? The rows are checked by the flag of the file.
+        Capabilities capabilities = getCapabilities();
+        int minimumRows = capabilities.getMinimumNumberInstances();
+        capabilities.setMinimumNumberInstances(0);
+        capabilities.testWithFail(data.header());
+        if (data.numRows() < minimumRows) {
+            throw new WekaException(getClass().getName() + ": Not enough training instances (" + data.numRows()
+                    + " < " + minimumRows + ")!");
+        }
+        if (data.hasMissingValues() && !capabilities.handles(Capabilities.Capability.MISSING_VALUES)) {
+            throw new WekaException(getClass().getName() + ": Cannot handle missing values!");
+        }
+        //seeded as Instances.getRandomNumberGenerator() does, so the tree is the one built from the instances
+        random = new Random(getSeed());
+        random.setSeed(data.instance(random.nextInt(data.numRows())).toStringNoWeight().hashCode() + getSeed());
+        m_ColumnFile = data;
+        m_Header = new Instances(data.header(), 0);
+        buildTree(data.numRows(), null);
+    }
+
+    /**
+     * Builds the tree from m_Data or m_ColumnFile, with random and m_Header set.
+     *
+     * @param numRows the number of rows of the training data
+     * @param rows    the rows to train on, which may repeat as in a bootstrap sample, or null for all rows
+     * @throws Exception if the tree cannot be built
+     */
+    protected void buildTree(int numRows, int[] rows) throws Exception {
+
+        m_Deadline = m_TimeBudget > 0 ? System.nanoTime() + (long) (m_TimeBudget * 1e9) : Long.MAX_VALUE;
+        //all nodes work on ranges of one array of row indices into the training data
+        if (rows != null) {
+            m_Rows = rows.clone();
+        } else {
+            m_Rows = new int[numRows];
+            for (int i = 0; i < m_Rows.length; i++) {
+                m_Rows[i] = i;
+            }
+        }
+        //every other node's seed is derived from the root's
+        long rootSeed = random.nextLong();
+        Instances holdout = m_Pruning == PRUNE_REDUCED_ERROR ? holdOut(random) : null;
+        m_SizeBeforePruning = null;
+        m_SizeAfterPruning = null;
+        //no node has more rows than the root
+        m_NLogN = SplitScanner.nLogNTable(m_Rows.length);
+        m_Log2 = SplitScanner.log2Table(m_Rows.length);
+        int numThreads = m_NumThreads > 0 ? m_NumThreads : Runtime.getRuntime().availableProcessors();
+        if (numThreads > 1) {
+            m_Pool = new ForkJoinPool(numThreads);
+        }
+        m_FlatTree = null;
+        m_BuildMetrics = m_CollectBuildMetrics ? new BuildMetrics() : null;
+        m_Listener = listener(m_BuildListener, m_BuildMetrics);
+        long buildStart = 0;
+        if (m_Listener != null) {
+            m_Listener.buildStarted(m_Data != null ? m_Data : m_Header);
+            buildStart = System.nanoTime();
+        }
+        try {
+            RootNode = new Node(new UnexpandedNodeInfo(0, m_Rows.length, rootSeed));
+            //building tree: sibling subtrees in parallel if there are threads to spare and no limits that need a
+            //global order, otherwise best first from a queue, which needs no recursion
+            if (m_Pool != null && !hasBuildLimits()) {
+                RootNode = m_Pool.invoke(new SubtreeTask(RootNode));
+            } else {
+                RootNode = makeTreeBestFirst(RootNode);
+            }
+            if (m_Pruning != PRUNE_NONE) {
+                pruneTree(holdout);
+            }
+        } catch (RuntimeException e) {
+            //a task failed, rethrow what it was wrapping
+            Throwable cause = e;
+            while (cause instanceof RuntimeException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception && !(cause instanceof RuntimeException)) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            if (m_Pool != null) {
+                m_Pool.shutdown();
+                m_Pool = null;
+            }
+            m_NLogN = null;
+            m_Log2 = null;
+            m_Data = null;
+            m_ColumnFile = null;
+            m_Rows = null;
+            if (m_Listener != null) {
+                m_Listener.buildFinished(System.nanoTime() - buildStart);
+                m_Listener = null;
+            }
+        }
+        if (m_Compile) {
+            m_FlatTree = compileTree();
+        }
+
+    }
+
+    /**
+     * Combines the listeners of a build.
+     *
+     * @param first  a listener, or null
+     * @param second another listener, or null
+     * @return a listener telling both, or null if both are null
+     */
+    protected static BuildListener listener(final BuildListener first, final BuildListener second) {
+
+        if (first == null || second == null) {
+            return first != null ? first : second;
+        }
+        return new BuildListener() {
+            public void buildStarted(Instances data) {
+                first.buildStarted(data);
+                second.buildStarted(data);
+            }
+
+            public void nodeBuilt(NodeBuildEvent event) {
+                first.nodeBuilt(event);
+                second.nodeBuilt(event);
+            }
+
+            public void buildFinished(long nanos) {
+                first.buildFinished(nanos);
+                second.buildFinished(nanos);
+            }
+        };
+    }
+
+    /**
+     * @return true if the tree size, the memory used while building or the build time is limited
+     */
+    protected boolean hasBuildLimits() {
+        return m_MaxLeaves > 0 || m_MaxDepth > 0 || m_MaxBytes > 0 || m_TimeBudget > 0;
+    }
+
+    /**
+     * @return true if the time budget of the current build has run out
+     */
+    protected boolean outOfTime() {
+        return System.nanoTime() - m_Deadline >= 0;
     }
 
     /**
      * Method for building the Filter tree.
      */
     protected Node makeTree(Node node) throws Exception {
+
+        if (!evaluateNode(node)) {
+            return makeLeaf(node);
+        }
+        return makeSplitNode(node);
+    }
+
+    /**
+     * Method for building the Filter tree without recursion. Nodes wait in a queue after their split has been
+     * found, and the node with the highest information gain is expanded first. When the limit on the number of
+     * leaves is reached, the queued nodes become leaves. Once the time budget runs out, or while the queued nodes
+     * hold more than the byte limit, no more nodes are evaluated: the splits already found are still used, and the
+     * children of the expanded nodes become leaves. Nodes at the maximum depth are not expanded. Every queued node
+     * is a leaf of the tree as it stands, so stopping at any point leaves a valid tree that uses the most promising
+     * splits found so far.
+     * Without limits the result is the same as that of makeTree().
+     *
+     * @param root the root node
+     * @return the root of the built tree
+     */
+    protected Node makeTreeBestFirst(Node root) throws Exception {
+
+        if (outOfTime() || !evaluateNode(root)) {
+            return makeLeaf(root);
+        }
+        PriorityQueue<Node> queue = new PriorityQueue<Node>(11, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                UnexpandedNodeInfo infoA = (UnexpandedNodeInfo) a.NodeInfo;
+                UnexpandedNodeInfo infoB = (UnexpandedNodeInfo) b.NodeInfo;
+                int result = Double.compare(infoB.Split.entropy, infoA.Split.entropy);
+                return result != 0 ? result : Long.compare(infoA.Order, infoB.Order);
+            }
+        });
+        long order = 0;
+        long liveBytes = root.NodeInfo instanceof UnexpandedNodeInfo ? ((UnexpandedNodeInfo) root.NodeInfo).Bytes : 0;
+        int numLeaves = 0;
+        queue.add(root);
+
+        while (!queue.isEmpty()) {
+            //every queued node would be a leaf if the build stopped now
+            if (m_MaxLeaves > 0 && numLeaves + queue.size() >= m_MaxLeaves) {
+                break;
+            }
+            Node node = queue.poll();
+            UnexpandedNodeInfo nodeInfo = (UnexpandedNodeInfo) node.NodeInfo;
+            liveBytes -= nodeInfo.Bytes;
+            //the split of a queued node has been found already, so it is used even once the time is up or the
+            //queued nodes hold too many bytes; only its children are no longer evaluated then
+            boolean evaluateChildren = !outOfTime() && !(m_MaxBytes > 0 && liveBytes > m_MaxBytes);
+            if (!evaluateChildren) {
+                //children that will be leaves need no columns
+                nodeInfo.Columns = null;
+            }
+            Node[] children = expandNode(node);
+            for (Node child : children) {
+                if (evaluateChildren && !outOfTime() && !(m_MaxBytes > 0 && liveBytes > m_MaxBytes)
+                        && evaluateNode(child)) {
+                    ((UnexpandedNodeInfo) child.NodeInfo).Order = order++;
+                    liveBytes += ((UnexpandedNodeInfo) child.NodeInfo).Bytes;
+                    queue.add(child);
+                } else {
+                    makeLeaf(child);
+                    numLeaves++;
+                }
+            }
+        }
+        //whatever is still waiting becomes a leaf
+        for (Node node : queue) {
+            makeLeaf(node);
+        }
+        return root;
+    }
+
+    /**
+     * Finds the split of an unexpanded node: fits a copy of the filter to the node's data and searches the
+     * filtered attributes for the split with maximum information gain. The split is stored in the node's
+     * UnexpandedNodeInfo.
+     *
+     * @param node the unexpanded node
+     * @return true if the node should be split, false if it should become a leaf
+     */
+    protected boolean evaluateNode(Node node) throws Exception {
         /*
          * filtering data.
          * Split: based on filtered data
          * Pass: based on unfiltered data
          */
-        Instances unfilteredData = ((UnexpandedNodeInfo) node.NodeInfo).Data;
-        if (Utils.smOrEq(unfilteredData.numInstances(), m_Threshold)) {
-            return makeLeaf(node);
+        UnexpandedNodeInfo nodeInfo = (UnexpandedNodeInfo) node.NodeInfo;
+        if (Utils.smOrEq(nodeInfo.numInstances(), m_Threshold)) {
+            return false;
         }
+        if (m_MaxDepth > 0 && nodeInfo.Depth >= m_MaxDepth) {
+            return false;
+        }
+
+        //measure only if someone is listening
+        boolean timed = m_Listener != null;
+        long start = timed ? System.nanoTime() : 0;
+        long filtered = start;
 
         Filter origin_filter = getFilter();
         //make a deep copy of filter for use
         Filter filter = Filter.makeCopy(origin_filter);
-        //use Random filter
+        //use Random filter, seeded from the node's path so that the order in which nodes are built does not matter
         if (filter instanceof Randomizable) {
-            ((Randomizable) filter).setSeed(random.nextInt());
+            ((Randomizable) filter).setSeed((int) nodeInfo.Seed);
         }
 
-        filter.setInputFormat(unfilteredData);
-        //original use type for filter
-//        for (int i = 0; i < unfilteredData.numInstances(); i++) {
-//            filter.input(unfilteredData.instance(i));
-//        }
-//        filter.batchFinished();
-        //get the filtered data
-//        Instances filteredData = filter.getOutputFormat();
-//        Instance processed;
-//        while ((processed = filter.output()) != null) {
-//            filteredData.add(processed);
-//        }
+        //index and sort (or bin) the filtered data once for all attributes;
+        //an AllFilter leaves the data unchanged, so it works on the training data directly, and the
+        //columns inherited from the parent can be used as they are
+        SplitColumns columns = nodeInfo.Columns;
+        //an AllFilter node is searched on all rows, its children reuse its columns
+        boolean sampled = m_SplitSample > 0 && nodeInfo.numInstances() > m_SplitSample && !(filter instanceof AllFilter);
+        if (sampled) {
+            //the filter and the split are found on a sample, and all rows are partitioned by them afterwards
+            Instances sample = sampleData(nodeInfo);
+            filter.setInputFormat(sample);
+            Instances filteredSample = Filter.useFilter(sample, filter);
+            if (timed) {
+                filtered = System.nanoTime();
+            }
+            columns = makeColumns(filteredSample, null, 0, filteredSample.numInstances());
+        } else if (filter instanceof AllFilter) {
+            //the header is enough, setInputFormat would check every row of the data otherwise
+            filter.setInputFormat(new Instances(m_Header, 0));
+            if (timed) {
+                filtered = System.nanoTime();
+            }
+            if (columns == null && m_ColumnFile != null) {
+                columns = makeColumns(m_ColumnFile, m_Rows, nodeInfo.From, nodeInfo.To);
+            } else if (columns == null) {
+                columns = makeColumns(m_Data, m_Rows, nodeInfo.From, nodeInfo.To);
+            }
+        } else {
+            //only the filter needs the node's data as Instances
+            Instances unfilteredData = nodeData(nodeInfo);
+            filter.setInputFormat(unfilteredData);
+            //original use type for filter
+//            for (int i = 0; i < unfilteredData.numInstances(); i++) {
+//                filter.input(unfilteredData.instance(i));
+//            }
+//            filter.batchFinished();
+            //get the filtered data
+//            Instances filteredData = filter.getOutputFormat();
+//            Instance processed;
+//            while ((processed = filter.output()) != null) {
+//                filteredData.add(processed);
+//            }
+
+            //Use filter (more efficient)
+            Instances filteredData = Filter.useFilter(unfilteredData, filter);
+            if (timed) {
+                filtered = System.nanoTime();
+            }
+            columns = makeColumns(filteredData, null, 0, filteredData.numInstances());
+        }
+        Instances filteredData = filter.getOutputFormat();
 
-        //Use filter (more efficient)
-        Instances filteredData = Filter.useFilter(unfilteredData, filter);
+        //the entropy of the node is the same for every attribute, so it is computed once
+        SplitScanner scanner = new SplitScanner(m_NLogN, m_Log2, columns.numClasses());
+        scanner.reset(columns.classCounts());
 
         // Compute attribute with maximum information gain.
         SplitInfo[] infoGainInfo = new SplitInfo[filteredData.numAttributes()];
         double[] infoGains = new double[filteredData.numAttributes()];
+        evaluateAttributes(columns, filteredData, scanner, infoGainInfo);
         Enumeration attEnum = filteredData.enumerateAttributes();
         while (attEnum.hasMoreElements()) {
             Attribute att = (Attribute) attEnum.nextElement();
-            infoGainInfo[att.index()] = computeInfoGain(filteredData, att);
             infoGains[att.index()] = infoGainInfo[att.index()].entropy;
         }
-        //select the attribute
-        int maxIndex = Utils.maxIndex(infoGains);
-        Attribute m_Attribute = filteredData.attribute(maxIndex);
+        //select the attribute, the reduction is the same however the attributes were evaluated
+        int maxIndex = Utils.maxIndex(infoGains);
+        Attribute m_Attribute = filteredData.attribute(maxIndex);
+
+        if (timed) {
+            nodeInfo.FilterNanos = filtered - start;
+            nodeInfo.SearchNanos = System.nanoTime() - filtered;
+        }
+
+        // Create leaf if information gain is zero
+        // Otherwise keep the split for expanding the node.
+        if (Utils.smOrEq(infoGains[m_Attribute.index()], 0)) {
+            nodeInfo.Columns = null;
+            return false;
+        }
+        nodeInfo.SplitFilter = filter;
+        nodeInfo.SplitAttribute = m_Attribute;
+        nodeInfo.Split = infoGainInfo[maxIndex];
+        if (sampled) {
+            long passStart = timed ? System.nanoTime() : 0;
+            nodeInfo.GoesLeft = goesLeft(nodeInfo, filter, m_Attribute.index(), nodeInfo.Split.splitValue);
+            if (timed) {
+                //every row of the node goes through the filter here, which is filtering time too
+                nodeInfo.FilterNanos += System.nanoTime() - passStart;
+            }
+            nodeInfo.Columns = null;
+            nodeInfo.Bytes = nodeInfo.GoesLeft.length;
+            //the rows of the sample are on both sides, unless the filter treats them differently the second time
+            return splitsRows(nodeInfo);
+        }
+        nodeInfo.GoesLeft = columns.goesLeft(m_Attribute.index(), nodeInfo.Split.splitValue);
+        //children of an AllFilter node see the same attributes, so they keep the columns;
+        //otherwise only the sides of the rows are needed
+        nodeInfo.Columns = filter instanceof AllFilter ? columns : null;
+        nodeInfo.Bytes = nodeInfo.GoesLeft.length + (nodeInfo.Columns != null ? nodeInfo.Columns.sizeInBytes() : 0);
+        return splitsRows(nodeInfo);
+    }
+
+    /**
+     * Checks that the split of an evaluated node leaves rows on both sides; a split that does not is no split, and
+     * the node becomes a leaf instead. The tree therefore never has a split with a side without rows.
+     *
+     * @param nodeInfo the evaluated node
+     * @return true if some but not all rows go to the left
+     */
+    protected boolean splitsRows(UnexpandedNodeInfo nodeInfo) {
+
+        int numLeft = 0;
+        for (boolean left : nodeInfo.GoesLeft) {
+            if (left) {
+                numLeft++;
+            }
+        }
+        if (numLeft == 0 || numLeft == nodeInfo.GoesLeft.length) {
+            nodeInfo.Columns = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Indexes (or, for large nodes in the approximate search, bins) some rows of the given data for the split search;
+     * sparse data is indexed by its nonzero values only. Columns that are split among the children of an AllFilter
+     * node stay binned, however few rows the children have.
+     *
+     * @param data the data
+     * @param rows the rows of the data, or null for all rows
+     * @param from the first position of the range in rows
+     * @param to   the position after the last one
+     * @return the columns
+     */
+    protected SplitColumns makeColumns(Instances data, int[] rows, int from, int to) {
+
+        if (m_NumBins > 0 && to - from > m_NumBins) {
+            return new BinnedColumns(data, rows, from, to, m_NumBins);
+        }
+        //sparse data is searched without expanding it
+        if (SparseColumns.isSparse(data)) {
+            return new SparseColumns(data, rows, from, to);
+        }
+        return new ColumnIndex(data, rows, from, to, m_FloatColumns);
+    }
+
+    /**
+     * Indexes (or bins) some rows of the given column data for the split search, as for instances.
+     *
+     * @param data the data
+     * @param rows the rows of the data, or null for all rows
+     * @param from the first position of the range in rows
+     * @param to   the position after the last one
+     * @return the columns
+     */
+    protected SplitColumns makeColumns(ColumnData data, int[] rows, int from, int to) {
+
+        if (m_NumBins > 0 && to - from > m_NumBins) {
+            return new BinnedColumns(data, rows, from, to, m_NumBins);
+        }
+        return new ColumnIndex(data, rows, from, to, m_FloatColumns);
+    }
+
+    /**
+     * Copies the rows of an unexpanded node into a new set of instances, for the node's filter.
+     *
+     * @param nodeInfo the node
+     * @return the node's data
+     */
+    protected Instances nodeData(UnexpandedNodeInfo nodeInfo) {
+
+        Instances data = new Instances(m_Header, nodeInfo.numInstances());
+        for (int i = nodeInfo.From; i < nodeInfo.To; i++) {
+            data.add(trainingInstance(m_Rows[i]));
+        }
+        return data;
+    }
+
+    /**
+     * Chooses at most m_SplitSample rows of an unexpanded node for fitting its filter and searching for its split.
+     * The rows are chosen with a generator seeded from the node's seed, so the sample does not depend on the order
+     * in which nodes are built.
+     *
+     * @param nodeInfo the node, with more rows than m_SplitSample
+     * @return the sample
+     */
+    protected Instances sampleData(UnexpandedNodeInfo nodeInfo) throws Exception {
+
+        Random sampleRandom = new Random(nodeInfo.Seed);
+        if (m_SplitSampleMethod == SAMPLE_STRATIFIED) {
+            return stratifiedSample(nodeInfo, m_SplitSample, sampleRandom);
+        }
+        if (m_SplitSampleMethod == SAMPLE_HERDING) {
+            //herding looks at every pair of rows, so it chooses from a bounded uniform pool
+            Instances pool = uniformSample(nodeInfo, (int) Math.min(nodeInfo.numInstances(),
+                    (long) m_SplitSample * HERDING_POOL_FACTOR), sampleRandom);
+            if (pool.numInstances() <= m_SplitSample) {
+                return pool;
+            }
+            KernelHerding herding = (KernelHerding) Filter.makeCopy(m_Herding);
+            herding.setSeed((int) nodeInfo.Seed);
+            //herding keeps one row more than the percentage of the pool
+            herding.setSampleSizePercent(100.0 * (m_SplitSample - 1) / pool.numInstances());
+            herding.setInputFormat(pool);
+            return Filter.useFilter(pool, herding);
+        }
+        return uniformSample(nodeInfo, m_SplitSample, sampleRandom);
+    }
+
+    /**
+     * Chooses rows of a node uniformly without replacement, keeping their order (selection sampling).
+     *
+     * @param nodeInfo   the node
+     * @param sampleSize the number of rows to choose, at most the node's
+     * @param random     the generator
+     * @return the sample
+     */
+    protected Instances uniformSample(UnexpandedNodeInfo nodeInfo, int sampleSize, Random random) {
+
+        Instances sample = new Instances(m_Header, sampleSize);
+        int needed = sampleSize;
+        for (int p = nodeInfo.From; p < nodeInfo.To && needed > 0; p++) {
+            if (random.nextInt(nodeInfo.To - p) < needed) {
+                sample.add(trainingInstance(m_Rows[p]));
+                needed--;
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Chooses rows of a node without replacement so that every class has its share of the sample, the remainders
+     * going to the classes with the largest fractions.
+     *
+     * @param nodeInfo   the node
+     * @param sampleSize the number of rows to choose, at most the node's
+     * @param random     the generator
+     * @return the sample
+     */
+    protected Instances stratifiedSample(UnexpandedNodeInfo nodeInfo, int sampleSize, Random random) {
+
+        int numClasses = m_Header.numClasses();
+        int[] classCounts = new int[numClasses];
+        for (int p = nodeInfo.From; p < nodeInfo.To; p++) {
+            classCounts[(int) classValue(m_Rows[p])]++;
+        }
+        int[] quotas = new int[numClasses];
+        double[] fractions = new double[numClasses];
+        int assigned = 0;
+        for (int j = 0; j < numClasses; j++) {
+            double share = (double) sampleSize * classCounts[j] / nodeInfo.numInstances();
+            quotas[j] = (int) share;
+            fractions[j] = share - quotas[j];
+            assigned += quotas[j];
+        }
+        for (; assigned < sampleSize; assigned++) {
+            int j = Utils.maxIndex(fractions);
+            quotas[j]++;
+            fractions[j] = -1;
+        }
+        Instances sample = new Instances(m_Header, sampleSize);
+        for (int p = nodeInfo.From; p < nodeInfo.To; p++) {
+            int c = (int) classValue(m_Rows[p]);
+            if (quotas[c] > 0 && random.nextInt(classCounts[c]) < quotas[c]) {
+                sample.add(trainingInstance(m_Rows[p]));
+                quotas[c]--;
+            }
+            classCounts[c]--;
+        }
+        return sample;
+    }
 
-        // Create leaf if information gain is zero
-        // Otherwise create the splitNode.
-        if (Utils.smOrEq(infoGains[m_Attribute.index()], 0)) {
-            return makeLeaf(node);
-        } else {
-            //Split the instance and then
-            return makeSplitNode(node, m_Attribute, infoGainInfo[maxIndex], filteredData, filter);
+    /**
+     * Tells for every row of a node whether its value for the split attribute is smaller than the split value,
+     * passing the rows through the fitted filter as predictions do.
+     *
+     * @param nodeInfo   the node
+     * @param filter     the node's fitted filter
+     * @param attIndex   the split attribute, in the filtered data
+     * @param splitValue the split value
+     * @return true for the rows that go to the left, in the order of the node's range
+     */
+    protected boolean[] goesLeft(UnexpandedNodeInfo nodeInfo, Filter filter, int attIndex, double splitValue) throws Exception {
+
+        boolean[] goesLeft = new boolean[nodeInfo.numInstances()];
+        //the split node predicts with the same transform
+        FilterTransform transform = new FilterTransform(filter, attIndex, splitValue);
+        nodeInfo.Transform = transform;
+        if (transform.projection() != null) {
+            for (int p = nodeInfo.From; p < nodeInfo.To; p++) {
+                goesLeft[p - nodeInfo.From] = transform.transform(trainingInstance(m_Rows[p]), attIndex) < splitValue;
+            }
+            return goesLeft;
+        }
+        //the filter gives its output in the order of the input, taken as soon as it is available
+        Filter rowFilter = transform.acquireFilter();
+        try {
+            int next = 0;
+            Instance processed;
+            for (int p = nodeInfo.From; p < nodeInfo.To; p++) {
+                rowFilter.input(trainingInstance(m_Rows[p]));
+                while ((processed = rowFilter.output()) != null) {
+                    goesLeft[next++] = processed.value(attIndex) < splitValue;
+                }
+            }
+            rowFilter.batchFinished();
+            while ((processed = rowFilter.output()) != null) {
+                goesLeft[next++] = processed.value(attIndex) < splitValue;
+            }
+            if (next != goesLeft.length) {
+                throw new Exception("Filter " + filter.getClass().getName() + " did not pass every row through");
+            }
+        } finally {
+            transform.releaseFilter(rowFilter);
         }
+        return goesLeft;
+    }
 
+    /**
+     * @param row a row of the training data
+     * @return the row as an instance of the training data
+     */
+    protected Instance trainingInstance(int row) {
+        return m_ColumnFile != null ? m_ColumnFile.instance(row) : m_Data.instance(row);
+    }
+
+    /**
+     * @param row a row of the training data
+     * @return the class value of the row
+     */
+    protected double classValue(int row) {
+        return m_ColumnFile != null ? m_ColumnFile.value(row, m_ColumnFile.classIndex()) : m_Data.instance(row).classValue();
     }
 
 
@@ -261,84 +1308,239 @@ public class FilterTree extends RandomizableClassifier {
      */
     protected Node makeLeaf(Node node) {
 
-        Instances data = ((UnexpandedNodeInfo) node.NodeInfo).Data;
-        if (data.numInstances() == 0) {
+        UnexpandedNodeInfo nodeInfo = (UnexpandedNodeInfo) node.NodeInfo;
+        //only the root of an empty training set has no rows, splits leave rows on both sides
+        if (nodeInfo.numInstances() == 0) {
             return null;
         }
         double[] pred;
-        if (data.classAttribute().isNumeric()) {
+        if (m_Header.classAttribute().isNumeric()) {
             double sum = 0;
-            for (Instance instance : data) {
-                sum += instance.classValue();
+            for (int i = nodeInfo.From; i < nodeInfo.To; i++) {
+                sum += classValue(m_Rows[i]);
             }
             pred = new double[1];
-            pred[0] = sum / (double) data.numInstances();
+            pred[0] = sum / (double) nodeInfo.numInstances();
         } else {
-            pred = new double[data.numClasses()];
-            for (Instance instance : data) {
-                pred[(int) instance.classValue()]++;
+            pred = new double[m_Header.numClasses()];
+            for (int i = nodeInfo.From; i < nodeInfo.To; i++) {
+                pred[(int) classValue(m_Rows[i])]++;
             }
             //normalize would change [n, m] to [1,0]
 //            Utils.normalize(pred);
         }
         node.NodeInfo = new LeafNodeInfo(pred);
+        if (m_Listener != null) {
+            m_Listener.nodeBuilt(new NodeBuildEvent(nodeInfo.Depth, nodeInfo.numInstances(), -1, 0,
+                    nodeInfo.FilterNanos, nodeInfo.SearchNanos, 0));
+        }
         return node;
     }
 
     /**
-     * Method that makes the given node into a leaf node by replacing the node information.
-     * It uses the recursive method to get the children tree or leaf (nodes).
+     * Method that makes the given node into a split node by replacing the node information, using the split found
+     * by evaluateNode(). The rows of the node are partitioned between two new unexpanded children.
      *
      * @param node the node to turn into a split node
-     * @return the Split node
+     * @return the two unexpanded children, both with rows
      */
-    protected Node makeSplitNode(Node node, Attribute splitAttribute, SplitInfo splitInfo, Instances filteredData, Filter filter) throws Exception {
+    protected Node[] expandNode(Node node) {
 
-        Instances data = ((UnexpandedNodeInfo) node.NodeInfo).Data;
+        UnexpandedNodeInfo nodeInfo = (UnexpandedNodeInfo) node.NodeInfo;
+        long seed = nodeInfo.Seed;
+        boolean[] goesLeft = nodeInfo.GoesLeft;
+        long start = m_Listener != null ? System.nanoTime() : 0;
 
         Node[] childrenNode = new Node[2];
-        double splitValue = splitInfo.splitValue;
-        Instances[] subsets = new Instances[2];
-        subsets[0] = new Instances(data, data.numInstances());
-        subsets[1] = new Instances(data, data.numInstances());
-
-        for (int i = 0; i < filteredData.numInstances(); i++) {
-            if (filteredData.get(i).value(splitAttribute) < splitValue) {
-                subsets[0].add(data.get(i));
+        //children of an AllFilter node see the same attributes, so they inherit the sorted order (or the bins,
+        //also when they have no more rows than -num-bins, as a distributed build has to keep them)
+        SplitColumns[] childColumns = new SplitColumns[2];
+        if (nodeInfo.Columns != null) {
+            childColumns = nodeInfo.Columns.split(goesLeft);
+        }
+        //the children's rows are the two halves of the node's range
+        int middle = partitionRows(nodeInfo.From, nodeInfo.To, goesLeft);
+        childrenNode[0] = new Node(new UnexpandedNodeInfo(nodeInfo.From, middle, childSeed(seed, 0), nodeInfo.Depth + 1, childColumns[0]));
+        childrenNode[1] = new Node(new UnexpandedNodeInfo(middle, nodeInfo.To, childSeed(seed, 1), nodeInfo.Depth + 1, childColumns[1]));
+        SplitNodeInfo splitNodeInfo = new SplitNodeInfo(nodeInfo.SplitAttribute, nodeInfo.Split.splitValue, childrenNode[0], childrenNode[1], nodeInfo.SplitFilter);
+        splitNodeInfo.m_Transform = nodeInfo.Transform;
+        node.NodeInfo = splitNodeInfo;
+        if (m_Listener != null) {
+            m_Listener.nodeBuilt(new NodeBuildEvent(nodeInfo.Depth, nodeInfo.numInstances(), nodeInfo.SplitAttribute.index(),
+                    nodeInfo.Split.entropy, nodeInfo.FilterNanos, nodeInfo.SearchNanos, System.nanoTime() - start));
+        }
+        return childrenNode;
+    }
+
+    /**
+     * Method that makes the given node into a split node by replacing the node information.
+     * It uses the recursive method to get the children tree or leaf (nodes).
+     *
+     * @param node the node to turn into a split node, evaluated by evaluateNode()
+     * @return the Split node
+     */
+    protected Node makeSplitNode(Node node) throws Exception {
+
+        Node[] childrenNode = expandNode(node);
+        SplitNodeInfo splitNodeInfo = (SplitNodeInfo) node.NodeInfo;
+
+        //build the left subtree in another task if it is big enough to be worth it
+        if (m_Pool != null
+                && (long) ((UnexpandedNodeInfo) childrenNode[0].NodeInfo).numInstances() * m_Header.numAttributes() >= MIN_PARALLEL_WORK) {
+            SubtreeTask leftTask = new SubtreeTask(childrenNode[0]);
+            leftTask.fork();
+            splitNodeInfo.Right = makeTree(childrenNode[1]);
+            splitNodeInfo.Left = leftTask.join();
+        } else {
+            splitNodeInfo.Left = makeTree(childrenNode[0]);
+            splitNodeInfo.Right = makeTree(childrenNode[1]);
+        }
+        return node;
+    }
+
+    /**
+     * Reorders a range of m_Rows so that the rows going to the left come first, keeping the relative order of the
+     * rows on each side.
+     *
+     * @param from     the first position of the range
+     * @param to       the position after the last one
+     * @param goesLeft true for the rows that go to the left, in the order of the range
+     * @return the position of the first row going to the right
+     */
+    protected int partitionRows(int from, int to, boolean[] goesLeft) {
+
+        int[] right = new int[to - from];
+        int l = from;
+        int r = 0;
+        for (int i = from; i < to; i++) {
+            if (goesLeft[i - from]) {
+                m_Rows[l++] = m_Rows[i];
             } else {
-                subsets[1].add(data.get(i));
+                right[r++] = m_Rows[i];
             }
         }
+        System.arraycopy(right, 0, m_Rows, l, r);
+        return l;
+    }
 
-        childrenNode[0] = new Node(new UnexpandedNodeInfo(subsets[0]));
-        childrenNode[1] = new Node(new UnexpandedNodeInfo(subsets[1]));
+    /**
+     * Derives the seed of a child node from the seed of its parent, so that every node's seed only depends on its
+     * path from the root.
+     *
+     * @param seed the seed of the parent
+     * @param side 0 for the left child, 1 for the right child
+     * @return the seed of the child
+     */
+    protected static long childSeed(long seed, int side) {
 
-        node.NodeInfo = new SplitNodeInfo(splitAttribute, splitValue, makeTree(childrenNode[0]), makeTree(childrenNode[1]), filter);
-        //reduce memory cost
-        data = null;
-        filteredData = null;
-        return node;
+        //SplitMix64 finalizer
+        long z = seed + (side + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Task building the subtree of an unexpanded node.
+     */
+    protected class SubtreeTask extends RecursiveTask<Node> {
+
+        protected Node Node;
+
+        public SubtreeTask(Node node) {
+            Node = node;
+        }
+
+        @Override
+        protected Node compute() {
+            try {
+                return makeTree(Node);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+
+    /**
+     * Computes the split information of every attribute of a node's filtered data, in parallel if the build runs
+     * with more than one thread.
+     *
+     * @param columns      the columns of the filtered data
+     * @param filteredData the filtered data
+     * @param scanner      the split scanner, reset for the data
+     * @param infoGainInfo the array to store the split information in, indexed by attribute
+     */
+    protected void evaluateAttributes(SplitColumns columns, Instances filteredData, SplitScanner scanner, SplitInfo[] infoGainInfo) {
+
+        AttributeEvaluationTask task = new AttributeEvaluationTask(columns, filteredData, scanner, infoGainInfo, 0, filteredData.numAttributes());
+        if (m_Pool == null) {
+            task.compute();
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            m_Pool.invoke(task);
+        }
     }
 
+    /**
+     * Task evaluating a range of attributes of a node's filtered data. Ranges are halved until they are too small
+     * to be worth another thread; each piece uses its own copy of the node's split scanner.
+     */
+    protected class AttributeEvaluationTask extends RecursiveAction {
+
+        protected SplitColumns Columns;
+        protected Instances FilteredData;
+        protected SplitScanner Scanner;
+        protected SplitInfo[] Results;
+        // The range of attribute indices to evaluate
+        protected int From;
+        protected int To;
+
+        public AttributeEvaluationTask(SplitColumns columns, Instances filteredData, SplitScanner scanner, SplitInfo[] results, int from, int to) {
+            Columns = columns;
+            FilteredData = filteredData;
+            Scanner = scanner;
+            Results = results;
+            From = from;
+            To = to;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (m_Pool == null || To - From <= 1 || (long) (To - From) * Columns.numRows() < MIN_PARALLEL_WORK) {
+                SplitScanner scanner = m_Pool == null ? Scanner : new SplitScanner(Scanner);
+                for (int i = From; i < To; i++) {
+                    if (i != FilteredData.classIndex()) {
+                        Results[i] = computeInfoGain(Columns, FilteredData.attribute(i), scanner);
+                    }
+                }
+            } else {
+                int middle = (From + To) >>> 1;
+                invokeAll(new AttributeEvaluationTask(Columns, FilteredData, Scanner, Results, From, middle),
+                        new AttributeEvaluationTask(Columns, FilteredData, Scanner, Results, middle, To));
+            }
+        }
+    }
 
     /**
      * Computes information gain for an attribute.
      *
-     * @param data the data for which info gain is to be computed
-     * @param att  the attribute
+     * @param columns the columns of the data for which info gain is to be computed
+     * @param att     the attribute
+     * @param scanner the split scanner, reset for the data
      * @return the information gain for the given attribute and data
-     * @throws Exception if computation fails
      */
-    private SplitInfo computeInfoGain(Instances data, Attribute att) throws Exception {
+    private SplitInfo computeInfoGain(SplitColumns columns, Attribute att, SplitScanner scanner) {
 
-        double infoGain = computeEntropy(data);
-        if (Utils.smOrEq(infoGain, 0.0)) {
+        if (Utils.smOrEq(scanner.parentEntropy(), 0.0)) {
             return new SplitInfo(0, 0);
         }
 //        SplitInfo splitInfo = computeSplitValue(data, att);
 //        infoGain -= splitInfo.entropy;
 //        splitInfo.entropy = infoGain;
-        return computeSplitValue(data, att, infoGain);
+        return computeSplitValue(columns, att, scanner);
     }
 
 
@@ -399,137 +1601,551 @@ public class FilterTree extends RandomizableClassifier {
 //    }
 
     /**
-     * Computes the best split points of a dataset. (distinct value)
+     * Computes the best split points of a dataset. (distinct value, or bin boundary in the approximate search)
+     * The data is visited in the presorted order kept by the column index, so nothing is copied or sorted here.
      *
-     * @param unSortData the instance data for which entropy is to be computed
+     * @param columns the columns of the data for which entropy is to be computed
+     * @param scanner the split scanner, reset for the data
      * @return the value of Max infoGain in the data's class distribution and the infoGain
-     * @throws Exception if computation fails
      */
-    private SplitInfo computeSplitValue(Instances unSortData, Attribute attribute, double originalEntropy) throws Exception {
-        //make a copy
-        Instances data = new Instances(unSortData);
-        //sort it
-        data.sort(attribute);
+    private SplitInfo computeSplitValue(SplitColumns columns, Attribute attribute, SplitScanner scanner) {
 
-        //storage info
-        double[] entropy = new double[data.numInstances() - 1];
-        double splitValue;
-        double valuePoint;
-        double currentAttributeValue;
-        double[] left;
-        double[] right;
-        int splitIndex;
-        int insCount = data.numInstances();
-        int currentClassValue;
-
-        //initialization
-        valuePoint = data.get(0).value(attribute);
-        right = classList(data);
-        left = new double[right.length];
-
-        //first time, must run!!!
-        //here is very risky!
-        currentClassValue = (int) data.get(0).classValue();
-        left[currentClassValue]++;
-        right[currentClassValue]--;
-
-        //here is the index problem
-        for (int i = 1; i < insCount; i++) {
-            currentClassValue = (int) data.get(i).classValue();
-            currentAttributeValue = data.get(i).value(attribute);
-            //if the current value is not change, set the infoGain to 0
-            if (currentAttributeValue == valuePoint) {
-                left[currentClassValue]++;
-                right[currentClassValue]--;
-                entropy[i - 1] = 0.0;
-            } else {
-                // compute the entropy
-                valuePoint = currentAttributeValue;
-                entropy[i - 1] = originalEntropy
-                        - computeEntropy(left) * (i) / insCount
-                        - computeEntropy(right) * (insCount - i) / insCount;
-                //then update the class
-                left[currentClassValue]++;
-                right[currentClassValue]--;
+        double infoGain = columns.scan(attribute.index(), scanner);
+        return new SplitInfo(scanner.splitValue(), infoGain);
+    }
+
+
+    /**
+     * A node of a distributed build whose split has not been found yet.
+     */
+    protected class DistributedNode {
+
+        // The node of the tree
+        protected Node Node = new Node(null);
+        // The id of the node on the workers
+        protected int Id;
+        protected int Depth;
+        // The class counts of the node's rows, and of every bin of every attribute (null for the class)
+        protected int[] ClassCounts;
+        protected int[][] Histograms;
+        // For the larger child of a split, the parent and the smaller child, whose histograms give this node's
+        protected DistributedNode Parent;
+        protected DistributedNode Sibling;
+
+        public DistributedNode(int id, int depth) {
+            Id = id;
+            Depth = depth;
+        }
+    }
+
+    /**
+     * Builds the tree from the shards of the training data held by HistogramWorkers, as a local build with an
+     * AllFilter and the same number of bins would build it from the shards one after another. The workers bin their
+     * rows with cuts taken from the same sample as the local build, and the tree is then grown one level at a time:
+     * the workers count the classes of every bin for the nodes of the level, and the coordinator adds up the
+     * counts, finds the splits and tells the workers how to move their rows. As in BinnedColumns, only the smaller
+     * child of a split is counted; the larger child's histograms are its parent's minus its sibling's.
+     *
+     * @param instances the header of the training data
+     * @throws Exception if the workers fail or hold data that does not match the header
+     */
+    protected void buildDistributed(Instances instances) throws Exception {
+
+        if (!(getFilter() instanceof AllFilter) || m_NumBins <= 0) {
+            throw new Exception("A distributed build needs an AllFilter and -num-bins.");
+        }
+        if (m_MaxLeaves > 0 || m_MaxBytes > 0 || m_TimeBudget > 0) {
+            throw new Exception("A distributed build supports no limits but -max-depth.");
+        }
+        if (m_Pruning == PRUNE_REDUCED_ERROR) {
+            throw new Exception("Reduced-error pruning needs the training rows, a distributed build can only use"
+                    + " cost-complexity pruning.");
+        }
+        m_FlatTree = null;
+        m_Header = new Instances(instances, 0);
+        m_BuildMetrics = null;
+        String[] addresses = m_Workers.split(",");
+        WorkerConnection[] workers = new WorkerConnection[addresses.length];
+        try {
+            for (int w = 0; w < workers.length; w++) {
+                workers[w] = new WorkerConnection(addresses[w].trim());
+            }
+            RootNode = makeTreeDistributed(workers);
+            m_SizeBeforePruning = null;
+            m_SizeAfterPruning = null;
+            if (m_Pruning == PRUNE_COST_COMPLEXITY) {
+                pruneTree(null);
+            }
+        } finally {
+            m_NLogN = null;
+            m_Log2 = null;
+            for (WorkerConnection worker : workers) {
+                if (worker != null) {
+                    worker.close();
+                }
+            }
+        }
+        if (m_Compile) {
+            m_FlatTree = compileTree();
+        }
+    }
+
+    /**
+     * Grows the tree of a distributed build.
+     *
+     * @param workers the connections to the workers, in the order of their shards
+     * @return the root of the built tree
+     */
+    protected Node makeTreeDistributed(WorkerConnection[] workers) throws Exception {
+
+        int numAttributes = m_Header.numAttributes();
+        int classIndex = m_Header.classIndex();
+        int[] offsets = new int[workers.length + 1];
+        for (WorkerConnection worker : workers) {
+            worker.sendInfo();
+        }
+        for (int w = 0; w < workers.length; w++) {
+            int[] info = workers[w].readInfo();
+            if (info[1] != numAttributes || info[2] != m_Header.numClasses() || info[3] != classIndex) {
+                throw new Exception("The data of worker " + (w + 1) + " does not match the header.");
+            }
+            offsets[w + 1] = offsets[w] + info[0];
+        }
+        int numRows = offsets[workers.length];
+        m_NLogN = SplitScanner.nLogNTable(numRows);
+        m_Log2 = SplitScanner.log2Table(numRows);
+
+        //every worker sends the values of the sample rows in its shard
+        int sampleSize = BinnedColumns.sampleSize(numRows, m_NumBins);
+        double[][] sample = new double[numAttributes][];
+        for (int a = 0; a < numAttributes; a++) {
+            if (a != classIndex) {
+                sample[a] = new double[sampleSize];
+            }
+        }
+        int[] firstSample = new int[workers.length + 1];
+        for (int w = 0; w < workers.length; w++) {
+            int i = firstSample[w];
+            while (i < sampleSize && BinnedColumns.samplePosition(i, numRows, sampleSize) < offsets[w + 1]) {
+                i++;
+            }
+            firstSample[w + 1] = i;
+            int[] rows = new int[i - firstSample[w]];
+            for (int j = 0; j < rows.length; j++) {
+                rows[j] = BinnedColumns.samplePosition(firstSample[w] + j, numRows, sampleSize) - offsets[w];
+            }
+            workers[w].sendSample(rows);
+        }
+        for (int w = 0; w < workers.length; w++) {
+            workers[w].readSample(sample, firstSample[w], firstSample[w + 1] - firstSample[w]);
+        }
+        double[][] cuts = new double[numAttributes][];
+        for (int a = 0; a < numAttributes; a++) {
+            if (a != classIndex) {
+                cuts[a] = BinnedColumns.cutsOfSample(sample[a], m_NumBins);
+            }
+        }
+        for (WorkerConnection worker : workers) {
+            worker.sendCuts(cuts);
+        }
+        for (WorkerConnection worker : workers) {
+            worker.readDone();
+        }
+
+        long histogramValues = m_Header.numClasses();
+        for (double[] attCuts : cuts) {
+            if (attCuts != null) {
+                histogramValues += (attCuts.length + 1L) * m_Header.numClasses();
+            }
+        }
+        int maxNodesPerRequest = (int) Math.max(1, MAX_DISTRIBUTED_HISTOGRAM_VALUES / histogramValues);
+        DistributedNode root = new DistributedNode(0, 0);
+        int numNodes = 1;
+        List<DistributedNode> level = new ArrayList<DistributedNode>();
+        level.add(root);
+        while (!level.isEmpty()) {
+            List<DistributedNode> nextLevel = new ArrayList<DistributedNode>();
+            List<int[]> splits = new ArrayList<int[]>();
+            //the histograms kept for deriving those of the next level
+            long keptValues = 0;
+            //nodes derived from a sibling come right after it, and are found once the sibling is counted
+            List<DistributedNode> counted = new ArrayList<DistributedNode>();
+            for (DistributedNode node : level) {
+                if (node.Parent == null) {
+                    counted.add(node);
+                }
+            }
+            for (int from = 0; from < counted.size(); from += maxNodesPerRequest) {
+                List<DistributedNode> request = counted.subList(from, Math.min(from + maxNodesPerRequest, counted.size()));
+                countHistograms(workers, request, cuts);
+                for (DistributedNode node : request) {
+                    List<DistributedNode> pair = new ArrayList<DistributedNode>();
+                    pair.add(node);
+                    if (node.Sibling != null) {
+                        pair.add(deriveHistograms(node.Sibling));
+                    }
+                    for (DistributedNode pairNode : pair) {
+                        int[] split = findDistributedSplit(pairNode, cuts);
+                        if (split == null) {
+                            continue;
+                        }
+                        DistributedNode left = new DistributedNode(numNodes++, pairNode.Depth + 1);
+                        DistributedNode right = new DistributedNode(numNodes++, pairNode.Depth + 1);
+                        Filter filter = Filter.makeCopy(getFilter());
+                        filter.setInputFormat(m_Header);
+                        pairNode.Node.NodeInfo = new SplitNodeInfo(m_Header.attribute(split[0]), cuts[split[0]][split[1]],
+                                left.Node, right.Node, filter);
+                        splits.add(new int[]{pairNode.Id, split[0], split[1], left.Id, right.Id});
+                        //the smaller child is counted, the larger one derived while there is room to keep the parent's
+                        if (keptValues + histogramValues <= MAX_DISTRIBUTED_HISTOGRAM_VALUES) {
+                            keptValues += histogramValues;
+                            DistributedNode smaller = split[2] <= split[3] ? left : right;
+                            DistributedNode larger = smaller == left ? right : left;
+                            smaller.Sibling = larger;
+                            larger.Parent = pairNode;
+                            larger.Sibling = smaller;
+                        } else {
+                            pairNode.Histograms = null;
+                        }
+                        nextLevel.add(left);
+                        nextLevel.add(right);
+                    }
+                }
+            }
+            if (!splits.isEmpty()) {
+                int[][] levelSplits = splits.toArray(new int[splits.size()][]);
+                for (WorkerConnection worker : workers) {
+                    worker.sendSplits(levelSplits);
+                }
+                for (WorkerConnection worker : workers) {
+                    worker.readDone();
+                }
+            }
+            level = nextLevel;
+        }
+        return root.Node;
+    }
+
+    /**
+     * Asks every worker for the histograms of some nodes and adds them up.
+     *
+     * @param workers the connections to the workers
+     * @param nodes   the nodes
+     * @param cuts    the cuts of every attribute, null for the class
+     */
+    protected void countHistograms(WorkerConnection[] workers, List<DistributedNode> nodes, double[][] cuts) throws Exception {
+
+        int numClasses = m_Header.numClasses();
+        int[] ids = new int[nodes.size()];
+        int[][] classCounts = new int[nodes.size()][];
+        int[][][] histograms = new int[nodes.size()][][];
+        for (int n = 0; n < ids.length; n++) {
+            DistributedNode node = nodes.get(n);
+            ids[n] = node.Id;
+            node.ClassCounts = classCounts[n] = new int[numClasses];
+            node.Histograms = histograms[n] = new int[cuts.length][];
+            for (int a = 0; a < cuts.length; a++) {
+                if (cuts[a] != null) {
+                    node.Histograms[a] = new int[(cuts[a].length + 1) * numClasses];
+                }
+            }
+        }
+        for (WorkerConnection worker : workers) {
+            worker.sendHistograms(ids);
+        }
+        for (WorkerConnection worker : workers) {
+            worker.addHistograms(classCounts, histograms);
+        }
+    }
+
+    /**
+     * Takes the histograms of the larger child of a split from its parent's and its sibling's, and lets go of the
+     * parent's.
+     *
+     * @param node the larger child
+     * @return the node
+     */
+    protected DistributedNode deriveHistograms(DistributedNode node) {
+
+        DistributedNode parent = node.Parent;
+        DistributedNode sibling = node.Sibling;
+        node.ClassCounts = new int[parent.ClassCounts.length];
+        for (int j = 0; j < node.ClassCounts.length; j++) {
+            node.ClassCounts[j] = parent.ClassCounts[j] - sibling.ClassCounts[j];
+        }
+        node.Histograms = new int[parent.Histograms.length][];
+        for (int a = 0; a < node.Histograms.length; a++) {
+            if (parent.Histograms[a] == null) {
+                continue;
+            }
+            node.Histograms[a] = new int[parent.Histograms[a].length];
+            for (int i = 0; i < node.Histograms[a].length; i++) {
+                node.Histograms[a][i] = parent.Histograms[a][i] - sibling.Histograms[a][i];
             }
         }
-        //get the max value
-        splitIndex = Utils.maxIndex(entropy);
-        //check the split point
-        splitValue = (data.get(splitIndex).value(attribute) + data.get(splitIndex + 1).value(attribute)) / 2;
+        parent.Histograms = null;
+        node.Parent = null;
+        return node;
+    }
+
+    /**
+     * Finds the split of a node of a distributed build from its histograms, as evaluateNode() would for binned
+     * columns, or makes the node a leaf. The node's histograms are let go of unless the node is split.
+     *
+     * @param node the node
+     * @param cuts the cuts of every attribute, null for the class
+     * @return the attribute, the cut and the number of rows on the left and on the right of the split, or null for
+     * a leaf
+     */
+    protected int[] findDistributedSplit(DistributedNode node, double[][] cuts) {
 
-        //reduce memory cost
-        data = null;
-        //return the final result
-        return new SplitInfo(splitValue, entropy[splitIndex]);
+        int numRows = 0;
+        for (int count : node.ClassCounts) {
+            numRows += count;
+        }
+        int[][] histograms = node.Histograms;
+        node.Histograms = null;
+        double[] leaf = new double[node.ClassCounts.length];
+        for (int j = 0; j < leaf.length; j++) {
+            leaf[j] = node.ClassCounts[j];
+        }
+        if (Utils.smOrEq(numRows, m_Threshold) || (m_MaxDepth > 0 && node.Depth >= m_MaxDepth)) {
+            node.Node.NodeInfo = new LeafNodeInfo(leaf);
+            return null;
+        }
+        SplitScanner scanner = new SplitScanner(m_NLogN, m_Log2, node.ClassCounts.length);
+        scanner.reset(node.ClassCounts);
+        double[] infoGains = new double[cuts.length];
+        double[] splitValues = new double[cuts.length];
+        for (int a = 0; a < cuts.length; a++) {
+            if (cuts[a] != null) {
+                infoGains[a] = scanner.scanBins(histograms[a], cuts[a]);
+                splitValues[a] = scanner.splitValue();
+            }
+        }
+        int maxIndex = Utils.maxIndex(infoGains);
+        if (Utils.smOrEq(infoGains[maxIndex], 0)) {
+            node.Node.NodeInfo = new LeafNodeInfo(leaf);
+            return null;
+        }
+        //a value is smaller than cut k exactly if its bin is at most k
+        int cut = Arrays.binarySearch(cuts[maxIndex], splitValues[maxIndex]);
+        int numLeft = 0;
+        for (int i = 0; i < (cut + 1) * node.ClassCounts.length; i++) {
+            numLeft += histograms[maxIndex][i];
+        }
+        node.Histograms = histograms;
+        return new int[]{maxIndex, cut, numLeft, numRows - numLeft};
     }
 
+    /**
+     * @return the tree compiled into flat arrays
+     */
+    protected FlatTree compileTree() {
+
+        FlatTree flatTree = new FlatTree(m_Header.numClasses());
+        compileTree(flatTree, RootNode);
+        flatTree.trim();
+        return flatTree;
+    }
 
     /**
-     * Computes the entropy of a dataset.
+     * Saves the built tree in a compact binary format that MappedTree.load() memory-maps for prediction. Only the
+     * node arrays and leaf counts are saved, and for each filtering node the linear projection of its split
+     * attribute if it is one, otherwise its serialized filter.
      *
-     * @param data the data for which entropy is to be computed
-     * @return the entropy of the data's class distribution
-     * @throws Exception if computation fails
+     * @param file        the file to write
+     * @param withFilters whether to save the filters of the nodes with a linear projection too, for predictions
+     *                    that match the tree's exactly on split values
      */
-    private double computeEntropy(Instances data) throws Exception {
+    public void exportBinary(File file, boolean withFilters) throws Exception {
 
-        double[] classCounts = new double[data.numClasses()];
-        Enumeration instEnum = data.enumerateInstances();
-        while (instEnum.hasMoreElements()) {
-            Instance inst = (Instance) instEnum.nextElement();
-            classCounts[(int) inst.classValue()]++;
+        if (RootNode == null) {
+            throw new IllegalStateException("The tree has not been built");
         }
-        double entropy = 0;
-        for (int j = 0; j < data.numClasses(); j++) {
-            if (classCounts[j] > 0) {
-                entropy -= classCounts[j] * Utils.log2(classCounts[j]);
+        FlatTree flatTree = m_FlatTree != null ? m_FlatTree : compileTree();
+        flatTree.write(file, m_Header.numAttributes(), m_Header.classIndex(), withFilters);
+    }
+
+    /**
+     * Holds out a fraction of the training rows for reduced-error pruning, chosen uniformly without changing the
+     * order of the remaining rows in m_Rows.
+     *
+     * @param random the generator
+     * @return the held out rows, at least one unless there are fewer than two rows
+     */
+    protected Instances holdOut(Random random) {
+
+        int numRows = m_Rows.length;
+        int numHeldOut = numRows < 2 ? 0 : Math.max(1, Math.min(numRows - 1, (int) Math.round(numRows * m_PruneHoldout)));
+        Instances holdout = new Instances(m_Header, numHeldOut);
+        int[] kept = new int[numRows - numHeldOut];
+        int k = 0;
+        for (int p = 0; p < numRows; p++) {
+            if (random.nextInt(numRows - p) < numHeldOut - holdout.numInstances()) {
+                holdout.add(trainingInstance(m_Rows[p]));
+            } else {
+                kept[k++] = m_Rows[p];
             }
         }
-        entropy /= data.numInstances();
-        return entropy + Utils.log2(data.numInstances());
+        m_Rows = kept;
+        return holdout;
     }
 
+    /**
+     * Prunes the built tree bottom up, and keeps its size before and after for toString().
+     *
+     * @param holdout the rows held out for reduced-error pruning, null to prune by the training counts of the leaves
+     */
+    protected void pruneTree(Instances holdout) throws Exception {
+
+        m_SizeBeforePruning = measureTree();
+        int[] rows = null;
+        if (holdout != null) {
+            rows = new int[holdout.numInstances()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = i;
+            }
+        }
+        pruneSubtree(RootNode, new double[m_Header.numClasses()], holdout, rows);
+        m_SizeAfterPruning = measureTree();
+    }
 
     /**
-     * Computes the entropy of a dataset.
+     * Prunes the subtree attached to the given node bottom up. A split node whose children have been pruned becomes
+     * a leaf if the leaf would make no more errors than the subtree plus m_SplitCost for each of the subtree's split
+     * nodes. Errors are counted on the held out rows reaching the node, or else on the training counts of the
+     * leaves.
      *
-     * @param classCounts the classCounts[] for which entropy is to be computed
-     * @return the entropy of the data's class distribution
-     * @throws Exception if computation fails
+     * @param node     the node
+     * @param counts   the class counts to add the training counts of the subtree to
+     * @param holdout  the held out rows, or null
+     * @param rows     the rows of holdout that reach the node, null without holdout
+     * @return the errors of the pruned subtree plus the cost of its split nodes
+     */
+    protected double pruneSubtree(Node node, double[] counts, Instances holdout, int[] rows) throws Exception {
+
+        if (node.NodeInfo instanceof LeafNodeInfo) {
+            double[] prediction = ((LeafNodeInfo) node.NodeInfo).Prediction;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += prediction[i];
+            }
+            return errors(prediction, holdout, rows);
+        }
+        SplitNodeInfo splitInfo = (SplitNodeInfo) node.NodeInfo;
+        int[] left = null;
+        int[] right = null;
+        if (holdout != null) {
+            double[] values = rows.length > 0 ? splitValues(splitInfo, holdout, rows) : new double[0];
+            int numLeft = 0;
+            for (double value : values) {
+                if (value < splitInfo.SplitValue) {
+                    numLeft++;
+                }
+            }
+            left = new int[numLeft];
+            right = new int[rows.length - numLeft];
+            int l = 0;
+            int r = 0;
+            for (int i = 0; i < rows.length; i++) {
+                if (values[i] < splitInfo.SplitValue) {
+                    left[l++] = rows[i];
+                } else {
+                    right[r++] = rows[i];
+                }
+            }
+        }
+        double[] subtreeCounts = new double[counts.length];
+        double cost = m_SplitCost + pruneSubtree(splitInfo.Left, subtreeCounts, holdout, left)
+                + pruneSubtree(splitInfo.Right, subtreeCounts, holdout, right);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += subtreeCounts[i];
+        }
+        //the leaf predicts from the training counts of the whole subtree
+        double leafErrors = errors(subtreeCounts, holdout, rows);
+        if (leafErrors <= cost) {
+            node.NodeInfo = new LeafNodeInfo(subtreeCounts);
+            return leafErrors;
+        }
+        return cost;
+    }
+
+    /**
+     * Counts the errors of a leaf.
+     *
+     * @param prediction the class counts of the leaf
+     * @param holdout    the held out rows, or null for the errors on the training rows
+     * @param rows       the rows of holdout that reach the leaf
+     * @return the number of rows whose class is not the one the leaf predicts
      */
-    private double computeEntropy(double[] classCounts) throws Exception {
+    protected static double errors(double[] prediction, Instances holdout, int[] rows) {
 
-        double entropy = 0;
-        for (int j = 0; j < classCounts.length; j++) {
-            if (classCounts[j] > 0) {
-                entropy -= classCounts[j] * Utils.log2(classCounts[j]);
+        int predicted = Utils.maxIndex(prediction);
+        if (holdout == null) {
+            return Utils.sum(prediction) - prediction[predicted];
+        }
+        int errors = 0;
+        for (int row : rows) {
+            if ((int) holdout.instance(row).classValue() != predicted) {
+                errors++;
             }
         }
-        double totalNum = 0;
-        for (double num : classCounts) {
-            totalNum += num;
+        return errors;
+    }
+
+    /**
+     * @return the number of nodes, the number of split nodes with a filter and the average path length of the
+     * training rows, from the counts of the leaves
+     */
+    protected double[] measureTree() {
+
+        double[] size = new double[4];
+        measureSubtree(RootNode, 0, size);
+        return new double[]{size[0], size[1], size[3] > 0 ? size[2] / size[3] : 0};
+    }
+
+    /**
+     * Adds the size of a subtree to the sums of the number of nodes, split nodes with a filter, depths of the
+     * training rows and training rows.
+     */
+    protected void measureSubtree(Node node, int depth, double[] size) {
+
+        size[0]++;
+        if (node.NodeInfo instanceof LeafNodeInfo) {
+            double rows = Utils.sum(((LeafNodeInfo) node.NodeInfo).Prediction);
+            size[2] += rows * depth;
+            size[3] += rows;
+            return;
+        }
+        SplitNodeInfo splitInfo = (SplitNodeInfo) node.NodeInfo;
+        if (!(splitInfo.SplitFilter instanceof AllFilter)) {
+            size[1]++;
         }
-        entropy /= totalNum;
-        return entropy + Utils.log2(totalNum);
+        measureSubtree(splitInfo.Left, depth + 1, size);
+        measureSubtree(splitInfo.Right, depth + 1, size);
     }
 
     /**
-     * Get the class List
+     * Adds the subtree attached to the given node to a flat tree, in depth first order so that a left child
+     * follows its parent.
      *
-     * @param data the data input to get the class
-     * @return classCounts the double[] that contains the class data
-     * @throws Exception if processing fails
+     * @param flatTree the flat tree
+     * @param node     the node
+     * @return the index of the node in the flat tree
      */
-    private double[] classList(Instances data) throws Exception {
+    protected int compileTree(FlatTree flatTree, Node node) {
 
-        double[] classCounts = new double[data.numClasses()];
-        Enumeration instEnum = data.enumerateInstances();
-        while (instEnum.hasMoreElements()) {
-            Instance inst = (Instance) instEnum.nextElement();
-            classCounts[(int) inst.classValue()]++;
+        if (node.NodeInfo instanceof LeafNodeInfo) {
+            return flatTree.addLeaf(((LeafNodeInfo) node.NodeInfo).Prediction);
         }
-        return classCounts;
+        SplitNodeInfo splitInfo = (SplitNodeInfo) node.NodeInfo;
+        //an AllFilter leaves the instance as it is, so the node reads the attribute directly
+        int index = flatTree.addSplit(splitInfo.SplitAttribute.index(), splitInfo.SplitValue,
+                splitInfo.SplitFilter instanceof AllFilter ? null : splitInfo.transform());
+        int left = compileTree(flatTree, splitInfo.Left);
+        int right = compileTree(flatTree, splitInfo.Right);
+        flatTree.setChildren(index, left, right);
+        return index;
     }
 
     /**
@@ -550,11 +2166,15 @@ public class FilterTree extends RandomizableClassifier {
         } else {
             //if it is the split point, useF nodeFilter to filter the instance
             SplitNodeInfo splitInfo = (SplitNodeInfo) node.NodeInfo;
-            Filter filter = ((SplitNodeInfo) node.NodeInfo).SplitFilter;
-            filter.input(instance);
-            Instance filteredInstance = filter.output();
+            double value;
+            if (splitInfo.SplitFilter instanceof AllFilter) {
+                value = instance.value(splitInfo.SplitAttribute.index());
+            } else {
+                //a copy of the filter of its own, so that several threads can use the tree
+                value = splitInfo.transform().transform(instance, splitInfo.SplitAttribute.index());
+            }
             //check the split value to get the direction to next node
-            if (filteredInstance.value(splitInfo.SplitAttribute) < splitInfo.SplitValue) {
+            if (value < splitInfo.SplitValue) {
                 distributionForInstance(distribution, instance, splitInfo.Left);
             } else {
                 distributionForInstance(distribution, instance, splitInfo.Right);
@@ -575,7 +2195,11 @@ public class FilterTree extends RandomizableClassifier {
 
         double[] distribution = new double[instance.numClasses()];
 
-        distributionForInstance(distribution, instance, RootNode);
+        if (m_FlatTree != null) {
+            m_FlatTree.distributionForInstance(distribution, instance);
+        } else {
+            distributionForInstance(distribution, instance, RootNode);
+        }
 
         if (instance.classAttribute().isNominal()) {
             Utils.normalize(distribution);
@@ -586,25 +2210,128 @@ public class FilterTree extends RandomizableClassifier {
 
 
     /**
-     * Method that updates the given estimates based on the given instance and the subtree attached to the given node.
+     * Method that updates the given estimates based on the given instances and the tree.
      *
      * @param distribution the estimates to be updated
      * @param instances    the instances for which estimates are to be updated
      */
     protected void distributionForInstance(double[][] distribution, Instances instances) throws Exception {
 
-        //if it is the split point, use nodeFilter to filter the instance
-        SplitNodeInfo splitInfo = (SplitNodeInfo) RootNode.NodeInfo;
-        Filter filter = ((SplitNodeInfo) RootNode.NodeInfo).SplitFilter;
-        Instances filteredInstances = Filter.useFilter(instances, filter);
+        int[] rows = new int[instances.numInstances()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+        distributionForInstance(distribution, instances, rows);
+    }
+
+    /**
+     * Method that updates the given estimates based on some of the given instances and the tree. Calls for
+     * disjoint rows can run at the same time.
+     *
+     * @param distribution the estimates to be updated, indexed like instances
+     * @param instances    the instances for which estimates are to be updated
+     * @param rows         the rows of instances to be updated
+     */
+    protected void distributionForInstance(double[][] distribution, Instances instances, int[] rows) throws Exception {
+
+        if (rows.length > 0) {
+            distributionForInstance(distribution, instances, rows, RootNode);
+        }
+    }
+
+    /**
+     * Method that updates the given estimates based on some of the given instances and the subtree attached to the
+     * given node. The rows are filtered together by the node's filter and partitioned between the children, so
+     * every filter sees each batch once rather than one instance at a time.
+     *
+     * @param distribution the estimates to be updated, indexed like instances
+     * @param instances    the instances for which estimates are to be updated
+     * @param rows         the rows of instances that reach the node
+     * @param node         the node
+     */
+    protected void distributionForInstance(double[][] distribution, Instances instances, int[] rows, Node node) throws Exception {
+
+        if (node.NodeInfo instanceof LeafNodeInfo) {
+            //if it is the leaf, just check the prediction
+            double[] prediction = ((LeafNodeInfo) node.NodeInfo).Prediction;
+            for (int row : rows) {
+                for (int i = 0; i < prediction.length; i++) {
+                    distribution[row][i] += prediction[i];
+                }
+            }
+            return;
+        }
+        //if it is the split point, use nodeFilter to filter the rows of the node
+        SplitNodeInfo splitInfo = (SplitNodeInfo) node.NodeInfo;
+        double[] values = splitValues(splitInfo, instances, rows);
+
+        //check the split value to get the direction to next node
+        int numLeft = 0;
+        for (double value : values) {
+            if (value < splitInfo.SplitValue) {
+                numLeft++;
+            }
+        }
+        int[] left = new int[numLeft];
+        int[] right = new int[rows.length - numLeft];
+        int l = 0;
+        int r = 0;
+        for (int i = 0; i < rows.length; i++) {
+            if (values[i] < splitInfo.SplitValue) {
+                left[l++] = rows[i];
+            } else {
+                right[r++] = rows[i];
+            }
+        }
+        if (left.length > 0) {
+            distributionForInstance(distribution, instances, left, splitInfo.Left);
+        }
+        if (right.length > 0) {
+            distributionForInstance(distribution, instances, right, splitInfo.Right);
+        }
+    }
+
+    /**
+     * Computes the value of the split attribute of a split node for some of the given instances, filtering them
+     * together with the node's filter.
+     *
+     * @param splitInfo the split node
+     * @param instances the instances
+     * @param rows      the rows of instances to filter
+     * @return the values of the split attribute, in the order of rows
+     */
+    protected double[] splitValues(SplitNodeInfo splitInfo, Instances instances, int[] rows) throws Exception {
 
-        for (int i = 0; i < filteredInstances.numInstances(); i++) {
-            if (filteredInstances.instance(i).value(splitInfo.SplitAttribute.index()) < splitInfo.SplitValue) {
-                distributionForInstance(distribution[i], instances.instance(i), splitInfo.Left);
+        int attIndex = splitInfo.SplitAttribute.index();
+        double[] values = new double[rows.length];
+        if (splitInfo.SplitFilter instanceof AllFilter) {
+            for (int i = 0; i < rows.length; i++) {
+                values[i] = instances.instance(rows[i]).value(attIndex);
+            }
+        } else {
+            //as Filter.useFilter() does, without copying the rows into a new Instances first
+            FilterTransform transform = splitInfo.transform();
+            if (transform.projection() != null) {
+                //one dot product per row, the filter is only needed for rows with missing values or on the split value
+                for (int i = 0; i < rows.length; i++) {
+                    values[i] = transform.transform(instances.instance(rows[i]), attIndex);
+                }
             } else {
-                distributionForInstance(distribution[i], instances.instance(i), splitInfo.Right);
+                Filter filter = transform.acquireFilter();
+                try {
+                    for (int row : rows) {
+                        filter.input(instances.instance(row));
+                    }
+                    filter.batchFinished();
+                    for (int i = 0; i < rows.length; i++) {
+                        values[i] = filter.output().value(attIndex);
+                    }
+                } finally {
+                    transform.releaseFilter(filter);
+                }
             }
         }
+        return values;
     }
 
     /**
@@ -667,6 +2394,14 @@ public class FilterTree extends RandomizableClassifier {
         }
         StringBuffer stringBuffer = new StringBuffer();
         toString(stringBuffer, RootNode, "");
+        if (m_SizeBeforePruning != null) {
+            stringBuffer.append(String.format("%n%nPruned from %.0f to %.0f nodes (%.0f to %.0f filters),"
+                            + " average path length %.2f to %.2f", m_SizeBeforePruning[0], m_SizeAfterPruning[0],
+                    m_SizeBeforePruning[1], m_SizeAfterPruning[1], m_SizeBeforePruning[2], m_SizeAfterPruning[2]));
+        }
+        if (m_BuildMetrics != null) {
+            stringBuffer.append("\n").append(m_BuildMetrics);
+        }
         return stringBuffer.toString();
     }
 
@@ -686,4 +2421,15 @@ public class FilterTree extends RandomizableClassifier {
     public boolean implementsMoreEfficientBatchPrediction() {
         return true;
     }
+
+    /**
+     * Weka's batch prediction, as used by Evaluation when implementsMoreEfficientBatchPrediction() is true.
+     *
+     * @param instances the instances for which a prediction are to be generated.
+     * @return the estimates obtained from the tree
+     */
+    @Override
+    public double[][] distributionsForInstances(Instances instances) throws Exception {
+        return distributionForInstance(instances);
+    }
 }
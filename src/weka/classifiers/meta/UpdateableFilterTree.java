@@ -0,0 +1,702 @@
+package weka.classifiers.meta;
+
+import weka.classifiers.UpdateableClassifier;
+import weka.classifiers.meta.filtertree.BinnedColumns;
+import weka.classifiers.meta.filtertree.ColumnFile;
+import weka.classifiers.meta.filtertree.SplitScanner;
+import weka.core.*;
+import weka.filters.AllFilter;
+import weka.filters.Filter;
+import weka.filters.unsupervised.instance.KernelHerding;
+import weka.gui.ProgrammaticProperty;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * A FilterTree grown incrementally from a stream of instances, in the manner of a Hoeffding tree. A new leaf
+ * buffers the instances reaching it until it has enough to fit its filter; from then on it only keeps the class
+ * counts of every bin of every filtered attribute, so the memory per leaf does not grow with the stream. Every so
+ * many instances the leaf looks for its best split in the counts, and it is split once the Hoeffding bound says the
+ * best attribute is better than the second best with the given confidence, or the two are too close to matter.
+ */
+public class UpdateableFilterTree extends FilterTree implements UpdateableClassifier {
+
+    //Option
+    // The number of instances a leaf buffers before fitting its filter, and between two attempts to split it
+    protected int m_GracePeriod = 200;
+
+    // The allowed probability of choosing the wrong split attribute
+    protected double m_SplitConfidence = 1e-7;
+
+    // The Hoeffding bound under which the best attribute is chosen even if the second best is as good
+    protected double m_TieThreshold = 0.05;
+
+    // The tables of n*log2(n) and log2(n) for the split search, grown as the leaves see more instances
+    protected transient double[] m_NLogNTable;
+    protected transient double[] m_Log2Table;
+
+    // The options of the batch builder that this tree does not support
+    protected static final String[] BATCH_OPTIONS = {"num-threads", "max-leaves", "max-bytes", "build-metrics",
+            "time-budget", "workers", "split-sample", "split-sample-method", "herding", "float-columns", "pruning",
+            "prune-holdout", "split-cost"};
+
+    /**
+     * Constructs a tree whose leaves keep 32 bins per attribute.
+     */
+    public UpdateableFilterTree() {
+        m_NumBins = 32;
+    }
+
+    @OptionMetadata(
+            displayName = "grace period",
+            description = "The number of instances a leaf buffers before its filter is fitted, and between two attempts"
+                    + " to split it (default = 200).",
+            commandLineParamName = "grace-period", commandLineParamSynopsis = "-grace-period <int>",
+            displayOrder = 20)
+    public int getGracePeriod() {
+        return m_GracePeriod;
+    }
+
+    public void setGracePeriod(int gracePeriod) {
+        this.m_GracePeriod = gracePeriod;
+    }
+
+    @OptionMetadata(
+            displayName = "split confidence",
+            description = "The allowed probability of splitting on the wrong attribute (default = 1e-7).",
+            commandLineParamName = "split-confidence", commandLineParamSynopsis = "-split-confidence <double>",
+            displayOrder = 21)
+    public double getSplitConfidence() {
+        return m_SplitConfidence;
+    }
+
+    public void setSplitConfidence(double splitConfidence) {
+        this.m_SplitConfidence = splitConfidence;
+    }
+
+    @OptionMetadata(
+            displayName = "tie threshold",
+            description = "The Hoeffding bound under which a leaf is split even if the two best attributes are equally"
+                    + " good (default = 0.05).",
+            commandLineParamName = "tie-threshold", commandLineParamSynopsis = "-tie-threshold <double>",
+            displayOrder = 22)
+    public double getTieThreshold() {
+        return m_TieThreshold;
+    }
+
+    public void setTieThreshold(double tieThreshold) {
+        this.m_TieThreshold = tieThreshold;
+    }
+
+    /**
+     * Throws an exception if a batch-only option is set to something other than its default, so that the option is
+     * not silently ignored.
+     *
+     * @param name      the command-line name of the option
+     * @param isDefault whether the option is set to its default
+     */
+    protected static void rejectBatchOption(String name, boolean isDefault) {
+        if (!isDefault) {
+            throw new IllegalArgumentException("-" + name + " only applies to the batch FilterTree builder and is not"
+                    + " supported by UpdateableFilterTree");
+        }
+    }
+
+    /**
+     * Lists the options, leaving out those of the batch builder.
+     *
+     * @return an enumeration of the options
+     */
+    @Override
+    public Enumeration<Option> listOptions() {
+
+        Vector<Option> options = new Vector<Option>();
+        for (Option option : Collections.list(super.listOptions())) {
+            if (!isBatchOption(option.name())) {
+                options.add(option);
+            }
+        }
+        return options.elements();
+    }
+
+    /**
+     * Parses the options; an option of the batch builder is an error rather than being ignored.
+     *
+     * @param options the options
+     * @throws Exception if an option is not supported
+     */
+    @Override
+    public void setOptions(String[] options) throws Exception {
+
+        for (String name : BATCH_OPTIONS) {
+            if (Utils.getOptionPos(name, options) >= 0) {
+                rejectBatchOption(name, false);
+            }
+        }
+        super.setOptions(options);
+    }
+
+    /**
+     * Gets the current settings, leaving out the options of the batch builder.
+     *
+     * @return the current settings
+     */
+    @Override
+    public String[] getOptions() {
+
+        Map<String, Integer> numArguments = new HashMap<String, Integer>();
+        for (Option option : Collections.list(super.listOptions())) {
+            numArguments.put(option.name(), option.numArguments());
+        }
+        String[] all = super.getOptions();
+        List<String> options = new ArrayList<String>();
+        for (int i = 0; i < all.length; i++) {
+            String name = all[i].startsWith("-") ? all[i].substring(1) : "";
+            if (isBatchOption(name)) {
+                Integer skipped = numArguments.get(name);
+                i += skipped == null ? 0 : skipped;
+            } else {
+                options.add(all[i]);
+            }
+        }
+        return options.toArray(new String[0]);
+    }
+
+    /**
+     * @param name the name of an option, without the dash
+     * @return true if the option only applies to the batch builder
+     */
+    protected static boolean isBatchOption(String name) {
+        return Arrays.asList(BATCH_OPTIONS).contains(name);
+    }
+
+    //the properties of the batch builder options are hidden, and rejected unless left at their default
+    @Override
+    @ProgrammaticProperty
+    public int getNumThreads() {
+        return super.getNumThreads();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public void setNumThreads(int numThreads) {
+        rejectBatchOption("num-threads", numThreads == 1);
+        super.setNumThreads(numThreads);
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public int getMaxLeaves() {
+        return super.getMaxLeaves();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public void setMaxLeaves(int maxLeaves) {
+        rejectBatchOption("max-leaves", maxLeaves <= 0);
+        super.setMaxLeaves(maxLeaves);
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public long getMaxBytes() {
+        return super.getMaxBytes();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public void setMaxBytes(long maxBytes) {
+        rejectBatchOption("max-bytes", maxBytes <= 0);
+        super.setMaxBytes(maxBytes);
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public boolean getCollectBuildMetrics() {
+        return super.getCollectBuildMetrics();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public void setCollectBuildMetrics(boolean collectBuildMetrics) {
+        rejectBatchOption("build-metrics", !collectBuildMetrics);
+        super.setCollectBuildMetrics(collectBuildMetrics);
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public double getTimeBudget() {
+        return super.getTimeBudget();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public void setTimeBudget(double timeBudget) {
+        rejectBatchOption("time-budget", timeBudget <= 0);
+        super.setTimeBudget(timeBudget);
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public String getWorkers() {
+        return super.getWorkers();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public void setWorkers(String workers) {
+        rejectBatchOption("workers", workers == null || workers.trim().isEmpty());
+        super.setWorkers(workers);
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public int getSplitSample() {
+        return super.getSplitSample();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public void setSplitSample(int splitSample) {
+        rejectBatchOption("split-sample", splitSample <= 0);
+        super.setSplitSample(splitSample);
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public SelectedTag getSplitSampleMethod() {
+        return super.getSplitSampleMethod();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public KernelHerding getHerding() {
+        return super.getHerding();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public boolean getFloatColumns() {
+        return super.getFloatColumns();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public void setFloatColumns(boolean floatColumns) {
+        rejectBatchOption("float-columns", !floatColumns);
+        super.setFloatColumns(floatColumns);
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public SelectedTag getPruning() {
+        return super.getPruning();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public void setPruning(SelectedTag pruning) {
+        rejectBatchOption("pruning", pruning.getTags() != TAGS_PRUNING
+                || pruning.getSelectedTag().getID() == PRUNE_NONE);
+        super.setPruning(pruning);
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public double getPruneHoldout() {
+        return super.getPruneHoldout();
+    }
+
+    @Override
+    @ProgrammaticProperty
+    public double getSplitCost() {
+        return super.getSplitCost();
+    }
+
+    /**
+     * Returns a string describing this classifier
+     *
+     * @return a description of the classifier suitable for
+     * displaying in the explorer/experimenter gui
+     */
+    public String globalInfo() {
+        return "Class for incrementally building a classification tree with local filter models for defining splits."
+                + " Leaves fit their filter on a buffer of instances and then keep class counts per bin (-num-bins)"
+                + " of every filtered attribute, and are split when a Hoeffding bound is met. -M, -max-depth and -compile apply;"
+                + " the other options of the batch builder are not available.";
+    }
+
+    /**
+     * Class whose objects represent leaves that are still growing.
+     */
+    protected class GrowingLeafNodeInfo extends LeafNodeInfo {
+
+        // The seed of this node, derived from the path to the node
+        protected long Seed;
+        protected int Depth;
+        // The instances seen before the filter is fitted, null afterwards
+        protected Instances Buffer;
+        // The fitted filter, and the cuts, class counts and bin class counts of every filtered attribute
+        protected Filter Filter;
+        protected double[][] Cuts;
+        protected int[] ClassCounts;
+        protected int[][] Histograms;
+        // The number of instances counted, and their number at the last attempt to split
+        protected int NumCounted;
+        protected int LastAttempt;
+
+        /**
+         * Constructs a growing leaf.
+         *
+         * @param prediction the class counts the leaf starts from
+         * @param seed       the seed of the node
+         * @param depth      the depth of the node
+         */
+        public GrowingLeafNodeInfo(double[] prediction, long seed, int depth) {
+            super(prediction);
+            Seed = seed;
+            Depth = depth;
+            Buffer = new Instances(m_Header, m_GracePeriod);
+        }
+    }
+
+    //build Classifier and distribution
+    @Override
+    public void buildClassifier(Instances instances) throws Exception {
+        // can classifier handle the data?
+        getCapabilities().testWithFail(instances);
+
+        startTree(instances);
+        for (int i = 0; i < instances.numInstances(); i++) {
+            updateClassifier(instances.instance(i));
+        }
+        finishTree();
+    }
+
+    /**
+     * Builds the tree by passing the given rows of the instances to updateClassifier one after another.
+     *
+     * @param instances the training instances
+     * @param rows      the indices of the rows to train on, repeated for rows drawn more than once
+     * @throws Exception if the tree cannot be built
+     */
+    @Override
+    public void buildClassifier(Instances instances, int[] rows) throws Exception {
+
+        startTree(instances);
+        for (int row : rows) {
+            updateClassifier(instances.instance(row));
+        }
+        finishTree();
+    }
+
+    /**
+     * Builds the tree by passing the rows of a column file to updateClassifier one after another, so only the
+     * buffers of the leaves are held in memory.
+     *
+     * @param data the column file holding the training data
+     * @throws Exception if the tree cannot be built
+     */
+    @Override
+    public void buildClassifier(ColumnFile data) throws Exception {
+        // can classifier handle the data? The rows are checked by the flag of the file.
+        Capabilities capabilities = getCapabilities();
+        int minimumRows = capabilities.getMinimumNumberInstances();
+        capabilities.setMinimumNumberInstances(0);
+        capabilities.testWithFail(data.header());
+        if (data.numRows() < minimumRows) {
+            throw new WekaException(getClass().getName() + ": Not enough training instances (" + data.numRows()
+                    + " < " + minimumRows + ")!");
+        }
+        if (data.hasMissingValues() && !capabilities.handles(Capabilities.Capability.MISSING_VALUES)) {
+            throw new WekaException(getClass().getName() + ": Cannot handle missing values!");
+        }
+
+        startTree(data.header());
+        for (int i = 0; i < data.numRows(); i++) {
+            updateClassifier(data.instance(i));
+        }
+        finishTree();
+    }
+
+    /**
+     * Starts a tree of a single growing leaf for data with the given header.
+     *
+     * @param header the header of the training data
+     */
+    protected void startTree(Instances header) {
+
+        m_Header = new Instances(header, 0);
+        m_FlatTree = null;
+        m_BuildMetrics = null;
+        m_NLogNTable = null;
+        m_Log2Table = null;
+        random = new Random(getSeed());
+        RootNode = new Node(new GrowingLeafNodeInfo(new double[header.numClasses()], random.nextLong(), 0));
+    }
+
+    /**
+     * Compiles the tree if -compile is set.
+     */
+    protected void finishTree() throws Exception {
+        if (m_Compile) {
+            m_FlatTree = compileTree();
+        }
+    }
+
+    /**
+     * Updates the tree with one instance: the instance is passed down to a leaf, which counts it and may be split.
+     * A tree compiled by -compile is dropped, as it would no longer match.
+     *
+     * @param instance the instance
+     * @throws Exception if the leaf's filter fails
+     */
+    public void updateClassifier(Instance instance) throws Exception {
+
+        if (instance.classIsMissing()) {
+            return;
+        }
+        m_FlatTree = null;
+        Node node = RootNode;
+        while (node.NodeInfo instanceof SplitNodeInfo) {
+            SplitNodeInfo splitInfo = (SplitNodeInfo) node.NodeInfo;
+            double value;
+            if (splitInfo.SplitFilter instanceof AllFilter) {
+                value = instance.value(splitInfo.SplitAttribute.index());
+            } else {
+                value = splitInfo.transform().transform(instance, splitInfo.SplitAttribute.index());
+            }
+            node = value < splitInfo.SplitValue ? splitInfo.Left : splitInfo.Right;
+        }
+        GrowingLeafNodeInfo leaf = (GrowingLeafNodeInfo) node.NodeInfo;
+        leaf.Prediction[(int) instance.classValue()]++;
+        if (leaf.Filter == null) {
+            leaf.Buffer.add(instance);
+            if (leaf.Buffer.numInstances() >= m_GracePeriod) {
+                fitLeaf(leaf);
+                attemptSplit(node);
+            }
+        } else {
+            Instance filtered = filterInstance(leaf.Filter, instance);
+            if (filtered != null) {
+                count(leaf, filtered, (int) instance.classValue());
+            }
+            if (leaf.NumCounted - leaf.LastAttempt >= m_GracePeriod) {
+                attemptSplit(node);
+            }
+        }
+    }
+
+    /**
+     * Fits a leaf's filter on its buffer, bins every filtered attribute and counts the buffered instances; the
+     * buffer is let go of.
+     *
+     * @param leaf the leaf
+     */
+    protected void fitLeaf(GrowingLeafNodeInfo leaf) throws Exception {
+
+        Filter filter = Filter.makeCopy(getFilter());
+        //use Random filter, seeded from the node's path as in the batch build
+        if (filter instanceof Randomizable) {
+            ((Randomizable) filter).setSeed((int) leaf.Seed);
+        }
+        filter.setInputFormat(leaf.Buffer);
+        Instances filteredData = Filter.useFilter(leaf.Buffer, filter);
+        int numBins = Math.max(m_NumBins, 2);
+        leaf.Filter = filter;
+        leaf.Cuts = new double[filteredData.numAttributes()][];
+        leaf.Histograms = new int[filteredData.numAttributes()][];
+        leaf.ClassCounts = new int[filteredData.numClasses()];
+        double[] values = new double[filteredData.numInstances()];
+        for (int a = 0; a < filteredData.numAttributes(); a++) {
+            if (a == filteredData.classIndex() || !filteredData.attribute(a).isNumeric()) {
+                continue;
+            }
+            for (int i = 0; i < values.length; i++) {
+                values[i] = filteredData.instance(i).value(a);
+            }
+            leaf.Cuts[a] = BinnedColumns.computeCuts(values, numBins);
+            leaf.Histograms[a] = new int[(leaf.Cuts[a].length + 1) * filteredData.numClasses()];
+        }
+        for (int i = 0; i < filteredData.numInstances(); i++) {
+            count(leaf, filteredData.instance(i), (int) filteredData.instance(i).classValue());
+        }
+        leaf.Buffer = null;
+    }
+
+    /**
+     * Passes one instance through a fitted filter, as FilteredClassifier does.
+     *
+     * @param filter   the filter
+     * @param instance the instance
+     * @return the filtered instance, or null if the filter removed it
+     */
+    protected static Instance filterInstance(Filter filter, Instance instance) throws Exception {
+
+        if (!filter.input(instance)) {
+            if (!filter.mayRemoveInstanceAfterFirstBatchDone()) {
+                throw new Exception("Filter didn't make the instance immediately available!");
+            }
+            filter.batchFinished();
+            return null;
+        }
+        filter.batchFinished();
+        return filter.output();
+    }
+
+    /**
+     * Counts a filtered instance in the bins of every attribute of a leaf.
+     *
+     * @param leaf       the leaf
+     * @param filtered   the filtered instance
+     * @param classValue the class of the instance
+     */
+    protected void count(GrowingLeafNodeInfo leaf, Instance filtered, int classValue) {
+
+        int numClasses = leaf.ClassCounts.length;
+        leaf.ClassCounts[classValue]++;
+        for (int a = 0; a < leaf.Histograms.length; a++) {
+            if (leaf.Histograms[a] != null) {
+                leaf.Histograms[a][BinnedColumns.binOf(leaf.Cuts[a], filtered.value(a)) * numClasses + classValue]++;
+            }
+        }
+        leaf.NumCounted++;
+    }
+
+    /**
+     * Splits a leaf on its best bin boundary if the Hoeffding bound allows it. The children start from the class
+     * counts of their side of the split and buffer instances for their own filters.
+     *
+     * @param node the node of the leaf
+     */
+    protected void attemptSplit(Node node) throws Exception {
+
+        GrowingLeafNodeInfo leaf = (GrowingLeafNodeInfo) node.NodeInfo;
+        int n = leaf.NumCounted;
+        leaf.LastAttempt = n;
+        if (Utils.smOrEq(n, m_Threshold) || (m_MaxDepth > 0 && leaf.Depth >= m_MaxDepth)) {
+            return;
+        }
+        if (m_NLogNTable == null || m_NLogNTable.length <= n) {
+            int maxCount = Math.max(n, 2 * (m_NLogNTable == null ? 0 : m_NLogNTable.length));
+            m_NLogNTable = SplitScanner.nLogNTable(maxCount);
+            m_Log2Table = SplitScanner.log2Table(maxCount);
+        }
+        SplitScanner scanner = new SplitScanner(m_NLogNTable, m_Log2Table, leaf.ClassCounts.length);
+        scanner.reset(leaf.ClassCounts);
+        int bestAttribute = -1;
+        double bestGain = 0;
+        double secondGain = 0;
+        double splitValue = 0;
+        for (int a = 0; a < leaf.Histograms.length; a++) {
+            if (leaf.Histograms[a] == null) {
+                continue;
+            }
+            double gain = scanner.scanBins(leaf.Histograms[a], leaf.Cuts[a]);
+            if (bestAttribute < 0 || gain > bestGain) {
+                secondGain = bestAttribute < 0 ? 0 : bestGain;
+                bestAttribute = a;
+                bestGain = gain;
+                splitValue = scanner.splitValue();
+            } else if (gain > secondGain) {
+                secondGain = gain;
+            }
+        }
+        if (bestAttribute < 0 || Utils.smOrEq(bestGain, 0)) {
+            return;
+        }
+        //the gain is in bits, so its range is log2 of the number of classes
+        double range = Utils.log2(Math.max(leaf.ClassCounts.length, 2));
+        double bound = Math.sqrt(range * range * Math.log(1 / m_SplitConfidence) / (2.0 * n));
+        if (bestGain - secondGain <= bound && bound >= m_TieThreshold) {
+            return;
+        }
+
+        //the class counts of both sides, from the bins of the split attribute
+        int numClasses = leaf.ClassCounts.length;
+        int lastLeftBin = BinnedColumns.binOf(leaf.Cuts[bestAttribute], splitValue) - 1;
+        double[] left = new double[numClasses];
+        double[] right = new double[numClasses];
+        int[] histogram = leaf.Histograms[bestAttribute];
+        for (int i = 0; i < histogram.length; i++) {
+            if (i / numClasses <= lastLeftBin) {
+                left[i % numClasses] += histogram[i];
+            } else {
+                right[i % numClasses] += histogram[i];
+            }
+        }
+        Node leftNode = new Node(new GrowingLeafNodeInfo(left, childSeed(leaf.Seed, 0), leaf.Depth + 1));
+        Node rightNode = new Node(new GrowingLeafNodeInfo(right, childSeed(leaf.Seed, 1), leaf.Depth + 1));
+        node.NodeInfo = new SplitNodeInfo(leaf.Filter.getOutputFormat().attribute(bestAttribute), splitValue,
+                leftNode, rightNode, leaf.Filter);
+    }
+
+    /**
+     * Normalizes the estimates of an instance, which are uniform if no instance has reached its leaf yet.
+     *
+     * @param distribution the estimates
+     */
+    protected static void normalize(double[] distribution) {
+
+        if (Utils.sum(distribution) > 0) {
+            Utils.normalize(distribution);
+        } else {
+            java.util.Arrays.fill(distribution, 1.0 / distribution.length);
+        }
+    }
+
+    /**
+     * Method that returns estimated class probabilities for the given instance.
+     *
+     * @param instance the instance for which a prediction is to be generated.
+     * @return the estimates obtained from the tree
+     */
+    @Override
+    public double[] distributionForInstance(Instance instance) throws Exception {
+
+        double[] distribution = new double[instance.numClasses()];
+        if (m_FlatTree != null) {
+            m_FlatTree.distributionForInstance(distribution, instance);
+        } else {
+            distributionForInstance(distribution, instance, RootNode);
+        }
+        normalize(distribution);
+        return distribution;
+    }
+
+    /**
+     * Method that returns estimated class probabilities for the given instances.
+     *
+     * @param instances the instances for which a prediction are to be generated.
+     * @return the estimates obtained from the tree
+     */
+    @Override
+    public double[][] distributionForInstance(Instances instances) throws Exception {
+
+        double[][] distribution = new double[instances.numInstances()][instances.numClasses()];
+        distributionForInstance(distribution, instances);
+        for (double[] pre : distribution) {
+            normalize(pre);
+        }
+        return distribution;
+    }
+
+
+    /**
+     * Main method to run this classifier from the command-line with the standard option handling.
+     *
+     * @param args the command-line options
+     */
+    public static void main(String[] args) {
+
+        runClassifier(new UpdateableFilterTree(), args);
+    }
+}
@@ -0,0 +1,409 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instances;
+
+import java.util.Arrays;
+
+/**
+ * An approximate column store for the split search of a FilterTree node. Every attribute is put into at most a
+ * given number of quantile bins, and only the class counts of every bin are kept for the search, so a node's split
+ * is found by scanning bin boundaries instead of every distinct value. The bin boundaries are taken from a bounded,
+ * evenly spaced sample of the rows, so no full sort is needed. When the data of a child is the data of its parent
+ * (an AllFilter node), the child keeps the parent's bins, and the histograms of the larger child are obtained by
+ * subtracting those of the smaller child from the parent's.
+ */
+public class BinnedColumns implements SplitColumns {
+
+    /** The number of sample rows per bin used to find the bin boundaries */
+    protected static final int SAMPLE_ROWS_PER_BIN = 8;
+
+    /** The largest number of bins per attribute, as a bin is kept in a char */
+    public static final int MAX_BINS = Character.MAX_VALUE + 1;
+
+    /** The rows of the store in their original order, or null if row i is at position i */
+    protected int[] m_Rows;
+
+    /** The first position covered by the store */
+    protected int m_From;
+
+    /** The position after the last one covered by the store */
+    protected int m_To;
+
+    /** The number of class values */
+    protected int m_NumClasses;
+
+    /** The values separating the bins of each attribute, in ascending order; null for the class attribute */
+    protected double[][] m_Cuts;
+
+    /** The bin of every row for each attribute, indexed [attribute][row]; null for the class attribute */
+    protected char[][] m_Bins;
+
+    /** The class counts of every bin of the store's rows for each attribute, indexed [attribute][bin * numClasses + class] */
+    protected int[][] m_Histograms;
+
+    /** The class value of every row */
+    protected int[] m_ClassValues;
+
+    /** True for a view on the bins of another store */
+    protected boolean m_IsView;
+
+    /**
+     * Bins every non-class attribute of the given data into at most maxBins bins.
+     *
+     * @param data    the data to bin
+     * @param maxBins the maximum number of bins per attribute
+     */
+    public BinnedColumns(Instances data, int maxBins) {
+        this(data, null, 0, data.numInstances(), maxBins);
+    }
+
+    /**
+     * Bins every non-class attribute of some rows of the given data into at most maxBins bins. The store keeps a
+     * reference to the row array; the caller is responsible for partitioning it the same way as the store after
+     * each {@link #split}.
+     *
+     * @param data    the data to bin
+     * @param rows    the rows of the data in their original order, or null for all rows
+     * @param from    the first position of the range in rows
+     * @param to      the position after the last one of the range in rows
+     * @param maxBins the maximum number of bins per attribute
+     */
+    public BinnedColumns(Instances data, int[] rows, int from, int to, int maxBins) {
+        this(ColumnData.of(data), rows, from, to, maxBins);
+    }
+
+    /**
+     * Bins every non-class attribute of some rows of the given data into at most maxBins bins, reading the data
+     * one attribute at a time.
+     *
+     * @param data    the data to bin
+     * @param rows    the rows of the data in their original order, or null for all rows
+     * @param from    the first position of the range in rows
+     * @param to      the position after the last one of the range in rows
+     * @param maxBins the maximum number of bins per attribute, at most {@link #MAX_BINS}
+     */
+    public BinnedColumns(ColumnData data, int[] rows, int from, int to, int maxBins) {
+
+        m_Rows = rows;
+        m_From = from;
+        m_To = to;
+        m_NumClasses = data.numClasses();
+        m_Cuts = new double[data.numAttributes()][];
+        m_Bins = new char[data.numAttributes()][];
+        m_Histograms = new int[data.numAttributes()][];
+        m_ClassValues = new int[data.numRows()];
+        int classIndex = data.classIndex();
+        for (int p = from; p < to; p++) {
+            int row = row(p);
+            m_ClassValues[row] = (int) data.value(row, classIndex);
+        }
+        double[] values = new double[to - from];
+        for (int a = 0; a < data.numAttributes(); a++) {
+            if (a == classIndex) {
+                continue;
+            }
+            for (int p = from; p < to; p++) {
+                values[p - from] = data.value(row(p), a);
+            }
+            m_Cuts[a] = computeCuts(values, Math.min(maxBins, MAX_BINS));
+            char[] bins = new char[data.numRows()];
+            for (int p = from; p < to; p++) {
+                bins[row(p)] = (char) binOf(m_Cuts[a], values[p - from]);
+            }
+            m_Bins[a] = bins;
+            m_Histograms[a] = histogram(a, null);
+        }
+    }
+
+    /**
+     * Constructor for a view on part of an existing store, with its own histograms.
+     */
+    protected BinnedColumns(BinnedColumns parent, int from, int to) {
+
+        m_Rows = parent.m_Rows;
+        m_From = from;
+        m_To = to;
+        m_NumClasses = parent.m_NumClasses;
+        m_Cuts = parent.m_Cuts;
+        m_Bins = parent.m_Bins;
+        m_Histograms = new int[m_Cuts.length][];
+        m_ClassValues = parent.m_ClassValues;
+        m_IsView = true;
+    }
+
+    /**
+     * Computes at most maxBins - 1 cut values for a column from an evenly spaced sample of its rows. If the sample
+     * has few distinct values, every one of them gets its own bin; otherwise the cuts are placed at quantiles of the
+     * sample. Cuts lie halfway between two distinct sample values, like the thresholds of the exact search.
+     *
+     * @param column  the values of the attribute
+     * @param maxBins the maximum number of bins
+     * @return the cut values, strictly ascending
+     */
+    public static double[] computeCuts(double[] column, int maxBins) {
+
+        int sampleSize = sampleSize(column.length, maxBins);
+        double[] sample = new double[sampleSize];
+        for (int i = 0; i < sampleSize; i++) {
+            sample[i] = column[samplePosition(i, column.length, sampleSize)];
+        }
+        return cutsOfSample(sample, maxBins);
+    }
+
+    /**
+     * @param numRows the number of rows of a column
+     * @param maxBins the maximum number of bins
+     * @return the number of rows sampled for finding the cuts of the column
+     */
+    public static int sampleSize(int numRows, int maxBins) {
+        return (int) Math.min(numRows, (long) maxBins * SAMPLE_ROWS_PER_BIN);
+    }
+
+    /**
+     * @param i          the index of a sample row
+     * @param numRows    the number of rows of the column
+     * @param sampleSize the number of sample rows
+     * @return the position in the column of the sample row
+     */
+    public static int samplePosition(int i, int numRows, int sampleSize) {
+        return (int) ((long) i * numRows / sampleSize);
+    }
+
+    /**
+     * Computes the cut values of a column from its sample, as {@link #computeCuts} does. The sample is sorted in
+     * place.
+     *
+     * @param sample  the values of the sample rows
+     * @param maxBins the maximum number of bins
+     * @return the cut values, strictly ascending
+     */
+    public static double[] cutsOfSample(double[] sample, int maxBins) {
+
+        int sampleSize = sample.length;
+        //NaN is sorted to the end and never becomes a cut
+        Arrays.sort(sample);
+        int numValues = sampleSize;
+        while (numValues > 0 && Double.isNaN(sample[numValues - 1])) {
+            numValues--;
+        }
+        int numDistinct = 0;
+        for (int i = 0; i < numValues; i++) {
+            if (i == 0 || sample[i] != sample[i - 1]) {
+                numDistinct++;
+            }
+        }
+        if (numDistinct <= maxBins) {
+            double[] cuts = new double[Math.max(numDistinct - 1, 0)];
+            int numCuts = 0;
+            for (int i = 1; i < numValues; i++) {
+                if (sample[i] != sample[i - 1]) {
+                    cuts[numCuts++] = (sample[i - 1] + sample[i]) / 2;
+                }
+            }
+            return cuts;
+        }
+        double[] cuts = new double[maxBins - 1];
+        int numCuts = 0;
+        for (int q = 1; q < maxBins; q++) {
+            int p = (int) ((long) q * numValues / maxBins);
+            if (p <= 0 || sample[p - 1] == sample[p]) {
+                continue;
+            }
+            double cut = (sample[p - 1] + sample[p]) / 2;
+            if (numCuts == 0 || cut > cuts[numCuts - 1]) {
+                cuts[numCuts++] = cut;
+            }
+        }
+        return Arrays.copyOf(cuts, numCuts);
+    }
+
+    /**
+     * Finds the bin of a value, i.e. the number of cuts that are not greater than the value. A missing value falls
+     * into the last bin.
+     *
+     * @param cuts  the cut values
+     * @param value the value
+     * @return the bin
+     */
+    public static int binOf(double[] cuts, double value) {
+
+        if (Double.isNaN(value)) {
+            return cuts.length;
+        }
+        int low = 0;
+        int high = cuts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cuts[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param position a position in the range of the store
+     * @return the row at the position
+     */
+    protected int row(int position) {
+        return m_Rows == null ? position : m_Rows[position];
+    }
+
+    /**
+     * Counts the rows of each class in every bin of an attribute.
+     *
+     * @param attIndex the attribute index
+     * @param select   the rows to count, in their original order, or null for all rows
+     * @return the histogram, indexed [bin * numClasses + class]
+     */
+    protected int[] histogram(int attIndex, boolean[] select) {
+
+        char[] bins = m_Bins[attIndex];
+        int[] histogram = new int[(m_Cuts[attIndex].length + 1) * m_NumClasses];
+        for (int p = m_From; p < m_To; p++) {
+            if (select == null || select[p - m_From]) {
+                int row = row(p);
+                histogram[bins[row] * m_NumClasses + m_ClassValues[row]]++;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the number of rows in the store
+     */
+    public int numRows() {
+        return m_To - m_From;
+    }
+
+    /**
+     * @return the number of class values
+     */
+    public int numClasses() {
+        return m_NumClasses;
+    }
+
+    /**
+     * @return the number of bytes held by the store, only the histograms for a view
+     */
+    public long sizeInBytes() {
+
+        long rows = m_ClassValues.length;
+        long bytes = m_IsView ? 0 : rows * 4;
+        for (int a = 0; a < m_Cuts.length; a++) {
+            if (m_Histograms[a] != null) {
+                bytes += m_Histograms[a].length * 4L;
+            }
+            if (!m_IsView && m_Bins[a] != null) {
+                bytes += rows * 2 + m_Cuts[a].length * 8L;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Counts the rows of each class.
+     *
+     * @return the class counts
+     */
+    public int[] classCounts() {
+
+        int[] classCounts = new int[m_NumClasses];
+        for (int p = m_From; p < m_To; p++) {
+            classCounts[m_ClassValues[row(p)]]++;
+        }
+        return classCounts;
+    }
+
+    /**
+     * @param attIndex the attribute index
+     * @return the cut values of the attribute
+     */
+    public double[] cuts(int attIndex) {
+        return m_Cuts[attIndex];
+    }
+
+    /**
+     * @param attIndex the attribute index
+     * @return the class counts of every bin of the attribute
+     */
+    public int[] histogram(int attIndex) {
+        return m_Histograms[attIndex];
+    }
+
+    /**
+     * Finds the best bin boundary for one attribute.
+     *
+     * @param attIndex the attribute index
+     * @param scanner  the split scanner, reset for the rows of this store
+     * @return the information gain of the best boundary
+     */
+    public double scan(int attIndex, SplitScanner scanner) {
+        return scanner.scanBins(m_Histograms[attIndex], m_Cuts[attIndex]);
+    }
+
+    /**
+     * Tells for every row whether its value for the given attribute is smaller than the split value, which must be
+     * one of the attribute's cuts.
+     *
+     * @param attIndex   the split attribute
+     * @param splitValue the split value
+     * @return true for the rows that go to the left
+     */
+    public boolean[] goesLeft(int attIndex, double splitValue) {
+
+        //a value is smaller than cut k exactly if its bin is at most k
+        int lastLeftBin = binOf(m_Cuts[attIndex], splitValue) - 1;
+        char[] bins = m_Bins[attIndex];
+        boolean[] goesLeft = new boolean[m_To - m_From];
+        for (int p = m_From; p < m_To; p++) {
+            goesLeft[p - m_From] = bins[row(p)] <= lastLeftBin;
+        }
+        return goesLeft;
+    }
+
+    /**
+     * Splits the store into views on the rows that go to the left and the remaining rows; the bins are shared. The
+     * histograms of the smaller child are counted and those of the larger child are the parent's minus the smaller
+     * child's. The row array is not touched and must be partitioned stably by the caller afterwards.
+     *
+     * @param goesLeft true for the rows that go to the left, in their original order
+     * @return the left and the right store
+     */
+    public BinnedColumns[] split(boolean[] goesLeft) {
+
+        int numLeft = 0;
+        for (boolean left : goesLeft) {
+            if (left) {
+                numLeft++;
+            }
+        }
+        BinnedColumns[] children = new BinnedColumns[2];
+        children[0] = new BinnedColumns(this, m_From, m_From + numLeft);
+        children[1] = new BinnedColumns(this, m_From + numLeft, m_To);
+
+        int smaller = numLeft <= m_To - m_From - numLeft ? 0 : 1;
+        boolean[] smallerRows = goesLeft;
+        if (smaller == 1) {
+            smallerRows = new boolean[goesLeft.length];
+            for (int i = 0; i < goesLeft.length; i++) {
+                smallerRows[i] = !goesLeft[i];
+            }
+        }
+        for (int a = 0; a < m_Cuts.length; a++) {
+            if (m_Cuts[a] == null) {
+                continue;
+            }
+            int[] smallerHistogram = histogram(a, smallerRows);
+            int[] largerHistogram = m_Histograms[a].clone();
+            for (int j = 0; j < largerHistogram.length; j++) {
+                largerHistogram[j] -= smallerHistogram[j];
+            }
+            children[smaller].m_Histograms[a] = smallerHistogram;
+            children[1 - smaller].m_Histograms[a] = largerHistogram;
+        }
+        return children;
+    }
+}
@@ -0,0 +1,31 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instances;
+
+/**
+ * Receives what happens while a FilterTree is built. Nodes may be built by several threads at once, so
+ * implementations must be thread-safe. When no listener is set, the build does not measure anything.
+ */
+public interface BuildListener {
+
+    /**
+     * Called before the first node is built.
+     *
+     * @param data the training data, after instances with a missing class have been removed
+     */
+    void buildStarted(Instances data);
+
+    /**
+     * Called once for every node, when it has become a split node or a leaf.
+     *
+     * @param event what was measured for the node
+     */
+    void nodeBuilt(NodeBuildEvent event);
+
+    /**
+     * Called after the last node is built, also if the build failed.
+     *
+     * @param nanos the time the build took, in nanoseconds
+     */
+    void buildFinished(long nanos);
+}
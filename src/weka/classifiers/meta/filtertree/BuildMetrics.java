@@ -0,0 +1,260 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instances;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link BuildListener} that adds up what is measured over one or more FilterTree builds into counters and
+ * histograms. They can be read in process, from {@link #toString()}, or over JMX once {@link #register}ed.
+ */
+public class BuildMetrics implements BuildListener, BuildMetricsMXBean {
+
+    /** The number of buckets of the histograms of times and rows */
+    protected static final int LOG_BUCKETS = 32;
+
+    /** The number of buckets of the histogram of depths */
+    protected static final int DEPTH_BUCKETS = 64;
+
+    /** The number of buckets of the histogram of gains */
+    protected static final int GAIN_BUCKETS = 32;
+
+    /** The width of a bucket of the histogram of gains, in bits */
+    protected static final double GAIN_BUCKET_WIDTH = 0.1;
+
+    protected final LongAdder m_Builds = new LongAdder();
+    protected final LongAdder m_BuildNanos = new LongAdder();
+    protected final LongAdder m_SplitNodes = new LongAdder();
+    protected final LongAdder m_Leaves = new LongAdder();
+    protected final LongAdder m_Rows = new LongAdder();
+    protected final LongAdder m_FilterNanos = new LongAdder();
+    protected final LongAdder m_SearchNanos = new LongAdder();
+    protected final LongAdder m_PartitionNanos = new LongAdder();
+    protected final DoubleAdder m_Gain = new DoubleAdder();
+    protected final AtomicInteger m_MaxDepth = new AtomicInteger();
+    protected final AtomicLongArray m_FilterTimeHistogram = new AtomicLongArray(LOG_BUCKETS);
+    protected final AtomicLongArray m_SearchTimeHistogram = new AtomicLongArray(LOG_BUCKETS);
+    protected final AtomicLongArray m_PartitionTimeHistogram = new AtomicLongArray(LOG_BUCKETS);
+    protected final AtomicLongArray m_RowsHistogram = new AtomicLongArray(LOG_BUCKETS);
+    protected final AtomicLongArray m_DepthHistogram = new AtomicLongArray(DEPTH_BUCKETS);
+    protected final AtomicLongArray m_GainHistogram = new AtomicLongArray(GAIN_BUCKETS);
+
+    /** The name the metrics are registered under, null if they are not */
+    protected ObjectName m_ObjectName;
+
+    public void buildStarted(Instances data) {
+    }
+
+    public void nodeBuilt(NodeBuildEvent event) {
+
+        if (event.isLeaf()) {
+            m_Leaves.increment();
+            m_DepthHistogram.incrementAndGet(Math.min(event.getDepth(), DEPTH_BUCKETS - 1));
+        } else {
+            m_SplitNodes.increment();
+            m_Gain.add(event.getGain());
+            m_GainHistogram.incrementAndGet(Math.min((int) (event.getGain() / GAIN_BUCKET_WIDTH), GAIN_BUCKETS - 1));
+            m_PartitionNanos.add(event.getPartitionNanos());
+            m_PartitionTimeHistogram.incrementAndGet(logBucket(event.getPartitionNanos() / 1000));
+        }
+        m_Rows.add(event.getNumRows());
+        m_RowsHistogram.incrementAndGet(logBucket(event.getNumRows()));
+        //nodes that became leaves without being evaluated were neither filtered nor searched
+        if (event.getFilterNanos() > 0 || event.getSearchNanos() > 0) {
+            m_FilterNanos.add(event.getFilterNanos());
+            m_SearchNanos.add(event.getSearchNanos());
+            m_FilterTimeHistogram.incrementAndGet(logBucket(event.getFilterNanos() / 1000));
+            m_SearchTimeHistogram.incrementAndGet(logBucket(event.getSearchNanos() / 1000));
+        }
+        int depth = m_MaxDepth.get();
+        while (event.getDepth() > depth && !m_MaxDepth.compareAndSet(depth, event.getDepth())) {
+            depth = m_MaxDepth.get();
+        }
+    }
+
+    public void buildFinished(long nanos) {
+
+        m_Builds.increment();
+        m_BuildNanos.add(nanos);
+    }
+
+    /**
+     * @return the bucket of a value in a histogram by binary logarithm
+     */
+    protected static int logBucket(long value) {
+        return value <= 1 ? 0 : Math.min(63 - Long.numberOfLeadingZeros(value), LOG_BUCKETS - 1);
+    }
+
+    /**
+     * @return the counts of a histogram
+     */
+    protected static long[] counts(AtomicLongArray histogram) {
+
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    public long getBuilds() {
+        return m_Builds.sum();
+    }
+
+    public double getBuildMillis() {
+        return m_BuildNanos.sum() / 1e6;
+    }
+
+    public long getNodes() {
+        return m_SplitNodes.sum() + m_Leaves.sum();
+    }
+
+    public long getSplitNodes() {
+        return m_SplitNodes.sum();
+    }
+
+    public long getLeaves() {
+        return m_Leaves.sum();
+    }
+
+    public long getRows() {
+        return m_Rows.sum();
+    }
+
+    public double getFilterMillis() {
+        return m_FilterNanos.sum() / 1e6;
+    }
+
+    public double getSearchMillis() {
+        return m_SearchNanos.sum() / 1e6;
+    }
+
+    public double getPartitionMillis() {
+        return m_PartitionNanos.sum() / 1e6;
+    }
+
+    public double getMeanGain() {
+
+        long splitNodes = m_SplitNodes.sum();
+        return splitNodes > 0 ? m_Gain.sum() / splitNodes : 0;
+    }
+
+    public int getMaxDepth() {
+        return m_MaxDepth.get();
+    }
+
+    public long[] getFilterTimeHistogram() {
+        return counts(m_FilterTimeHistogram);
+    }
+
+    public long[] getSearchTimeHistogram() {
+        return counts(m_SearchTimeHistogram);
+    }
+
+    public long[] getPartitionTimeHistogram() {
+        return counts(m_PartitionTimeHistogram);
+    }
+
+    public long[] getRowsHistogram() {
+        return counts(m_RowsHistogram);
+    }
+
+    public long[] getDepthHistogram() {
+        return counts(m_DepthHistogram);
+    }
+
+    public long[] getGainHistogram() {
+        return counts(m_GainHistogram);
+    }
+
+    public void reset() {
+
+        for (LongAdder adder : new LongAdder[]{m_Builds, m_BuildNanos, m_SplitNodes, m_Leaves, m_Rows, m_FilterNanos,
+                m_SearchNanos, m_PartitionNanos}) {
+            adder.reset();
+        }
+        m_Gain.reset();
+        m_MaxDepth.set(0);
+        for (AtomicLongArray histogram : new AtomicLongArray[]{m_FilterTimeHistogram, m_SearchTimeHistogram,
+                m_PartitionTimeHistogram, m_RowsHistogram, m_DepthHistogram, m_GainHistogram}) {
+            for (int i = 0; i < histogram.length(); i++) {
+                histogram.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under
+     * weka.classifiers.meta.filtertree:type=BuildMetrics,name=&lt;name&gt;.
+     *
+     * @param name the name to register the metrics under
+     * @return the object name the metrics are registered under
+     * @throws JMException if the metrics cannot be registered, for example because the name is taken
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+
+        unregister();
+        ObjectName objectName = new ObjectName("weka.classifiers.meta.filtertree:type=BuildMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        m_ObjectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Unregisters the metrics from the platform MBean server, if they are registered.
+     *
+     * @throws JMException if the metrics cannot be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+
+        if (m_ObjectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_ObjectName);
+            m_ObjectName = null;
+        }
+    }
+
+    /**
+     * @return a summary of the metrics
+     */
+    public String toString() {
+
+        StringBuilder text = new StringBuilder();
+        text.append("Build metrics\n");
+        text.append("builds: ").append(getBuilds()).append(", ").append(String.format("%.1f", getBuildMillis())).append(" ms\n");
+        text.append("nodes: ").append(getNodes()).append(" (").append(getSplitNodes()).append(" split, ")
+                .append(getLeaves()).append(" leaves), max depth ").append(getMaxDepth()).append("\n");
+        text.append("rows over all nodes: ").append(getRows()).append("\n");
+        text.append(String.format("filter: %.1f ms, split search: %.1f ms, partition: %.1f ms%n", getFilterMillis(),
+                getSearchMillis(), getPartitionMillis()));
+        text.append(String.format("mean gain of split nodes: %.4f%n", getMeanGain()));
+        appendHistogram(text, "filter time per node (log2 us)", getFilterTimeHistogram());
+        appendHistogram(text, "split search time per node (log2 us)", getSearchTimeHistogram());
+        appendHistogram(text, "partition time per split node (log2 us)", getPartitionTimeHistogram());
+        appendHistogram(text, "rows per node (log2)", getRowsHistogram());
+        appendHistogram(text, "leaves by depth", getDepthHistogram());
+        appendHistogram(text, "split nodes by gain (0.1 bits)", getGainHistogram());
+        return text.toString();
+    }
+
+    /**
+     * Appends the buckets of a histogram up to the last one that is not empty.
+     */
+    protected static void appendHistogram(StringBuilder text, String name, long[] counts) {
+
+        int last = counts.length - 1;
+        while (last > 0 && counts[last] == 0) {
+            last--;
+        }
+        text.append(name).append(":");
+        for (int i = 0; i <= last; i++) {
+            text.append(' ').append(counts[i]);
+        }
+        text.append("\n");
+    }
+}
@@ -0,0 +1,67 @@
+package weka.classifiers.meta.filtertree;
+
+/**
+ * The management interface of {@link BuildMetrics}. Histograms of times count nodes by the binary logarithm of the
+ * time in microseconds (bucket i holds times in [2^i, 2^(i+1)) microseconds, bucket 0 also everything shorter);
+ * the histogram of rows likewise by the binary logarithm of the number of rows; the histogram of depths by depth;
+ * the histogram of gains by information gain in steps of 0.1 bits. The last bucket of each also holds everything
+ * beyond it.
+ */
+public interface BuildMetricsMXBean {
+
+    /** @return the number of builds */
+    long getBuilds();
+
+    /** @return the total time of all builds, in milliseconds */
+    double getBuildMillis();
+
+    /** @return the number of nodes built */
+    long getNodes();
+
+    /** @return the number of nodes that became split nodes */
+    long getSplitNodes();
+
+    /** @return the number of nodes that became leaves */
+    long getLeaves();
+
+    /** @return the total number of training rows over all nodes */
+    long getRows();
+
+    /** @return the total time spent filtering, in milliseconds */
+    double getFilterMillis();
+
+    /** @return the total time spent searching for splits, in milliseconds */
+    double getSearchMillis();
+
+    /** @return the total time spent partitioning rows, in milliseconds */
+    double getPartitionMillis();
+
+    /** @return the mean information gain of the split nodes */
+    double getMeanGain();
+
+    /** @return the largest depth of a node */
+    int getMaxDepth();
+
+    /** @return the histogram of the time spent filtering per node */
+    long[] getFilterTimeHistogram();
+
+    /** @return the histogram of the time spent searching for the split per node */
+    long[] getSearchTimeHistogram();
+
+    /** @return the histogram of the time spent partitioning per split node */
+    long[] getPartitionTimeHistogram();
+
+    /** @return the histogram of the number of rows per node */
+    long[] getRowsHistogram();
+
+    /** @return the histogram of the depth of the leaves */
+    long[] getDepthHistogram();
+
+    /** @return the histogram of the information gain of the split nodes */
+    long[] getGainHistogram();
+
+    /**
+     * Sets all counters and histograms back to zero.
+     */
+    void reset();
+}
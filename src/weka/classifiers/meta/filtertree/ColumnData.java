@@ -0,0 +1,68 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instances;
+
+/**
+ * Read access to the training data by row and attribute, which is all the column stores need to build themselves.
+ * Implemented over a set of instances by {@link #of} and over a memory-mapped file by {@link ColumnFile}.
+ */
+public interface ColumnData {
+
+    /**
+     * @return the number of rows
+     */
+    int numRows();
+
+    /**
+     * @return the number of attributes, including the class
+     */
+    int numAttributes();
+
+    /**
+     * @return the index of the class attribute
+     */
+    int classIndex();
+
+    /**
+     * @return the number of class values
+     */
+    int numClasses();
+
+    /**
+     * @param row      the row
+     * @param attIndex the attribute
+     * @return the value of the attribute in the row, as stored by Instance.value()
+     */
+    double value(int row, int attIndex);
+
+    /**
+     * Returns a view on a set of instances.
+     *
+     * @param data the instances, with the class index set
+     * @return the view
+     */
+    static ColumnData of(final Instances data) {
+
+        return new ColumnData() {
+            public int numRows() {
+                return data.numInstances();
+            }
+
+            public int numAttributes() {
+                return data.numAttributes();
+            }
+
+            public int classIndex() {
+                return data.classIndex();
+            }
+
+            public int numClasses() {
+                return data.numClasses();
+            }
+
+            public double value(int row, int attIndex) {
+                return data.instance(row).value(attIndex);
+            }
+        };
+    }
+}
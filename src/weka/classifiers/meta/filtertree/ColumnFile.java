@@ -0,0 +1,221 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.DoubleBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+
+/**
+ * A training set stored column by column in a binary file, which is memory-mapped rather than read onto the heap,
+ * so a FilterTree can be trained on more data than fits there. The column stores read the values of a node's rows
+ * straight from the mapping, and only the rows passed to a node's filter are turned into instances.
+ * <p>
+ * The file starts with a header written by DataOutputStream: the magic number, the length and UTF-8 bytes of the
+ * ARFF header of the data, the class index, the number of rows and whether any value is missing. The values of
+ * every attribute follow in turn, one double per row, starting at the next multiple of 8 bytes. Rows with a
+ * missing class are left out, and weights are not kept.
+ * <p>
+ * Usage for converting any file Weka can read, with the class last:
+ * {@code ColumnFile.write(new DataSource("train.arff"), -1, new File("train.col"))}, and for training on it:
+ * {@code new FilterTree().buildClassifier(new ColumnFile(new File("train.col")))}
+ */
+public class ColumnFile implements ColumnData {
+
+    /** The first int of every column file */
+    public static final int MAGIC = 0x46544346;
+
+    /** The largest number of rows, as every column is mapped as one buffer */
+    public static final int MAX_ROWS = Integer.MAX_VALUE / 8;
+
+    /** The header of the data, without rows */
+    protected Instances m_Header;
+
+    /** The number of rows */
+    protected int m_NumRows;
+
+    /** True if any value in the file is missing */
+    protected boolean m_HasMissingValues;
+
+    /** The mapped values of every attribute */
+    protected DoubleBuffer[] m_Columns;
+
+    /**
+     * Maps a column file.
+     *
+     * @param file the file
+     * @throws IOException if the file cannot be read or is not a column file
+     */
+    public ColumnFile(File file) throws IOException {
+
+        long dataStart;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a column file");
+            }
+            byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            int classIndex = in.readInt();
+            m_NumRows = in.readInt();
+            m_HasMissingValues = in.readBoolean();
+            m_Header = new Instances(new StringReader(new String(header, StandardCharsets.UTF_8)));
+            m_Header.setClassIndex(classIndex);
+            dataStart = dataStart(header);
+        }
+        long columnBytes = (long) m_NumRows * 8;
+        m_Columns = new DoubleBuffer[m_Header.numAttributes()];
+        //the mappings stay valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() < dataStart + columnBytes * m_Columns.length) {
+                throw new IOException(file + " is truncated");
+            }
+            for (int a = 0; a < m_Columns.length; a++) {
+                m_Columns[a] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + a * columnBytes, columnBytes)
+                        .asDoubleBuffer();
+            }
+        }
+    }
+
+    /**
+     * @param header the bytes of the ARFF header
+     * @return the position after the header, whose last byte is the flag for missing values
+     */
+    protected static long headerEnd(byte[] header) {
+        return 4 + 4 + header.length + 4 + 4 + 1;
+    }
+
+    /**
+     * @param header the bytes of the ARFF header
+     * @return the position of the first value, after the header and aligned to 8 bytes
+     */
+    protected static long dataStart(byte[] header) {
+        return (headerEnd(header) + 7) / 8 * 8;
+    }
+
+    /**
+     * Writes a data set to a column file, reading it twice, once for counting the rows and once for the values, so
+     * it is never held on the heap. Rows with a missing class are left out. Sources that cannot be read
+     * incrementally are loaded in full by Weka.
+     *
+     * @param source     the data
+     * @param classIndex the class index, or -1 for the last attribute
+     * @param file       the file to write
+     * @throws Exception if the data cannot be read or the file cannot be written
+     */
+    public static void write(DataSource source, int classIndex, File file) throws Exception {
+
+        Instances structure = source.getStructure();
+        structure.setClassIndex(classIndex < 0 ? structure.numAttributes() - 1 : classIndex);
+        long numRows = 0;
+        while (source.hasMoreElements(structure)) {
+            if (!source.nextElement(structure).classIsMissing()) {
+                numRows++;
+            }
+        }
+        if (numRows > MAX_ROWS) {
+            throw new IOException("A column file holds at most " + MAX_ROWS + " rows, the data has " + numRows);
+        }
+        byte[] header = new Instances(structure, 0).toString().getBytes(StandardCharsets.UTF_8);
+        long dataStart = dataStart(header);
+        long columnBytes = numRows * 8;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(header.length);
+            out.write(header);
+            out.writeInt(structure.classIndex());
+            out.writeInt((int) numRows);
+            //rewritten once the values are known
+            out.writeBoolean(false);
+        }
+        boolean hasMissingValues = false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(dataStart + columnBytes * structure.numAttributes());
+            DoubleBuffer[] columns = new DoubleBuffer[structure.numAttributes()];
+            for (int a = 0; a < columns.length; a++) {
+                columns[a] = channel.map(FileChannel.MapMode.READ_WRITE, dataStart + a * columnBytes, columnBytes)
+                        .asDoubleBuffer();
+            }
+            source.reset();
+            source.getStructure();
+            for (int row = 0; row < numRows; ) {
+                Instance instance = source.nextElement(structure);
+                if (instance.classIsMissing()) {
+                    continue;
+                }
+                hasMissingValues |= instance.hasMissingValue();
+                for (int a = 0; a < columns.length; a++) {
+                    columns[a].put(row, instance.value(a));
+                }
+                row++;
+            }
+            if (hasMissingValues) {
+                raf.seek(headerEnd(header) - 1);
+                raf.writeBoolean(true);
+            }
+        }
+    }
+
+    /**
+     * @return the header of the data, without rows
+     */
+    public Instances header() {
+        return m_Header;
+    }
+
+    /**
+     * @return true if any value in the file is missing
+     */
+    public boolean hasMissingValues() {
+        return m_HasMissingValues;
+    }
+
+    public int numRows() {
+        return m_NumRows;
+    }
+
+    public int numAttributes() {
+        return m_Header.numAttributes();
+    }
+
+    public int classIndex() {
+        return m_Header.classIndex();
+    }
+
+    public int numClasses() {
+        return m_Header.numClasses();
+    }
+
+    public double value(int row, int attIndex) {
+        return m_Columns[attIndex].get(row);
+    }
+
+    /**
+     * Turns a row into an instance of the header.
+     *
+     * @param row the row
+     * @return the instance, with weight 1
+     */
+    public Instance instance(int row) {
+
+        double[] values = new double[m_Columns.length];
+        for (int a = 0; a < values.length; a++) {
+            values[a] = m_Columns[a].get(row);
+        }
+        Instance instance = new DenseInstance(1.0, values);
+        instance.setDataset(m_Header);
+        return instance;
+    }
+}
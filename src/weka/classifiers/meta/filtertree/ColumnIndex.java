@@ -0,0 +1,306 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A primitive column store over the (filtered) data of a FilterTree node. It holds one double[] per attribute,
+ * the class value of every row, and one int[] per attribute giving the node's rows in ascending order of that
+ * attribute. The sort is done once when the index is built.
+ * <p>
+ * An index covers a range of positions in a row array, which lists the node's rows in their original order.
+ * When a node's filter leaves the data unchanged, its children are views on the same arrays: every sorted order
+ * is partitioned in place and stably, so each child's rows stay sorted in a sub-range and nothing is sorted or
+ * copied again.
+ * <p>
+ * A compact index keeps the values as floats instead, halving the memory of the columns and the memory traffic of
+ * the scans. Values are rounded to float before sorting, so values equal as floats are never split apart.
+ */
+public class ColumnIndex implements SplitColumns {
+
+    /** The rows of the index in their original order, or null if row i is at position i */
+    protected int[] m_Rows;
+
+    /** The first position covered by the index */
+    protected int m_From;
+
+    /** The position after the last one covered by the index */
+    protected int m_To;
+
+    /** The number of class values */
+    protected int m_NumClasses;
+
+    /** The value of every attribute for every row, indexed [attribute][row]; null for the class attribute */
+    protected double[][] m_Columns;
+
+    /** The float value of every attribute for every row in a compact index, null otherwise */
+    protected float[][] m_FloatColumns;
+
+    /** The rows in ascending order of each attribute, indexed [attribute][position]; null for the class attribute */
+    protected int[][] m_SortedRows;
+
+    /** The class value of every row */
+    protected int[] m_ClassValues;
+
+    /** Scratch space marking the rows that go to the left in a split, indexed by row */
+    protected boolean[] m_GoesLeft;
+
+    /** True for a view on the arrays of another index */
+    protected boolean m_IsView;
+
+    /**
+     * Builds the column index for all rows of the given data, sorting every non-class attribute once.
+     *
+     * @param data the data to index
+     */
+    public ColumnIndex(Instances data) {
+        this(data, null, 0, data.numInstances());
+    }
+
+    /**
+     * Builds the column index for some rows of the given data, sorting every non-class attribute once. The index
+     * keeps a reference to the row array; the caller is responsible for partitioning it the same way as the index
+     * after each {@link #split}.
+     *
+     * @param data the data to index
+     * @param rows the rows of the data in their original order, or null for all rows
+     * @param from the first position of the range in rows
+     * @param to   the position after the last one of the range in rows
+     */
+    public ColumnIndex(Instances data, int[] rows, int from, int to) {
+        this(ColumnData.of(data), rows, from, to, false);
+    }
+
+    /**
+     * Builds the column index for some rows of the given data, with the values kept as doubles or floats.
+     *
+     * @param data    the data to index
+     * @param rows    the rows of the data in their original order, or null for all rows
+     * @param from    the first position of the range in rows
+     * @param to      the position after the last one of the range in rows
+     * @param compact true to keep the values as floats
+     */
+    public ColumnIndex(Instances data, int[] rows, int from, int to, boolean compact) {
+        this(ColumnData.of(data), rows, from, to, compact);
+    }
+
+    /**
+     * Builds the column index for some rows of the given data, reading the data one attribute at a time.
+     *
+     * @param data the data to index
+     * @param rows the rows of the data in their original order, or null for all rows
+     * @param from the first position of the range in rows
+     * @param to   the position after the last one of the range in rows
+     */
+    public ColumnIndex(ColumnData data, int[] rows, int from, int to) {
+        this(data, rows, from, to, false);
+    }
+
+    /**
+     * Builds the column index for some rows of the given data, reading the data one attribute at a time, with the
+     * values kept as doubles or floats.
+     *
+     * @param data    the data to index
+     * @param rows    the rows of the data in their original order, or null for all rows
+     * @param from    the first position of the range in rows
+     * @param to      the position after the last one of the range in rows
+     * @param compact true to keep the values as floats
+     */
+    public ColumnIndex(ColumnData data, int[] rows, int from, int to, boolean compact) {
+
+        m_Rows = rows;
+        m_From = from;
+        m_To = to;
+        m_NumClasses = data.numClasses();
+        if (compact) {
+            m_FloatColumns = new float[data.numAttributes()][];
+        } else {
+            m_Columns = new double[data.numAttributes()][];
+        }
+        m_SortedRows = new int[data.numAttributes()][];
+        m_ClassValues = new int[data.numRows()];
+        m_GoesLeft = new boolean[data.numRows()];
+
+        int classIndex = data.classIndex();
+        for (int p = from; p < to; p++) {
+            int row = row(p);
+            m_ClassValues[row] = (int) data.value(row, classIndex);
+        }
+        double[] values = new double[to - from];
+        for (int a = 0; a < data.numAttributes(); a++) {
+            if (a == classIndex) {
+                continue;
+            }
+            if (compact) {
+                float[] column = new float[data.numRows()];
+                for (int p = from; p < to; p++) {
+                    int row = row(p);
+                    column[row] = (float) data.value(row, a);
+                    values[p - from] = column[row];
+                }
+                m_FloatColumns[a] = column;
+            } else {
+                double[] column = new double[data.numRows()];
+                for (int p = from; p < to; p++) {
+                    int row = row(p);
+                    column[row] = data.value(row, a);
+                    values[p - from] = column[row];
+                }
+                m_Columns[a] = column;
+            }
+            //missing values are sorted to the end, as Instances.sort() does
+            int[] order = Utils.sort(values);
+            int[] sortedRows = new int[data.numRows()];
+            for (int i = 0; i < order.length; i++) {
+                sortedRows[from + i] = row(from + order[i]);
+            }
+            m_SortedRows[a] = sortedRows;
+        }
+    }
+
+    /**
+     * Constructor for a view on part of an existing index.
+     */
+    protected ColumnIndex(ColumnIndex parent, int from, int to) {
+
+        m_Rows = parent.m_Rows;
+        m_From = from;
+        m_To = to;
+        m_NumClasses = parent.m_NumClasses;
+        m_Columns = parent.m_Columns;
+        m_FloatColumns = parent.m_FloatColumns;
+        m_SortedRows = parent.m_SortedRows;
+        m_ClassValues = parent.m_ClassValues;
+        m_GoesLeft = parent.m_GoesLeft;
+        m_IsView = true;
+    }
+
+    /**
+     * @param position a position in the range of the index
+     * @return the row at the position
+     */
+    protected int row(int position) {
+        return m_Rows == null ? position : m_Rows[position];
+    }
+
+    /**
+     * @return the number of rows in the index
+     */
+    public int numRows() {
+        return m_To - m_From;
+    }
+
+    /**
+     * @return the number of class values
+     */
+    public int numClasses() {
+        return m_NumClasses;
+    }
+
+    /**
+     * @return the number of bytes held by the index, none for a view
+     */
+    public long sizeInBytes() {
+
+        if (m_IsView) {
+            return 0;
+        }
+        long rows = m_ClassValues.length;
+        long bytes = rows * 5;
+        for (int[] order : m_SortedRows) {
+            if (order != null) {
+                bytes += rows * (m_FloatColumns != null ? 8 : 12);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Counts the rows of each class.
+     *
+     * @return the class counts
+     */
+    public int[] classCounts() {
+
+        int[] classCounts = new int[m_NumClasses];
+        for (int p = m_From; p < m_To; p++) {
+            classCounts[m_ClassValues[row(p)]]++;
+        }
+        return classCounts;
+    }
+
+    /**
+     * Finds the best threshold for one attribute by scanning it in sorted order.
+     *
+     * @param attIndex the attribute index
+     * @param scanner  the split scanner, reset for the rows of this index
+     * @return the information gain of the best threshold
+     */
+    public double scan(int attIndex, SplitScanner scanner) {
+        if (m_FloatColumns != null) {
+            return scanner.scan(m_SortedRows[attIndex], m_From, m_To, m_FloatColumns[attIndex], m_ClassValues);
+        }
+        return scanner.scan(m_SortedRows[attIndex], m_From, m_To, m_Columns[attIndex], m_ClassValues);
+    }
+
+    /**
+     * Tells for every row whether its value for the given attribute is smaller than the split value.
+     *
+     * @param attIndex   the split attribute
+     * @param splitValue the split value
+     * @return true for the rows that go to the left, in their original order
+     */
+    public boolean[] goesLeft(int attIndex, double splitValue) {
+
+        boolean[] goesLeft = new boolean[m_To - m_From];
+        if (m_FloatColumns != null) {
+            float[] splitColumn = m_FloatColumns[attIndex];
+            for (int p = m_From; p < m_To; p++) {
+                goesLeft[p - m_From] = splitColumn[row(p)] < splitValue;
+            }
+            return goesLeft;
+        }
+        double[] splitColumn = m_Columns[attIndex];
+        for (int p = m_From; p < m_To; p++) {
+            goesLeft[p - m_From] = splitColumn[row(p)] < splitValue;
+        }
+        return goesLeft;
+    }
+
+    /**
+     * Splits the index into views on the rows that go to the left and the remaining rows. The sorted order of every
+     * attribute is partitioned in place and stably, so both halves stay sorted. The row array is not touched and
+     * must be partitioned stably by the caller afterwards.
+     *
+     * @param goesLeft true for the rows that go to the left, in their original order
+     * @return the left and the right index
+     */
+    public ColumnIndex[] split(boolean[] goesLeft) {
+
+        int numLeft = 0;
+        for (int p = m_From; p < m_To; p++) {
+            m_GoesLeft[row(p)] = goesLeft[p - m_From];
+            if (goesLeft[p - m_From]) {
+                numLeft++;
+            }
+        }
+        int[] right = new int[m_To - m_From - numLeft];
+        for (int[] order : m_SortedRows) {
+            if (order == null) {
+                continue;
+            }
+            int l = m_From;
+            int r = 0;
+            for (int p = m_From; p < m_To; p++) {
+                int row = order[p];
+                if (m_GoesLeft[row]) {
+                    order[l++] = row;
+                } else {
+                    right[r++] = row;
+                }
+            }
+            System.arraycopy(right, 0, order, l, r);
+        }
+        return new ColumnIndex[]{new ColumnIndex(this, m_From, m_From + numLeft), new ColumnIndex(this, m_From + numLeft, m_To)};
+    }
+}
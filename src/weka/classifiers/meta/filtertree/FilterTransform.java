@@ -0,0 +1,235 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instance;
+import weka.core.SerializationHelper;
+import weka.filters.Filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The transform of a FilterTree split node that filters, safe for concurrent use. Filters keep state between
+ * input() and output(), so every call takes a copy of the filter no other thread is using and gives it back when it
+ * is done. Copies are deserialized from a snapshot of the fitted filter taken before it is first used; a filter that
+ * cannot be serialized is shared, and the threads take turns with it.
+ * <p>
+ * If the split attribute is a {@link LinearProjection} of the unfiltered attributes, it is computed as one dot
+ * product, and the filter is only needed for missing values and values on the split value. A transform loaded
+ * without its filter uses the projection for these as well.
+ * <p>
+ * A transform is serialized with the snapshot of its filter and the projection, as a compiled tree keeps them; the
+ * copies of the filter are made again from the snapshot once the deserialized transform is used.
+ */
+public class FilterTransform implements SplitTransform, Serializable {
+
+    private static final long serialVersionUID = 2741796398264409233L;
+
+    /** The fitted filter, null if the transform was loaded without it or deserialized */
+    protected transient Filter m_Filter;
+
+    /** The split attribute, in the filtered data */
+    protected int m_AttIndex;
+
+    /** The split value */
+    protected double m_SplitValue;
+
+    /** Whether the split attribute is still to be probed for a linear projection */
+    protected boolean m_Probe;
+
+    /** The split attribute as an affine function of the unfiltered attributes, null if it is not one */
+    protected LinearProjection m_Projection;
+
+    /** The filter in serialized form, null if it cannot be serialized */
+    protected byte[] m_FilterBytes;
+
+    /** Copies of the filter that no thread is using at the moment, null until the transform is first used */
+    protected transient volatile BlockingQueue<Filter> m_IdleFilters;
+
+    /**
+     * Constructs the transform of a node; the split attribute is probed for a linear projection when the transform
+     * is first used.
+     *
+     * @param filter     the fitted filter of the node
+     * @param attIndex   the split attribute, in the filtered data
+     * @param splitValue the split value
+     */
+    public FilterTransform(Filter filter, int attIndex, double splitValue) {
+
+        m_Filter = filter;
+        m_AttIndex = attIndex;
+        m_SplitValue = splitValue;
+        m_Probe = true;
+    }
+
+    /**
+     * Constructs the transform of a node from its saved form.
+     *
+     * @param projection  the split attribute as a linear projection, or null
+     * @param filterBytes the serialized filter, or null; without it the projection decides every value
+     * @param attIndex    the split attribute, in the filtered data
+     * @param splitValue  the split value
+     */
+    public FilterTransform(LinearProjection projection, byte[] filterBytes, int attIndex, double splitValue) {
+
+        if (projection == null && filterBytes == null) {
+            throw new IllegalArgumentException("A transform needs a projection or a filter");
+        }
+        m_Projection = projection;
+        m_FilterBytes = filterBytes;
+        m_AttIndex = attIndex;
+        m_SplitValue = splitValue;
+    }
+
+    /**
+     * Filters an instance and returns the value of one attribute of the result.
+     *
+     * @param instance the (unfiltered) instance
+     * @param attIndex the index of the attribute in the filtered data
+     * @return the value of the attribute after filtering
+     */
+    public double transform(Instance instance, int attIndex) throws Exception {
+
+        if (m_IdleFilters == null) {
+            init();
+        }
+        //a linear projection of the split attribute is one dot product, unless the instance has missing values
+        //or is too close to the split value
+        if (m_Projection != null && attIndex == m_AttIndex) {
+            double value = m_Projection.apply(instance, m_SplitValue);
+            if (!Double.isNaN(value)) {
+                return value;
+            }
+            if (!hasFilter()) {
+                //without the filter the projection decides on the split value too
+                return m_Projection.applyWithMissing(instance.toDoubleArray());
+            }
+        }
+        Filter filter = acquireFilter();
+        try {
+            filter.input(instance);
+            return filter.output().value(attIndex);
+        } finally {
+            releaseFilter(filter);
+        }
+    }
+
+    /**
+     * @return the split attribute as a linear projection of the unfiltered attributes, or null if it is not one
+     */
+    public LinearProjection projection() throws Exception {
+
+        if (m_IdleFilters == null) {
+            init();
+        }
+        return m_Projection;
+    }
+
+    /**
+     * @return the filter in serialized form, or null if it cannot be serialized
+     */
+    public byte[] filterBytes() throws Exception {
+
+        if (m_IdleFilters == null) {
+            init();
+        }
+        return m_FilterBytes;
+    }
+
+    /**
+     * @return true if the transform has a filter, either fitted or serialized
+     */
+    protected boolean hasFilter() {
+        return m_Filter != null || m_FilterBytes != null;
+    }
+
+    /**
+     * Takes a copy of the filter for the calling thread, making a new one if all copies are in use, or waiting for
+     * the filter if it cannot be copied.
+     *
+     * @return a filter no other thread is using
+     */
+    public Filter acquireFilter() throws Exception {
+
+        BlockingQueue<Filter> idleFilters = m_IdleFilters;
+        if (idleFilters == null) {
+            idleFilters = init();
+        }
+        Filter filter = idleFilters.poll();
+        if (filter != null) {
+            return filter;
+        }
+        if (m_FilterBytes != null) {
+            return (Filter) SerializationHelper.getObjectInputStream(new ByteArrayInputStream(m_FilterBytes)).readObject();
+        }
+        if (m_Filter == null) {
+            throw new IllegalStateException("The transform was loaded without its filter");
+        }
+        return idleFilters.take();
+    }
+
+    /**
+     * Gives back a filter taken with acquireFilter(), once it has output everything it was given.
+     *
+     * @param filter the filter
+     */
+    public void releaseFilter(Filter filter) {
+        m_IdleFilters.add(filter);
+    }
+
+    /**
+     * Probes the split attribute and takes the snapshot of the filter before writing, so that the filter itself is
+     * not written.
+     *
+     * @param out the stream
+     * @throws IOException if the stream fails, or the filter cannot be serialized
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+
+        try {
+            init();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        if (m_Filter != null && m_FilterBytes == null) {
+            throw new NotSerializableException(m_Filter.getClass().getName());
+        }
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Probes the split attribute for a linear projection and serializes the filter before anyone uses it, if
+     * possible, making the filter itself the first idle copy.
+     */
+    protected synchronized BlockingQueue<Filter> init() throws Exception {
+
+        if (m_IdleFilters == null) {
+            BlockingQueue<Filter> idleFilters = new LinkedBlockingQueue<Filter>();
+            if (m_Filter != null) {
+                if (m_Probe) {
+                    m_Projection = LinearProjection.probe(m_Filter, m_Filter.getCopyOfInputFormat(), m_AttIndex);
+                }
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    ObjectOutputStream out = new ObjectOutputStream(bytes);
+                    out.writeObject(m_Filter);
+                    out.close();
+                    m_FilterBytes = bytes.toByteArray();
+                } catch (NotSerializableException e) {
+                    //some fitted filters hold data that cannot be serialized, such as the matrices of PrincipalComponents
+                    m_FilterBytes = null;
+                }
+                idleFilters.add(m_Filter);
+            }
+            m_IdleFilters = idleFilters;
+        }
+        return m_IdleFilters;
+    }
+}
@@ -0,0 +1,369 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A FilterTree compiled into parallel primitive arrays for fast prediction of single instances. Node i is a split
+ * node if m_Attribute[i] is not negative, and a leaf otherwise. Prediction walks the arrays in a loop without
+ * recursion or type checks; split nodes without a transform (those whose filter is an AllFilter) read the split
+ * attribute from the instance directly.
+ * <p>
+ * Nodes are added by {@link #addSplit} and {@link #addLeaf}; a split node's children are set afterwards by
+ * {@link #setChildren}. The root is the first node added.
+ * <p>
+ * A flat tree can be saved in a compact binary format by {@link #write} and loaded by {@link MappedTree#load}. The
+ * file is little-endian and starts with a header of eight ints: the magic number, the format version, the number of
+ * attributes of the unfiltered data, the class index, the number of classes, nodes, leaves and transforms. Then
+ * come, in this order and each aligned to 8 bytes, the threshold of every node (double), the predictions (double),
+ * the split attribute, left child, right child, transform slot and prediction offset of every node (int), the offset
+ * in the file of every transform (long), and the transforms. A transform starts with four ints, the node it belongs
+ * to, the number of weights of its linear projection (-1 for none), the length of its serialized filter (-1 for
+ * none) and 1 if the projection has values for missing inputs, 0 otherwise; then come the projection's intercept,
+ * weights and values for missing inputs (double) and attribute indices (int), and the serialized filter, aligned to
+ * 8 bytes.
+ */
+public class FlatTree implements Serializable {
+
+    private static final long serialVersionUID = 6412077394817230481L;
+
+    /** The first int of the binary format, "FTRE" */
+    public static final int MAGIC = 0x46545245;
+
+    /** The version of the binary format */
+    public static final int VERSION = 1;
+
+    /** The number of bytes of the header of the binary format */
+    protected static final int HEADER_BYTES = 32;
+
+    /** The split attribute of every node, in the filtered data; -1 for a leaf */
+    protected int[] m_Attribute;
+
+    /** The split value of every split node */
+    protected double[] m_Threshold;
+
+    /** The node on the left of every split node, -1 for a leaf */
+    protected int[] m_Left;
+
+    /** The node on the right of every split node, -1 for a leaf */
+    protected int[] m_Right;
+
+    /** The slot in m_Transforms of every split node, -1 for nodes that do not filter */
+    protected int[] m_TransformSlot;
+
+    /** The transforms of the split nodes that filter */
+    protected SplitTransform[] m_Transforms;
+
+    /** The offset in m_Predictions of the prediction of every leaf */
+    protected int[] m_PredictionOffset;
+
+    /** The predictions of all leaves, one after the other */
+    protected double[] m_Predictions;
+
+    /** The number of values in a prediction */
+    protected int m_NumClasses;
+
+    /** The number of nodes added so far */
+    protected int m_NumNodes;
+
+    /** The number of transforms added so far */
+    protected int m_NumTransforms;
+
+    /** The number of leaves added so far */
+    protected int m_NumLeaves;
+
+    /**
+     * Constructs an empty flat tree.
+     *
+     * @param numClasses the number of values in a prediction
+     */
+    public FlatTree(int numClasses) {
+
+        m_NumClasses = numClasses;
+        m_Attribute = new int[16];
+        m_Threshold = new double[16];
+        m_Left = new int[16];
+        m_Right = new int[16];
+        m_TransformSlot = new int[16];
+        m_PredictionOffset = new int[16];
+        m_Transforms = new SplitTransform[4];
+        m_Predictions = new double[16 * numClasses];
+    }
+
+    /**
+     * Makes room for one more node.
+     *
+     * @return the index of the new node
+     */
+    protected int newNode() {
+
+        if (m_NumNodes == m_Attribute.length) {
+            int capacity = m_NumNodes * 2;
+            m_Attribute = Arrays.copyOf(m_Attribute, capacity);
+            m_Threshold = Arrays.copyOf(m_Threshold, capacity);
+            m_Left = Arrays.copyOf(m_Left, capacity);
+            m_Right = Arrays.copyOf(m_Right, capacity);
+            m_TransformSlot = Arrays.copyOf(m_TransformSlot, capacity);
+            m_PredictionOffset = Arrays.copyOf(m_PredictionOffset, capacity);
+        }
+        int node = m_NumNodes++;
+        m_Left[node] = -1;
+        m_Right[node] = -1;
+        m_TransformSlot[node] = -1;
+        m_PredictionOffset[node] = -1;
+        return node;
+    }
+
+    /**
+     * Adds a split node; its children are set by {@link #setChildren}.
+     *
+     * @param attIndex   the split attribute, in the filtered data
+     * @param splitValue the split value
+     * @param transform  the transform of the node, or null if it does not filter
+     * @return the index of the node
+     */
+    public int addSplit(int attIndex, double splitValue, SplitTransform transform) {
+
+        int node = newNode();
+        m_Attribute[node] = attIndex;
+        m_Threshold[node] = splitValue;
+        if (transform != null) {
+            if (m_NumTransforms == m_Transforms.length) {
+                m_Transforms = Arrays.copyOf(m_Transforms, m_NumTransforms * 2);
+            }
+            m_Transforms[m_NumTransforms] = transform;
+            m_TransformSlot[node] = m_NumTransforms++;
+        }
+        return node;
+    }
+
+    /**
+     * Sets the children of a split node.
+     *
+     * @param node  the split node
+     * @param left  the node on the left
+     * @param right the node on the right
+     */
+    public void setChildren(int node, int left, int right) {
+
+        m_Left[node] = left;
+        m_Right[node] = right;
+    }
+
+    /**
+     * Adds a leaf.
+     *
+     * @param prediction the prediction of the leaf
+     * @return the index of the node
+     */
+    public int addLeaf(double[] prediction) {
+
+        int node = newNode();
+        m_Attribute[node] = -1;
+        if ((m_NumLeaves + 1) * m_NumClasses > m_Predictions.length) {
+            m_Predictions = Arrays.copyOf(m_Predictions, m_Predictions.length * 2);
+        }
+        m_PredictionOffset[node] = m_NumLeaves * m_NumClasses;
+        System.arraycopy(prediction, 0, m_Predictions, m_NumLeaves * m_NumClasses, m_NumClasses);
+        m_NumLeaves++;
+        return node;
+    }
+
+    /**
+     * Releases the room kept for more nodes, once the tree is complete.
+     */
+    public void trim() {
+
+        m_Attribute = Arrays.copyOf(m_Attribute, m_NumNodes);
+        m_Threshold = Arrays.copyOf(m_Threshold, m_NumNodes);
+        m_Left = Arrays.copyOf(m_Left, m_NumNodes);
+        m_Right = Arrays.copyOf(m_Right, m_NumNodes);
+        m_TransformSlot = Arrays.copyOf(m_TransformSlot, m_NumNodes);
+        m_PredictionOffset = Arrays.copyOf(m_PredictionOffset, m_NumNodes);
+        m_Transforms = Arrays.copyOf(m_Transforms, m_NumTransforms);
+        m_Predictions = Arrays.copyOf(m_Predictions, m_NumLeaves * m_NumClasses);
+    }
+
+    /**
+     * @return the number of nodes in the tree
+     */
+    public int numNodes() {
+        return m_NumNodes;
+    }
+
+    /**
+     * Saves the tree in the binary format. Every transform must be a {@link FilterTransform} whose split attribute
+     * is a linear projection or whose filter can be serialized. Filters are only saved where the projection cannot
+     * stand in for them, unless asked for: a tree saved without filters makes the same predictions except, rarely,
+     * for values within rounding error of a split value.
+     *
+     * @param file          the file to write
+     * @param numAttributes the number of attributes of the unfiltered data
+     * @param classIndex    the class index of the unfiltered data
+     * @param withFilters   whether to save the filters of the nodes with a linear projection too
+     */
+    public void write(File file, int numAttributes, int classIndex, boolean withFilters) throws Exception {
+
+        //the transforms first, since their size is only known once the filters are serialized
+        ByteBuffer[] transforms = new ByteBuffer[m_NumTransforms];
+        for (int node = 0; node < m_NumNodes; node++) {
+            int slot = m_TransformSlot[node];
+            if (slot >= 0) {
+                transforms[slot] = transformRecord(node, m_Transforms[slot], withFilters);
+            }
+        }
+        long size = HEADER_BYTES;
+        size += align((long) m_NumNodes * 8) + align((long) m_NumLeaves * m_NumClasses * 8);
+        size += 5 * align((long) m_NumNodes * 4) + (long) m_NumTransforms * 8;
+        for (ByteBuffer transform : transforms) {
+            size += transform.capacity();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Tree too large for the binary format: " + size + " bytes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(numAttributes).putInt(classIndex);
+        buffer.putInt(m_NumClasses).putInt(m_NumNodes).putInt(m_NumLeaves).putInt(m_NumTransforms);
+        for (int node = 0; node < m_NumNodes; node++) {
+            buffer.putDouble(m_Threshold[node]);
+        }
+        for (int i = 0; i < m_NumLeaves * m_NumClasses; i++) {
+            buffer.putDouble(m_Predictions[i]);
+        }
+        for (int[] array : new int[][]{m_Attribute, m_Left, m_Right, m_TransformSlot, m_PredictionOffset}) {
+            for (int node = 0; node < m_NumNodes; node++) {
+                buffer.putInt(array[node]);
+            }
+            pad(buffer);
+        }
+        long offset = buffer.position() + (long) m_NumTransforms * 8;
+        for (ByteBuffer transform : transforms) {
+            buffer.putLong(offset);
+            offset += transform.capacity();
+        }
+        for (ByteBuffer transform : transforms) {
+            buffer.put(transform.array());
+        }
+
+        buffer.flip();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Encodes the transform of a node for the binary format.
+     */
+    protected ByteBuffer transformRecord(int node, SplitTransform transform, boolean withFilters) throws Exception {
+
+        if (!(transform instanceof FilterTransform)) {
+            throw new IllegalArgumentException("Cannot save a transform of type " + transform.getClass().getName());
+        }
+        LinearProjection projection = ((FilterTransform) transform).projection();
+        byte[] filterBytes = null;
+        if (withFilters || projection == null || !projection.handlesMissing()) {
+            filterBytes = ((FilterTransform) transform).filterBytes();
+        }
+        if (projection == null && filterBytes == null) {
+            throw new IllegalArgumentException("The filter of node " + node
+                    + " can neither be serialized nor reduced to a linear projection");
+        }
+        int numWeights = projection == null ? 0 : projection.m_Weights.length;
+        boolean hasMissingValues = projection != null && projection.handlesMissing();
+        long size = 16;
+        if (projection != null) {
+            size += 8 + numWeights * (hasMissingValues ? 16L : 8L) + align(numWeights * 4L);
+        }
+        if (filterBytes != null) {
+            size += align(filterBytes.length);
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(node).putInt(projection == null ? -1 : numWeights);
+        record.putInt(filterBytes == null ? -1 : filterBytes.length).putInt(hasMissingValues ? 1 : 0);
+        if (projection != null) {
+            record.putDouble(projection.m_Intercept);
+            for (double weight : projection.m_Weights) {
+                record.putDouble(weight);
+            }
+            if (hasMissingValues) {
+                for (double missingValue : projection.m_MissingValues) {
+                    record.putDouble(missingValue);
+                }
+            }
+            for (int index : projection.m_Indices) {
+                record.putInt(index);
+            }
+            pad(record);
+        }
+        if (filterBytes != null) {
+            record.put(filterBytes);
+        }
+        return record;
+    }
+
+    /**
+     * @return the given number of bytes rounded up to a multiple of 8
+     */
+    protected static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Moves the position of a buffer on to a multiple of 8, writing zeros.
+     */
+    protected static void pad(ByteBuffer buffer) {
+
+        while ((buffer.position() & 7) != 0) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Finds the leaf an instance ends up in.
+     *
+     * @param instance the instance
+     * @return the index of the leaf
+     */
+    public int leafFor(Instance instance) throws Exception {
+
+        int[] attribute = m_Attribute;
+        int node = 0;
+        int attIndex;
+        while ((attIndex = attribute[node]) >= 0) {
+            int slot = m_TransformSlot[node];
+            double value = slot < 0 ? instance.value(attIndex) : m_Transforms[slot].transform(instance, attIndex);
+            node = value < m_Threshold[node] ? m_Left[node] : m_Right[node];
+        }
+        return node;
+    }
+
+    /**
+     * Adds the prediction of the leaf an instance ends up in to the given estimates.
+     *
+     * @param distribution the estimates to be updated
+     * @param instance     the instance
+     */
+    public void distributionForInstance(double[] distribution, Instance instance) throws Exception {
+
+        int offset = m_PredictionOffset[leafFor(instance)];
+        for (int i = 0; i < m_NumClasses; i++) {
+            distribution[i] += m_Predictions[offset + i];
+        }
+    }
+}
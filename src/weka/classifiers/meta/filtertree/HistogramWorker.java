@@ -0,0 +1,318 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * A worker of a distributed FilterTree build. It holds one shard of the training data and answers the requests of
+ * a coordinator, described in {@link WorkerConnection}: it bins its rows with the cuts it is sent, counts the
+ * classes of every bin for the nodes it is asked about and moves its rows to the children of every split. Only
+ * class counts leave the worker, never rows. Coordinators are served one after another, each with fresh nodes.
+ * <p>
+ * Usage: {@code java weka.classifiers.meta.filtertree.HistogramWorker -data <file> -port <int> [-c <index>]
+ * [-host <address>]}
+ */
+public class HistogramWorker {
+
+    /** The shard of the training data */
+    protected Instances m_Data;
+
+    /** The class value of every row */
+    protected int[] m_ClassValues;
+
+    /** The cuts of every attribute, null for the class */
+    protected double[][] m_Cuts;
+
+    /** The bin of every row for each attribute, indexed [attribute][row]; null for the class attribute */
+    protected int[][] m_Bins;
+
+    /** The node of every row */
+    protected int[] m_NodeOf;
+
+    /**
+     * Constructs a worker for a shard, whose rows with a missing class are ignored.
+     *
+     * @param data the shard, with the class index set
+     */
+    public HistogramWorker(Instances data) {
+
+        m_Data = new Instances(data);
+        m_Data.deleteWithMissingClass();
+        m_ClassValues = new int[m_Data.numInstances()];
+        for (int row = 0; row < m_ClassValues.length; row++) {
+            m_ClassValues[row] = (int) m_Data.instance(row).classValue();
+        }
+    }
+
+    /**
+     * Serves coordinators on the given socket until the thread is interrupted or the socket is closed.
+     *
+     * @param serverSocket the socket to accept coordinators on
+     */
+    public void serve(ServerSocket serverSocket) throws IOException {
+
+        while (!Thread.currentThread().isInterrupted()) {
+            Socket socket = serverSocket.accept();
+            try {
+                socket.setTcpNoDelay(true);
+                serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                        new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+            } catch (IOException e) {
+                //the coordinator went away, wait for the next one
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of one coordinator until it closes the connection.
+     *
+     * @param in  the requests
+     * @param out the answers
+     */
+    protected void serve(DataInputStream in, DataOutputStream out) throws IOException {
+
+        m_Cuts = null;
+        m_Bins = null;
+        m_NodeOf = null;
+        while (true) {
+            byte command;
+            try {
+                command = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            try {
+                switch (command) {
+                    case WorkerConnection.INFO:
+                        out.writeByte(WorkerConnection.OK);
+                        out.writeInt(m_Data.numInstances());
+                        out.writeInt(m_Data.numAttributes());
+                        out.writeInt(m_Data.numClasses());
+                        out.writeInt(m_Data.classIndex());
+                        break;
+                    case WorkerConnection.SAMPLE:
+                        sample(in, out);
+                        break;
+                    case WorkerConnection.CUTS:
+                        cuts(in);
+                        out.writeByte(WorkerConnection.OK);
+                        break;
+                    case WorkerConnection.HISTOGRAMS:
+                        histograms(in, out);
+                        break;
+                    case WorkerConnection.SPLIT:
+                        split(in);
+                        out.writeByte(WorkerConnection.OK);
+                        break;
+                    default:
+                        throw new IOException("Unknown command " + command);
+                }
+            } catch (RuntimeException e) {
+                //the request was read, so the connection can go on
+                out.writeByte(WorkerConnection.FAILED);
+                out.writeUTF(String.valueOf(e));
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Answers the values of the rows asked for, attribute by attribute.
+     */
+    protected void sample(DataInputStream in, DataOutputStream out) throws IOException {
+
+        int[] rows = new int[in.readInt()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = in.readInt();
+        }
+        //the answer is only started once every row is known to exist
+        double[][] values = new double[rows.length][];
+        for (int i = 0; i < rows.length; i++) {
+            values[i] = m_Data.instance(rows[i]).toDoubleArray();
+        }
+        out.writeByte(WorkerConnection.OK);
+        for (int a = 0; a < m_Data.numAttributes(); a++) {
+            if (a == m_Data.classIndex()) {
+                continue;
+            }
+            for (double[] rowValues : values) {
+                out.writeDouble(rowValues[a]);
+            }
+        }
+    }
+
+    /**
+     * Reads the cuts, bins every row and puts all rows into node 0.
+     */
+    protected void cuts(DataInputStream in) throws IOException {
+
+        m_Cuts = new double[m_Data.numAttributes()][];
+        m_Bins = new int[m_Data.numAttributes()][];
+        for (int a = 0; a < m_Cuts.length; a++) {
+            int numCuts = in.readInt();
+            if (numCuts < 0) {
+                continue;
+            }
+            double[] cuts = new double[numCuts];
+            for (int k = 0; k < numCuts; k++) {
+                cuts[k] = in.readDouble();
+            }
+            m_Cuts[a] = cuts;
+        }
+        for (int a = 0; a < m_Cuts.length; a++) {
+            if (m_Cuts[a] == null) {
+                continue;
+            }
+            int[] bins = new int[m_Data.numInstances()];
+            for (int row = 0; row < bins.length; row++) {
+                bins[row] = BinnedColumns.binOf(m_Cuts[a], m_Data.instance(row).value(a));
+            }
+            m_Bins[a] = bins;
+        }
+        m_NodeOf = new int[m_Data.numInstances()];
+    }
+
+    /**
+     * Maps node ids to their position in a request.
+     *
+     * @param nodes the node ids of the request
+     * @return the position of every node id up to the largest one, -1 for the ones not asked about
+     */
+    protected static int[] slots(int[] nodes) {
+
+        int maxNode = -1;
+        for (int node : nodes) {
+            maxNode = Math.max(maxNode, node);
+        }
+        int[] slots = new int[maxNode + 1];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < nodes.length; i++) {
+            slots[nodes[i]] = i;
+        }
+        return slots;
+    }
+
+    /**
+     * Counts the classes of every bin of every attribute for the nodes asked about, in one pass over the rows.
+     */
+    protected void histograms(DataInputStream in, DataOutputStream out) throws IOException {
+
+        int[] nodes = new int[in.readInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = in.readInt();
+        }
+        int numClasses = m_Data.numClasses();
+        int[] slots = slots(nodes);
+        int[][] classCounts = new int[nodes.length][numClasses];
+        int[][][] histograms = new int[nodes.length][m_Cuts.length][];
+        for (int n = 0; n < nodes.length; n++) {
+            for (int a = 0; a < m_Cuts.length; a++) {
+                if (m_Cuts[a] != null) {
+                    histograms[n][a] = new int[(m_Cuts[a].length + 1) * numClasses];
+                }
+            }
+        }
+        for (int row = 0; row < m_NodeOf.length; row++) {
+            int node = m_NodeOf[row];
+            int slot = node < slots.length ? slots[node] : -1;
+            if (slot < 0) {
+                continue;
+            }
+            int c = m_ClassValues[row];
+            classCounts[slot][c]++;
+            int[][] nodeHistograms = histograms[slot];
+            for (int a = 0; a < nodeHistograms.length; a++) {
+                if (nodeHistograms[a] != null) {
+                    nodeHistograms[a][m_Bins[a][row] * numClasses + c]++;
+                }
+            }
+        }
+        out.writeByte(WorkerConnection.OK);
+        for (int n = 0; n < nodes.length; n++) {
+            for (int count : classCounts[n]) {
+                out.writeInt(count);
+            }
+            for (int[] histogram : histograms[n]) {
+                if (histogram == null) {
+                    continue;
+                }
+                for (int count : histogram) {
+                    out.writeInt(count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the rows of every node that is split to its children.
+     */
+    protected void split(DataInputStream in) throws IOException {
+
+        int[][] splits = new int[in.readInt()][5];
+        int[] nodes = new int[splits.length];
+        for (int i = 0; i < splits.length; i++) {
+            for (int j = 0; j < 5; j++) {
+                splits[i][j] = in.readInt();
+            }
+            nodes[i] = splits[i][0];
+        }
+        int[] slots = slots(nodes);
+        for (int row = 0; row < m_NodeOf.length; row++) {
+            int node = m_NodeOf[row];
+            int slot = node < slots.length ? slots[node] : -1;
+            if (slot < 0) {
+                continue;
+            }
+            int[] split = splits[slot];
+            m_NodeOf[row] = m_Bins[split[1]][row] <= split[2] ? split[3] : split[4];
+        }
+    }
+
+    /**
+     * Loads a shard and serves coordinators until the process is stopped.
+     *
+     * @param args the command-line options
+     */
+    public static void main(String[] args) {
+
+        try {
+            String dataFile = Utils.getOption("data", args);
+            String port = Utils.getOption("port", args);
+            if (dataFile.length() == 0 || port.length() == 0) {
+                throw new Exception("Usage: HistogramWorker -data <file> -port <int> [-c <index>] [-host <address>]");
+            }
+            String classIndex = Utils.getOption('c', args);
+            String host = Utils.getOption("host", args);
+            Instances data = DataSource.read(dataFile);
+            if (classIndex.length() == 0 || classIndex.equals("last")) {
+                data.setClassIndex(data.numAttributes() - 1);
+            } else if (classIndex.equals("first")) {
+                data.setClassIndex(0);
+            } else {
+                data.setClassIndex(Integer.parseInt(classIndex) - 1);
+            }
+            //only local coordinators unless an address is given
+            InetAddress address = host.length() == 0 ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+            ServerSocket serverSocket = new ServerSocket(Integer.parseInt(port), 50, address);
+            System.err.println("HistogramWorker: " + data.numInstances() + " rows on " + serverSocket.getLocalSocketAddress());
+            new HistogramWorker(data).serve(serverSocket);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
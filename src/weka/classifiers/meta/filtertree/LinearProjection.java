@@ -0,0 +1,312 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.filters.Filter;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * One output attribute of a fitted filter that is an affine function of the input attributes, such as the
+ * attributes made by RandomProjection, PrincipalComponents or Standardize. The function is recovered by
+ * {@link #probe} from the filter's output for the zero vector and the unit vectors, and checked on random inputs;
+ * after that the attribute costs one dot product instead of filtering the whole instance. The dot product is not
+ * rounded the way the filter rounds, so a value very close to a split value is left to the filter.
+ * <p>
+ * Filters that replace a missing input by a constant, such as the means ReplaceMissingValues uses inside
+ * RandomProjection and PrincipalComponents, or that make the output missing, such as Standardize, are probed for
+ * that too, so that the function can stand in for the filter when the filter is not available.
+ */
+public class LinearProjection implements Serializable {
+
+    private static final long serialVersionUID = -3088513419283564021L;
+
+    /** The number of random inputs the recovered function is checked on */
+    protected static final int NUM_CHECKS = 4;
+
+    /** The relative error allowed between the filter and the recovered function */
+    protected static final double TOLERANCE = 1e-9;
+
+    /** The input attributes the function depends on */
+    protected int[] m_Indices;
+
+    /** The weight of each of those attributes */
+    protected double[] m_Weights;
+
+    /** The value of the function at the zero vector */
+    protected double m_Intercept;
+
+    /**
+     * The value the filter uses for each of the attributes when it is missing, NaN if the output is then missing;
+     * null if the filter handles missing values some other way
+     */
+    protected double[] m_MissingValues;
+
+    /**
+     * Constructs a projection.
+     *
+     * @param indices   the input attributes the function depends on
+     * @param weights   the weight of each of those attributes
+     * @param intercept the value of the function at the zero vector
+     */
+    public LinearProjection(int[] indices, double[] weights, double intercept) {
+
+        m_Indices = indices;
+        m_Weights = weights;
+        m_Intercept = intercept;
+    }
+
+    /**
+     * Constructs a projection that knows how the filter handles missing values.
+     *
+     * @param indices       the input attributes the function depends on
+     * @param weights       the weight of each of those attributes
+     * @param intercept     the value of the function at the zero vector
+     * @param missingValues the value used for each of the attributes when it is missing, NaN if the output is then
+     *                      missing, or null
+     */
+    public LinearProjection(int[] indices, double[] weights, double intercept, double[] missingValues) {
+
+        this(indices, weights, intercept);
+        m_MissingValues = missingValues;
+    }
+
+    /**
+     * @return true if the projection handles missing values the way the filter does
+     */
+    public boolean handlesMissing() {
+        return m_MissingValues != null;
+    }
+
+    /**
+     * Finds out whether an output attribute of a fitted filter is an affine function of the input attributes. The
+     * filter must not be in use by another thread; the class attribute is left missing in every input.
+     *
+     * @param filter      the fitted filter
+     * @param inputFormat the filter's input format; every attribute but the class must be numeric
+     * @param attIndex    the output attribute
+     * @return the function, or null if the output attribute is not affine
+     */
+    public static LinearProjection probe(Filter filter, Instances inputFormat, int attIndex) throws Exception {
+
+        int numInputs = inputFormat.numAttributes();
+        int classIndex = inputFormat.classIndex();
+        for (int a = 0; a < numInputs; a++) {
+            if (a != classIndex && !inputFormat.attribute(a).isNumeric()) {
+                return null;
+            }
+        }
+        int[] indices = new int[classIndex >= 0 ? numInputs - 1 : numInputs];
+        for (int a = 0, k = 0; a < numInputs; a++) {
+            if (a != classIndex) {
+                indices[k++] = a;
+            }
+        }
+
+        double[] input = new double[numInputs];
+        if (classIndex >= 0) {
+            input[classIndex] = Utils.missingValue();
+        }
+        double intercept = output(filter, inputFormat, input, attIndex);
+        if (Double.isNaN(intercept) || Double.isInfinite(intercept)) {
+            return null;
+        }
+        double[] weights = new double[indices.length];
+        for (int k = 0; k < indices.length; k++) {
+            input[indices[k]] = 1;
+            weights[k] = output(filter, inputFormat, input, attIndex) - intercept;
+            input[indices[k]] = 0;
+            if (Double.isNaN(weights[k]) || Double.isInfinite(weights[k])) {
+                return null;
+            }
+        }
+        LinearProjection projection = new LinearProjection(indices, weights, intercept);
+
+        //a filter could agree with an affine function on the unit vectors only, so check some other inputs too
+        Random random = new Random(attIndex);
+        for (int check = 0; check < NUM_CHECKS; check++) {
+            for (int index : indices) {
+                input[index] = random.nextGaussian() * (check + 1);
+            }
+            double expected = output(filter, inputFormat, input, attIndex);
+            double actual = projection.apply(input);
+            double scale = Math.abs(intercept);
+            for (int k = 0; k < indices.length; k++) {
+                scale += Math.abs(weights[k] * input[indices[k]]);
+            }
+            if (!(Math.abs(expected - actual) <= TOLERANCE * (1 + scale))) {
+                return null;
+            }
+        }
+        projection.m_MissingValues = probeMissing(filter, inputFormat, attIndex, projection, input, random);
+        return projection;
+    }
+
+    /**
+     * Finds out which value the filter uses for a missing input, for every input attribute.
+     *
+     * @return the values, or null if the filter does not replace missing inputs by constants
+     */
+    protected static double[] probeMissing(Filter filter, Instances inputFormat, int attIndex,
+                                           LinearProjection projection, double[] input, Random random) throws Exception {
+
+        int[] indices = projection.m_Indices;
+        double[] weights = projection.m_Weights;
+        double intercept = projection.m_Intercept;
+        double[] missingValues = new double[indices.length];
+        for (int index : indices) {
+            input[index] = 0;
+        }
+        for (int k = 0; k < indices.length; k++) {
+            input[indices[k]] = Utils.missingValue();
+            double value = output(filter, inputFormat, input, attIndex);
+            input[indices[k]] = 0;
+            if (Double.isNaN(value)) {
+                missingValues[k] = Double.NaN;
+            } else if (weights[k] != 0) {
+                missingValues[k] = (value - intercept) / weights[k];
+            } else if (Math.abs(value - intercept) <= TOLERANCE * (1 + Math.abs(intercept))) {
+                missingValues[k] = 0;
+            } else {
+                return null;
+            }
+        }
+        LinearProjection withMissing = new LinearProjection(indices, weights, intercept, missingValues);
+
+        //check inputs with one or two missing values
+        for (int check = 0; check < NUM_CHECKS; check++) {
+            for (int index : indices) {
+                input[index] = random.nextGaussian() * (check + 1);
+            }
+            for (int i = 0; i <= check % 2; i++) {
+                input[indices[random.nextInt(indices.length)]] = Utils.missingValue();
+            }
+            double expected = output(filter, inputFormat, input, attIndex);
+            double actual = withMissing.applyWithMissing(input);
+            if (Double.isNaN(expected) || Double.isNaN(actual)) {
+                if (Double.isNaN(expected) != Double.isNaN(actual)) {
+                    return null;
+                }
+                continue;
+            }
+            double scale = Math.abs(intercept);
+            for (int k = 0; k < indices.length; k++) {
+                double x = input[indices[k]];
+                scale += Math.abs(weights[k] * (Double.isNaN(x) ? missingValues[k] : x));
+            }
+            if (!(Math.abs(expected - actual) <= TOLERANCE * (1 + scale))) {
+                return null;
+            }
+        }
+        return missingValues;
+    }
+
+    /**
+     * Filters one input and returns one output attribute.
+     */
+    protected static double output(Filter filter, Instances inputFormat, double[] input, int attIndex) throws Exception {
+
+        Instance instance = new DenseInstance(1.0, input.clone());
+        instance.setDataset(inputFormat);
+        filter.input(instance);
+        return filter.output().value(attIndex);
+    }
+
+    /**
+     * Computes the function for an instance that is to be compared with a split value. Values closer to the split
+     * value than the tolerance the function was checked with could be on the wrong side of it, so for these, as for
+     * missing values, the filter has to decide.
+     *
+     * @param instance   the (unfiltered) instance
+     * @param splitValue the split value
+     * @return the value of the output attribute, on the same side of the split value as the filter's; NaN if the
+     * filter must be used instead
+     */
+    public double apply(Instance instance, double splitValue) {
+
+        int[] indices = m_Indices;
+        double[] weights = m_Weights;
+        int n = indices.length;
+        //four independent sums, so that the multiplications do not wait for each other
+        double sum0 = 0;
+        double sum1 = 0;
+        double sum2 = 0;
+        double sum3 = 0;
+        double scale = Math.abs(m_Intercept);
+        int k = 0;
+        for (; k + 3 < n; k += 4) {
+            double term0 = weights[k] * instance.value(indices[k]);
+            double term1 = weights[k + 1] * instance.value(indices[k + 1]);
+            double term2 = weights[k + 2] * instance.value(indices[k + 2]);
+            double term3 = weights[k + 3] * instance.value(indices[k + 3]);
+            sum0 += term0;
+            sum1 += term1;
+            sum2 += term2;
+            sum3 += term3;
+            scale += (Math.abs(term0) + Math.abs(term1)) + (Math.abs(term2) + Math.abs(term3));
+        }
+        for (; k < n; k++) {
+            double term = weights[k] * instance.value(indices[k]);
+            sum0 += term;
+            scale += Math.abs(term);
+        }
+        double value = m_Intercept + ((sum0 + sum1) + (sum2 + sum3));
+        //NaN stays NaN here
+        return Math.abs(value - splitValue) > TOLERANCE * (1 + scale) ? value : Double.NaN;
+    }
+
+    /**
+     * Computes the function for the values of an instance.
+     *
+     * @param values the values of the input attributes
+     * @return the value of the output attribute; NaN if a value the function depends on is missing
+     */
+    public double apply(double[] values) {
+
+        int[] indices = m_Indices;
+        double[] weights = m_Weights;
+        int n = indices.length;
+        double sum0 = 0;
+        double sum1 = 0;
+        double sum2 = 0;
+        double sum3 = 0;
+        int k = 0;
+        for (; k + 3 < n; k += 4) {
+            sum0 += weights[k] * values[indices[k]];
+            sum1 += weights[k + 1] * values[indices[k + 1]];
+            sum2 += weights[k + 2] * values[indices[k + 2]];
+            sum3 += weights[k + 3] * values[indices[k + 3]];
+        }
+        for (; k < n; k++) {
+            sum0 += weights[k] * values[indices[k]];
+        }
+        return m_Intercept + ((sum0 + sum1) + (sum2 + sum3));
+    }
+
+    /**
+     * Computes the function for the values of an instance that may have missing values, replacing them the way the
+     * filter does.
+     *
+     * @param values the values of the input attributes
+     * @return the value of the output attribute; NaN if the filter's output is missing, or if a value is missing and
+     * the projection does not know how the filter handles it
+     */
+    public double applyWithMissing(double[] values) {
+
+        double sum = m_Intercept;
+        for (int k = 0; k < m_Indices.length; k++) {
+            double value = values[m_Indices[k]];
+            if (Double.isNaN(value)) {
+                if (m_MissingValues == null) {
+                    return Double.NaN;
+                }
+                value = m_MissingValues[k];
+            }
+            sum += m_Weights[k] * value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,247 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instance;
+import weka.core.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A FilterTree loaded from the binary format written by {@link FlatTree#write}. The file is memory-mapped and
+ * predictions read the node arrays from the mapping directly, so loading costs no deserialization; the transform of
+ * a node is only decoded when an instance first reaches it, and its filter only deserialized when a value needs it
+ * (missing values, values on the split value, or filters that are not linear projections). Safe for concurrent use.
+ */
+public class MappedTree {
+
+    /** The mapped file */
+    protected MappedByteBuffer m_Buffer;
+
+    /** The number of attributes of the unfiltered data */
+    protected int m_NumAttributes;
+
+    /** The class index of the unfiltered data */
+    protected int m_ClassIndex;
+
+    /** The number of values in a prediction */
+    protected int m_NumClasses;
+
+    /** The number of nodes */
+    protected int m_NumNodes;
+
+    /** The threshold of every node */
+    protected DoubleBuffer m_Threshold;
+
+    /** The predictions of all leaves */
+    protected DoubleBuffer m_Predictions;
+
+    /** The split attribute of every node, -1 for a leaf */
+    protected IntBuffer m_Attribute;
+
+    /** The left child of every node */
+    protected IntBuffer m_Left;
+
+    /** The right child of every node */
+    protected IntBuffer m_Right;
+
+    /** The transform slot of every node, -1 for nodes that do not filter */
+    protected IntBuffer m_TransformSlot;
+
+    /** The prediction offset of every leaf */
+    protected IntBuffer m_PredictionOffset;
+
+    /** The offset in the file of every transform */
+    protected long[] m_TransformOffsets;
+
+    /** The transforms decoded so far */
+    protected AtomicReferenceArray<SplitTransform> m_Transforms;
+
+    /**
+     * Memory-maps a tree saved in the binary format.
+     *
+     * @param file the file
+     * @return the tree
+     * @throws IOException if the file cannot be read or is not in the binary format
+     */
+    public static MappedTree load(File file) throws IOException {
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return new MappedTree(in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length()));
+        } finally {
+            //the mapping stays valid after the file is closed
+            in.close();
+        }
+    }
+
+    /**
+     * Constructs a tree on a buffer holding the binary format.
+     *
+     * @param buffer the buffer
+     * @throws IOException if the buffer is not in the binary format
+     */
+    protected MappedTree(MappedByteBuffer buffer) throws IOException {
+
+        m_Buffer = buffer;
+        ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (header.remaining() < FlatTree.HEADER_BYTES || header.getInt() != FlatTree.MAGIC) {
+            throw new IOException("Not a FilterTree file");
+        }
+        int version = header.getInt();
+        if (version != FlatTree.VERSION) {
+            throw new IOException("Unsupported FilterTree file version " + version);
+        }
+        m_NumAttributes = header.getInt();
+        m_ClassIndex = header.getInt();
+        m_NumClasses = header.getInt();
+        m_NumNodes = header.getInt();
+        int numLeaves = header.getInt();
+        int numTransforms = header.getInt();
+
+        long offset = FlatTree.HEADER_BYTES;
+        m_Threshold = section(offset, m_NumNodes * 8L).asDoubleBuffer();
+        offset += FlatTree.align(m_NumNodes * 8L);
+        m_Predictions = section(offset, (long) numLeaves * m_NumClasses * 8).asDoubleBuffer();
+        offset += FlatTree.align((long) numLeaves * m_NumClasses * 8);
+        IntBuffer[] arrays = new IntBuffer[5];
+        for (int i = 0; i < arrays.length; i++) {
+            arrays[i] = section(offset, m_NumNodes * 4L).asIntBuffer();
+            offset += FlatTree.align(m_NumNodes * 4L);
+        }
+        m_Attribute = arrays[0];
+        m_Left = arrays[1];
+        m_Right = arrays[2];
+        m_TransformSlot = arrays[3];
+        m_PredictionOffset = arrays[4];
+        ByteBuffer offsets = section(offset, numTransforms * 8L);
+        m_TransformOffsets = new long[numTransforms];
+        for (int i = 0; i < numTransforms; i++) {
+            m_TransformOffsets[i] = offsets.getLong();
+        }
+        m_Transforms = new AtomicReferenceArray<SplitTransform>(numTransforms);
+        //children come after their parent, so a valid file cannot send an instance anywhere but to a leaf
+        for (int node = 0; node < m_NumNodes; node++) {
+            if (m_Attribute.get(node) < 0) {
+                continue;
+            }
+            int left = m_Left.get(node);
+            int right = m_Right.get(node);
+            int slot = m_TransformSlot.get(node);
+            if (left <= node || left >= m_NumNodes || right <= node || right >= m_NumNodes || slot >= numTransforms) {
+                throw new IOException("Corrupt FilterTree file: node " + node + " has children " + left + " and "
+                        + right + " and transform " + slot);
+            }
+        }
+    }
+
+    /**
+     * @return a little-endian view on part of the file
+     */
+    protected ByteBuffer section(long offset, long length) throws IOException {
+
+        if (offset + length > m_Buffer.capacity()) {
+            throw new IOException("Truncated FilterTree file");
+        }
+        ByteBuffer section = m_Buffer.duplicate();
+        section.position((int) offset);
+        section.limit((int) (offset + length));
+        return section.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Decodes the transform in a slot, the first time it is needed.
+     */
+    protected SplitTransform transform(int slot) throws IOException {
+
+        SplitTransform transform = m_Transforms.get(slot);
+        if (transform != null) {
+            return transform;
+        }
+        long offset = m_TransformOffsets[slot];
+        ByteBuffer record = section(offset, m_Buffer.capacity() - offset);
+        int node = record.getInt();
+        int numWeights = record.getInt();
+        int filterLength = record.getInt();
+        boolean hasMissingValues = record.getInt() == 1;
+        LinearProjection projection = null;
+        if (numWeights >= 0) {
+            double intercept = record.getDouble();
+            double[] weights = new double[numWeights];
+            record.asDoubleBuffer().get(weights);
+            record.position(record.position() + numWeights * 8);
+            double[] missingValues = null;
+            if (hasMissingValues) {
+                missingValues = new double[numWeights];
+                record.asDoubleBuffer().get(missingValues);
+                record.position(record.position() + numWeights * 8);
+            }
+            int[] indices = new int[numWeights];
+            record.asIntBuffer().get(indices);
+            record.position(record.position() + (int) FlatTree.align(numWeights * 4L));
+            projection = new LinearProjection(indices, weights, intercept, missingValues);
+        }
+        byte[] filterBytes = null;
+        if (filterLength >= 0) {
+            filterBytes = new byte[filterLength];
+            record.get(filterBytes);
+        }
+        transform = new FilterTransform(projection, filterBytes, m_Attribute.get(node), m_Threshold.get(node));
+        //another thread may have decoded the same transform, only one of them is kept
+        m_Transforms.compareAndSet(slot, null, transform);
+        return m_Transforms.get(slot);
+    }
+
+    /**
+     * @return the number of nodes in the tree
+     */
+    public int numNodes() {
+        return m_NumNodes;
+    }
+
+    /**
+     * Finds the leaf an instance ends up in.
+     *
+     * @param instance the instance
+     * @return the index of the leaf
+     */
+    public int leafFor(Instance instance) throws Exception {
+
+        if (instance.numAttributes() != m_NumAttributes) {
+            throw new IllegalArgumentException("The tree was built on " + m_NumAttributes + " attributes, the instance has "
+                    + instance.numAttributes());
+        }
+        int node = 0;
+        int attIndex;
+        while ((attIndex = m_Attribute.get(node)) >= 0) {
+            int slot = m_TransformSlot.get(node);
+            double value = slot < 0 ? instance.value(attIndex) : transform(slot).transform(instance, attIndex);
+            node = value < m_Threshold.get(node) ? m_Left.get(node) : m_Right.get(node);
+        }
+        return node;
+    }
+
+    /**
+     * Returns estimated class probabilities for the given instance, as FilterTree does.
+     *
+     * @param instance the instance, with the attributes of the data the tree was built on
+     * @return the estimates obtained from the tree
+     */
+    public double[] distributionForInstance(Instance instance) throws Exception {
+
+        int offset = m_PredictionOffset.get(leafFor(instance));
+        double[] distribution = new double[m_NumClasses];
+        for (int i = 0; i < m_NumClasses; i++) {
+            distribution[i] = m_Predictions.get(offset + i);
+        }
+        Utils.normalize(distribution);
+        return distribution;
+    }
+}
@@ -0,0 +1,110 @@
+package weka.classifiers.meta.filtertree;
+
+/**
+ * What was measured while building one node of a FilterTree. The time spent filtering covers copying and fitting the
+ * node's filter and filtering its data; the split search covers indexing or binning the filtered data and scanning
+ * every attribute; the partition covers splitting the node's rows between its children. A node that became a leaf
+ * without being evaluated (too few rows, or at the maximum depth) has no filter or search time.
+ */
+public class NodeBuildEvent {
+
+    /** The depth of the node, 0 for the root */
+    protected int m_Depth;
+
+    /** The number of training rows at the node */
+    protected int m_NumRows;
+
+    /** The split attribute in the filtered data, -1 for a leaf */
+    protected int m_SplitAttribute;
+
+    /** The information gain of the best split found, 0 if none was searched for */
+    protected double m_Gain;
+
+    /** The time spent filtering, in nanoseconds */
+    protected long m_FilterNanos;
+
+    /** The time spent searching for the split, in nanoseconds */
+    protected long m_SearchNanos;
+
+    /** The time spent partitioning the rows, in nanoseconds */
+    protected long m_PartitionNanos;
+
+    /**
+     * Constructs an event.
+     *
+     * @param depth          the depth of the node
+     * @param numRows        the number of training rows at the node
+     * @param splitAttribute the split attribute in the filtered data, -1 for a leaf
+     * @param gain           the information gain of the best split found
+     * @param filterNanos    the time spent filtering
+     * @param searchNanos    the time spent searching for the split
+     * @param partitionNanos the time spent partitioning the rows
+     */
+    public NodeBuildEvent(int depth, int numRows, int splitAttribute, double gain, long filterNanos, long searchNanos,
+                          long partitionNanos) {
+
+        m_Depth = depth;
+        m_NumRows = numRows;
+        m_SplitAttribute = splitAttribute;
+        m_Gain = gain;
+        m_FilterNanos = filterNanos;
+        m_SearchNanos = searchNanos;
+        m_PartitionNanos = partitionNanos;
+    }
+
+    /**
+     * @return the depth of the node, 0 for the root
+     */
+    public int getDepth() {
+        return m_Depth;
+    }
+
+    /**
+     * @return the number of training rows at the node
+     */
+    public int getNumRows() {
+        return m_NumRows;
+    }
+
+    /**
+     * @return true if the node became a leaf
+     */
+    public boolean isLeaf() {
+        return m_SplitAttribute < 0;
+    }
+
+    /**
+     * @return the split attribute in the filtered data, -1 for a leaf
+     */
+    public int getSplitAttribute() {
+        return m_SplitAttribute;
+    }
+
+    /**
+     * @return the information gain of the best split found, 0 if none was searched for
+     */
+    public double getGain() {
+        return m_Gain;
+    }
+
+    /**
+     * @return the time spent filtering, in nanoseconds
+     */
+    public long getFilterNanos() {
+        return m_FilterNanos;
+    }
+
+    /**
+     * @return the time spent searching for the split, in nanoseconds
+     */
+    public long getSearchNanos() {
+        return m_SearchNanos;
+    }
+
+    /**
+     * @return the time spent partitioning the rows, in nanoseconds
+     */
+    public long getPartitionNanos() {
+        return m_PartitionNanos;
+    }
+}
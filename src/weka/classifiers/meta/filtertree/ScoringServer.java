@@ -0,0 +1,405 @@
+package weka.classifiers.meta.filtertree;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import weka.classifiers.Classifier;
+import weka.core.Attribute;
+import weka.core.BatchPredictor;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the predictions of one loaded model over HTTP, so scoring jobs do not start a JVM and deserialize the
+ * model every time. Rows sent at the same time by different clients are gathered into micro-batches of at most a
+ * given size, waiting at most a given time after the first row, and every batch is scored with one call to the
+ * classifier's batch prediction. A single thread calls the classifier, so any classifier can be served.
+ * <p>
+ * A POST to /score sends rows as lines of comma-separated values in the order of the header's attributes, the class
+ * value left out or given as ?. The answer has one line per row: the predicted class followed by the distribution,
+ * or the predicted value for a numeric class. Requests are handled on virtual threads where the JVM has them (Java
+ * 21 and later), otherwise on a cached thread pool.
+ * <p>
+ * Usage: {@code java weka.classifiers.meta.filtertree.ScoringServer -model <file> -port <int> [-host <address>]
+ * [-header <file>] [-max-batch <int>] [-max-wait <ms>]}
+ */
+public class ScoringServer {
+
+    /** The classifier */
+    protected Classifier m_Classifier;
+
+    /** The header of the rows to score */
+    protected Instances m_Header;
+
+    /** The maximum number of rows in a batch */
+    protected int m_MaxBatchSize;
+
+    /** The longest time to wait for more rows after the first row of a batch, in nanoseconds */
+    protected long m_MaxWaitNanos;
+
+    /** The rows waiting to be scored */
+    protected BlockingQueue<Request> m_Queue = new LinkedBlockingQueue<Request>();
+
+    /** The thread scoring the batches */
+    protected Thread m_Scorer;
+
+    /** The HTTP server, null until started */
+    protected HttpServer m_Server;
+
+    /** The threads handling the requests */
+    protected ExecutorService m_Handlers;
+
+    /**
+     * A row waiting to be scored, with the future of its prediction.
+     */
+    protected static class Request {
+
+        protected final Instance Row;
+        protected final CompletableFuture<double[]> Result = new CompletableFuture<double[]>();
+
+        protected Request(Instance row) {
+            Row = row;
+        }
+    }
+
+    /**
+     * Constructs a server for a model and starts scoring; rows can be submitted before the HTTP server is started.
+     *
+     * @param classifier   the classifier, built
+     * @param header       the header of the training data
+     * @param maxBatchSize the maximum number of rows in a batch
+     * @param maxWaitMs    the longest time to wait for more rows after the first row of a batch, in milliseconds
+     */
+    public ScoringServer(Classifier classifier, Instances header, int maxBatchSize, double maxWaitMs) {
+
+        m_Classifier = classifier;
+        m_Header = new Instances(header, 0);
+        m_MaxBatchSize = Math.max(maxBatchSize, 1);
+        m_MaxWaitNanos = (long) (maxWaitMs * 1e6);
+        m_Scorer = new Thread(new Runnable() {
+            public void run() {
+                scoreBatches();
+            }
+        }, "ScoringServer-scorer");
+        m_Scorer.setDaemon(true);
+        m_Scorer.start();
+    }
+
+    /**
+     * @return the header of the rows to score
+     */
+    public Instances header() {
+        return m_Header;
+    }
+
+    /**
+     * Submits a row for scoring in the next batch.
+     *
+     * @param row the row, an instance of the header
+     * @return the future of the row's distribution
+     */
+    public CompletableFuture<double[]> submit(Instance row) {
+
+        Request request = new Request(row);
+        m_Queue.add(request);
+        return request.Result;
+    }
+
+    /**
+     * Takes batches from the queue and scores them until the thread is interrupted.
+     */
+    protected void scoreBatches() {
+
+        List<Request> batch = new ArrayList<Request>(m_MaxBatchSize);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                //a batch starts with the first row to arrive and waits at most m_MaxWaitNanos for the others
+                batch.add(m_Queue.take());
+                long deadline = System.nanoTime() + m_MaxWaitNanos;
+                m_Queue.drainTo(batch, m_MaxBatchSize - batch.size());
+                while (batch.size() < m_MaxBatchSize) {
+                    Request request = m_Queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (request == null) {
+                        break;
+                    }
+                    batch.add(request);
+                    m_Queue.drainTo(batch, m_MaxBatchSize - batch.size());
+                }
+                score(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            //stopped
+        }
+        for (Request request : batch) {
+            request.Result.completeExceptionally(new IllegalStateException("The server was stopped"));
+        }
+    }
+
+    /**
+     * Scores a batch with one call to the classifier and completes the futures of its rows. The rows of a batch come
+     * from unrelated clients, so if the batch fails its rows are scored one at a time, and only the rows that fail
+     * on their own fail.
+     *
+     * @param batch the requests of the batch
+     */
+    protected void score(List<Request> batch) {
+
+        Instances rows = new Instances(m_Header, batch.size());
+        for (Request request : batch) {
+            rows.add(request.Row);
+        }
+        double[][] distributions = null;
+        if (m_Classifier instanceof BatchPredictor) {
+            try {
+                distributions = ((BatchPredictor) m_Classifier).distributionsForInstances(rows);
+            } catch (Throwable e) {
+                //one bad row fails the whole batch, so the rows are scored alone below
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Request request = batch.get(i);
+            if (distributions != null) {
+                request.Result.complete(distributions[i]);
+                continue;
+            }
+            try {
+                request.Result.complete(m_Classifier.distributionForInstance(rows.instance(i)));
+            } catch (Throwable e) {
+                request.Result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Parses a row of comma-separated values in the order of the header's attributes. The class value may be left
+     * out; ? is a missing value.
+     *
+     * @param line the row
+     * @return the row as an instance of the header
+     * @throws IllegalArgumentException if the row does not fit the header
+     */
+    public Instance parse(String line) {
+
+        String[] fields = line.split(",", -1);
+        int numAttributes = m_Header.numAttributes();
+        boolean withClass = fields.length == numAttributes;
+        if (!withClass && fields.length != numAttributes - 1) {
+            throw new IllegalArgumentException("Expected " + (numAttributes - 1) + " or " + numAttributes
+                    + " values, got " + fields.length + ": " + line);
+        }
+        double[] values = new double[numAttributes];
+        int field = 0;
+        for (int a = 0; a < numAttributes; a++) {
+            if (!withClass && a == m_Header.classIndex()) {
+                values[a] = Utils.missingValue();
+                continue;
+            }
+            String value = Utils.unquote(fields[field++].trim());
+            Attribute attribute = m_Header.attribute(a);
+            if (value.equals("?")) {
+                values[a] = Utils.missingValue();
+            } else if (attribute.isNumeric()) {
+                values[a] = Double.parseDouble(value);
+            } else if (attribute.isNominal()) {
+                values[a] = attribute.indexOfValue(value);
+                if (values[a] < 0) {
+                    throw new IllegalArgumentException("Unknown value " + value + " of " + attribute.name());
+                }
+            } else {
+                throw new IllegalArgumentException("Attribute " + attribute.name() + " is neither numeric nor nominal");
+            }
+        }
+        Instance instance = new DenseInstance(1.0, values);
+        instance.setDataset(m_Header);
+        return instance;
+    }
+
+    /**
+     * Formats the prediction of a row: the predicted class and the distribution, or the predicted value.
+     *
+     * @param distribution the distribution of the row
+     * @return the line of the answer
+     */
+    public String format(double[] distribution) {
+
+        if (!m_Header.classAttribute().isNominal()) {
+            return Double.toString(distribution[0]);
+        }
+        StringBuilder line = new StringBuilder(m_Header.classAttribute().value(Utils.maxIndex(distribution)));
+        for (double p : distribution) {
+            line.append(',').append(p);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Scores the rows of a POST to /score.
+     */
+    protected class ScoreHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+
+            int status = 200;
+            StringBuilder answer = new StringBuilder();
+            try {
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    status = 405;
+                    answer.append("Send rows with POST\n");
+                } else {
+                    //every row is parsed before any is submitted, so a request with a bad row scores nothing
+                    List<Instance> rows = new ArrayList<Instance>();
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.trim().length() > 0) {
+                            rows.add(parse(line));
+                        }
+                    }
+                    //all rows of a request are submitted before waiting, so they can share a batch
+                    List<CompletableFuture<double[]>> results = new ArrayList<CompletableFuture<double[]>>();
+                    for (Instance row : rows) {
+                        results.add(submit(row));
+                    }
+                    for (CompletableFuture<double[]> result : results) {
+                        answer.append(format(result.get())).append('\n');
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                answer.setLength(0);
+                answer.append(e.getMessage()).append('\n');
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = 503;
+                answer.setLength(0);
+                answer.append("Interrupted\n");
+            } catch (ExecutionException e) {
+                status = 500;
+                answer.setLength(0);
+                answer.append(e.getCause()).append('\n');
+            }
+            byte[] bytes = answer.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task if the JVM has them, otherwise a cached thread pool
+     */
+    protected static ExecutorService handlerExecutor() {
+
+        try {
+            //looked up by name, so the class still compiles and runs on Java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Starts serving HTTP requests.
+     *
+     * @param address the address to listen on
+     * @throws IOException if the address cannot be bound
+     */
+    public void start(InetSocketAddress address) throws IOException {
+
+        m_Handlers = handlerExecutor();
+        m_Server = HttpServer.create(address, 0);
+        m_Server.createContext("/score", new ScoreHandler());
+        m_Server.setExecutor(m_Handlers);
+        m_Server.start();
+    }
+
+    /**
+     * @return the address the server listens on, null before it is started
+     */
+    public InetSocketAddress address() {
+        return m_Server == null ? null : m_Server.getAddress();
+    }
+
+    /**
+     * Stops serving and scoring; rows still waiting fail.
+     */
+    public void stop() {
+
+        if (m_Server != null) {
+            m_Server.stop(0);
+            m_Handlers.shutdownNow();
+        }
+        m_Scorer.interrupt();
+        Request request;
+        while ((request = m_Queue.poll()) != null) {
+            request.Result.completeExceptionally(new IllegalStateException("The server was stopped"));
+        }
+    }
+
+    /**
+     * Loads a model saved by Weka (with -d) and serves it until the process is stopped. The header is read from the
+     * model file, or from -header for a model saved without it.
+     *
+     * @param args the command-line options
+     */
+    public static void main(String[] args) {
+
+        try {
+            String model = Utils.getOption("model", args);
+            String port = Utils.getOption("port", args);
+            if (model.length() == 0 || port.length() == 0) {
+                throw new Exception("Usage: ScoringServer -model <file> -port <int> [-host <address>] [-header <file>]"
+                        + " [-max-batch <int>] [-max-wait <ms>]");
+            }
+            String host = Utils.getOption("host", args);
+            String headerFile = Utils.getOption("header", args);
+            String maxBatch = Utils.getOption("max-batch", args);
+            String maxWait = Utils.getOption("max-wait", args);
+            Object[] objects = SerializationHelper.readAll(model);
+            Classifier classifier = (Classifier) objects[0];
+            Instances header;
+            if (headerFile.length() > 0) {
+                header = DataSource.read(headerFile);
+                header.setClassIndex(header.numAttributes() - 1);
+            } else if (objects.length > 1 && objects[1] instanceof Instances) {
+                header = (Instances) objects[1];
+            } else {
+                throw new Exception("The model was saved without its header, give one with -header");
+            }
+            ScoringServer server = new ScoringServer(classifier, header,
+                    maxBatch.length() > 0 ? Integer.parseInt(maxBatch) : 64,
+                    maxWait.length() > 0 ? Double.parseDouble(maxWait) : 2);
+            //only local clients unless an address is given
+            InetAddress address = host.length() == 0 ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+            server.start(new InetSocketAddress(address, Integer.parseInt(port)));
+            System.err.println("ScoringServer: " + classifier.getClass().getName() + " on " + server.address());
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
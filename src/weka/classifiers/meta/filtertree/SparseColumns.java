@@ -0,0 +1,314 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+
+/**
+ * A column store for the split search of a FilterTree node over sparse data. For every attribute it keeps only the
+ * rows where the attribute is not zero, in ascending order of the value; the zero rows of an attribute are never
+ * listed, and their class counts are the node's minus those of the nonzero rows. Building, scanning and splitting
+ * the store cost time in the number of nonzero values rather than rows times attributes, and the data is never
+ * expanded to dense form. The splits found are those of a {@link ColumnIndex} over the same data.
+ * <p>
+ * Like a ColumnIndex, the store covers a range of positions in a row array, and the children of a node whose
+ * filter leaves the data unchanged are views on the same arrays, each attribute's list being partitioned in place
+ * and stably.
+ */
+public class SparseColumns implements SplitColumns {
+
+    /** The rows of the store in their original order, or null if row i is at position i */
+    protected int[] m_Rows;
+
+    /** The first position covered by the store */
+    protected int m_From;
+
+    /** The position after the last one covered by the store */
+    protected int m_To;
+
+    /** The number of class values */
+    protected int m_NumClasses;
+
+    /** The class counts of the store's rows */
+    protected int[] m_ClassCounts;
+
+    /** The nonzero rows of each attribute in ascending order of the value, null for the class attribute */
+    protected int[][] m_EntryRows;
+
+    /** The values at every position of m_EntryRows */
+    protected double[][] m_EntryValues;
+
+    /** The range of every attribute's entries that belongs to the store */
+    protected int[] m_Starts;
+    protected int[] m_Ends;
+
+    /** The class value of every row */
+    protected int[] m_ClassValues;
+
+    /** Scratch space marking the rows that go to the left in a split, indexed by row */
+    protected boolean[] m_GoesLeft;
+
+    /** True for a view on the arrays of another store */
+    protected boolean m_IsView;
+
+    /**
+     * @param data the data
+     * @return true if the data holds sparse instances
+     */
+    public static boolean isSparse(Instances data) {
+        return data.numInstances() > 0 && data.instance(0) instanceof SparseInstance;
+    }
+
+    /**
+     * Builds the sparse columns for some rows of the given data, sorting the nonzero values of every non-class
+     * attribute once. The store keeps a reference to the row array; the caller is responsible for partitioning it
+     * the same way as the store after each {@link #split}.
+     *
+     * @param data the data to index
+     * @param rows the rows of the data in their original order, or null for all rows
+     * @param from the first position of the range in rows
+     * @param to   the position after the last one of the range in rows
+     */
+    public SparseColumns(Instances data, int[] rows, int from, int to) {
+
+        m_Rows = rows;
+        m_From = from;
+        m_To = to;
+        m_NumClasses = data.numClasses();
+        m_ClassValues = new int[data.numInstances()];
+        m_GoesLeft = new boolean[data.numInstances()];
+        int classIndex = data.classIndex();
+
+        //count the nonzero values of every attribute, then list them
+        int[] counts = new int[data.numAttributes()];
+        for (int p = from; p < to; p++) {
+            Instance instance = data.instance(row(p));
+            m_ClassValues[row(p)] = (int) instance.classValue();
+            for (int k = 0; k < instance.numValues(); k++) {
+                if (instance.index(k) != classIndex && instance.valueSparse(k) != 0) {
+                    counts[instance.index(k)]++;
+                }
+            }
+        }
+        m_EntryRows = new int[data.numAttributes()][];
+        m_EntryValues = new double[data.numAttributes()][];
+        m_Starts = new int[data.numAttributes()];
+        m_Ends = new int[data.numAttributes()];
+        for (int a = 0; a < counts.length; a++) {
+            if (a != classIndex) {
+                m_EntryRows[a] = new int[counts[a]];
+                m_EntryValues[a] = new double[counts[a]];
+                m_Ends[a] = counts[a];
+            }
+        }
+        int[] fill = new int[data.numAttributes()];
+        for (int p = from; p < to; p++) {
+            int row = row(p);
+            Instance instance = data.instance(row);
+            for (int k = 0; k < instance.numValues(); k++) {
+                int a = instance.index(k);
+                double value = instance.valueSparse(k);
+                if (a != classIndex && value != 0) {
+                    m_EntryRows[a][fill[a]] = row;
+                    m_EntryValues[a][fill[a]++] = value;
+                }
+            }
+        }
+        //missing values are sorted to the end, as Instances.sort() does
+        for (int a = 0; a < counts.length; a++) {
+            if (m_EntryRows[a] == null || counts[a] == 0) {
+                continue;
+            }
+            int[] order = Utils.sort(m_EntryValues[a]);
+            int[] sortedRows = new int[order.length];
+            double[] sortedValues = new double[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedRows[i] = m_EntryRows[a][order[i]];
+                sortedValues[i] = m_EntryValues[a][order[i]];
+            }
+            m_EntryRows[a] = sortedRows;
+            m_EntryValues[a] = sortedValues;
+        }
+        m_ClassCounts = countClasses();
+    }
+
+    /**
+     * Constructor for a view on part of an existing store.
+     */
+    protected SparseColumns(SparseColumns parent, int from, int to, int[] starts, int[] ends, int[] classCounts) {
+
+        m_Rows = parent.m_Rows;
+        m_From = from;
+        m_To = to;
+        m_NumClasses = parent.m_NumClasses;
+        m_EntryRows = parent.m_EntryRows;
+        m_EntryValues = parent.m_EntryValues;
+        m_Starts = starts;
+        m_Ends = ends;
+        m_ClassValues = parent.m_ClassValues;
+        m_GoesLeft = parent.m_GoesLeft;
+        m_IsView = true;
+        m_ClassCounts = classCounts;
+    }
+
+    /**
+     * @param position a position in the range of the store
+     * @return the row at the position
+     */
+    protected int row(int position) {
+        return m_Rows == null ? position : m_Rows[position];
+    }
+
+    /**
+     * @return the class counts of the store's rows
+     */
+    protected int[] countClasses() {
+
+        int[] classCounts = new int[m_NumClasses];
+        for (int p = m_From; p < m_To; p++) {
+            classCounts[m_ClassValues[row(p)]]++;
+        }
+        return classCounts;
+    }
+
+    /**
+     * @return the number of rows in the store
+     */
+    public int numRows() {
+        return m_To - m_From;
+    }
+
+    /**
+     * @return the number of class values
+     */
+    public int numClasses() {
+        return m_NumClasses;
+    }
+
+    /**
+     * @return the number of bytes held by the store, only the entry ranges for a view
+     */
+    public long sizeInBytes() {
+
+        long bytes = m_Starts.length * 8L;
+        if (m_IsView) {
+            return bytes;
+        }
+        bytes += m_ClassValues.length * 5L;
+        for (int[] entryRows : m_EntryRows) {
+            if (entryRows != null) {
+                bytes += entryRows.length * 12L;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Counts the rows of each class.
+     *
+     * @return the class counts
+     */
+    public int[] classCounts() {
+        return m_ClassCounts.clone();
+    }
+
+    /**
+     * Finds the best threshold for one attribute by scanning its nonzero values in sorted order, with the zero rows
+     * as one group.
+     *
+     * @param attIndex the attribute index
+     * @param scanner  the split scanner, reset for the rows of this store
+     * @return the information gain of the best threshold
+     */
+    public double scan(int attIndex, SplitScanner scanner) {
+
+        int[] entryRows = m_EntryRows[attIndex];
+        int[] zeroCounts = m_ClassCounts.clone();
+        for (int i = m_Starts[attIndex]; i < m_Ends[attIndex]; i++) {
+            zeroCounts[m_ClassValues[entryRows[i]]]--;
+        }
+        return scanner.scanSparse(entryRows, m_Starts[attIndex], m_Ends[attIndex], m_EntryValues[attIndex], m_ClassValues, zeroCounts);
+    }
+
+    /**
+     * Tells for every row whether its value for the given attribute is smaller than the split value.
+     *
+     * @param attIndex   the split attribute
+     * @param splitValue the split value
+     * @return true for the rows that go to the left, in their original order
+     */
+    public boolean[] goesLeft(int attIndex, double splitValue) {
+
+        boolean zeroGoesLeft = 0 < splitValue;
+        for (int p = m_From; p < m_To; p++) {
+            m_GoesLeft[row(p)] = zeroGoesLeft;
+        }
+        int[] entryRows = m_EntryRows[attIndex];
+        double[] entryValues = m_EntryValues[attIndex];
+        for (int i = m_Starts[attIndex]; i < m_Ends[attIndex]; i++) {
+            m_GoesLeft[entryRows[i]] = entryValues[i] < splitValue;
+        }
+        boolean[] goesLeft = new boolean[m_To - m_From];
+        for (int p = m_From; p < m_To; p++) {
+            goesLeft[p - m_From] = m_GoesLeft[row(p)];
+        }
+        return goesLeft;
+    }
+
+    /**
+     * Splits the store into views on the rows that go to the left and the remaining rows. The entries of every
+     * attribute are partitioned in place and stably, so both halves stay sorted. The row array is not touched and
+     * must be partitioned stably by the caller afterwards.
+     *
+     * @param goesLeft true for the rows that go to the left, in their original order
+     * @return the left and the right store
+     */
+    public SparseColumns[] split(boolean[] goesLeft) {
+
+        //the row array is only partitioned afterwards, so the children's class counts are taken here
+        int numLeft = 0;
+        int[] leftCounts = new int[m_NumClasses];
+        for (int p = m_From; p < m_To; p++) {
+            m_GoesLeft[row(p)] = goesLeft[p - m_From];
+            if (goesLeft[p - m_From]) {
+                numLeft++;
+                leftCounts[m_ClassValues[row(p)]]++;
+            }
+        }
+        int[] rightCounts = new int[m_NumClasses];
+        for (int j = 0; j < m_NumClasses; j++) {
+            rightCounts[j] = m_ClassCounts[j] - leftCounts[j];
+        }
+        int maxEntries = 0;
+        for (int a = 0; a < m_Starts.length; a++) {
+            maxEntries = Math.max(maxEntries, m_Ends[a] - m_Starts[a]);
+        }
+        int[] rightRows = new int[maxEntries];
+        double[] rightValues = new double[maxEntries];
+        int[] middles = new int[m_Starts.length];
+        for (int a = 0; a < m_EntryRows.length; a++) {
+            int[] entryRows = m_EntryRows[a];
+            if (entryRows == null) {
+                continue;
+            }
+            double[] entryValues = m_EntryValues[a];
+            int l = m_Starts[a];
+            int r = 0;
+            for (int i = m_Starts[a]; i < m_Ends[a]; i++) {
+                if (m_GoesLeft[entryRows[i]]) {
+                    entryRows[l] = entryRows[i];
+                    entryValues[l++] = entryValues[i];
+                } else {
+                    rightRows[r] = entryRows[i];
+                    rightValues[r++] = entryValues[i];
+                }
+            }
+            System.arraycopy(rightRows, 0, entryRows, l, r);
+            System.arraycopy(rightValues, 0, entryValues, l, r);
+            middles[a] = l;
+        }
+        return new SparseColumns[]{new SparseColumns(this, m_From, m_From + numLeft, m_Starts, middles, leftCounts),
+                new SparseColumns(this, m_From + numLeft, m_To, middles, m_Ends, rightCounts)};
+    }
+}
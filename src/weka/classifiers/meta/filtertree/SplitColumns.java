@@ -0,0 +1,57 @@
+package weka.classifiers.meta.filtertree;
+
+/**
+ * An interface for the column stores a FilterTree node searches for its split, implemented by the exact
+ * {@link ColumnIndex}, the approximate {@link BinnedColumns} and the exact {@link SparseColumns} for sparse data.
+ */
+public interface SplitColumns {
+
+    /**
+     * @return the number of rows in the store
+     */
+    int numRows();
+
+    /**
+     * @return the number of class values
+     */
+    int numClasses();
+
+    /**
+     * Counts the rows of each class.
+     *
+     * @return the class counts
+     */
+    int[] classCounts();
+
+    /**
+     * @return the number of bytes held by this store that are not shared with other stores
+     */
+    long sizeInBytes();
+
+    /**
+     * Finds the best threshold for one attribute with the given scanner.
+     *
+     * @param attIndex the attribute index
+     * @param scanner  the split scanner, reset for the rows of this store
+     * @return the information gain of the best threshold; the threshold is available from the scanner
+     */
+    double scan(int attIndex, SplitScanner scanner);
+
+    /**
+     * Tells for every row whether its value for the given attribute is smaller than the split value.
+     *
+     * @param attIndex   the split attribute
+     * @param splitValue the split value
+     * @return true for the rows that go to the left, in their original order
+     */
+    boolean[] goesLeft(int attIndex, double splitValue);
+
+    /**
+     * Splits the store into the rows that go to the left and the remaining rows, keeping their relative order.
+     * Stores working on a shared row array expect the caller to partition that array stably afterwards.
+     *
+     * @param goesLeft true for the rows that go to the left, in their original order, as from {@link #goesLeft}
+     * @return the left and the right store
+     */
+    SplitColumns[] split(boolean[] goesLeft);
+}
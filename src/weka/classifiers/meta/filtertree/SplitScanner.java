@@ -0,0 +1,409 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates the binary splits of one node by information gain. The entropy of the node is computed once by
+ * {@link #reset}; {@link #scan} then walks an attribute in sorted order keeping running class counts for both
+ * sides, so every candidate threshold costs two table lookups per class and allocates nothing. The gains are
+ * computed with the same operations, in the same order, as the original entropy computation, so splits whose gains
+ * are equal compare as equal and the first one wins, as it did before the tables were used.
+ * A scanner keeps per-node state and must not be shared between threads.
+ */
+public class SplitScanner {
+
+    /** The table of n*log2(n) for integer n */
+    protected double[] m_NLogN;
+
+    /** The table of log2(n) for integer n */
+    protected double[] m_Log2;
+
+    /** The class counts of the node */
+    protected int[] m_ParentCounts;
+
+    /** The running class counts on the left of the threshold */
+    protected int[] m_Left;
+
+    /** The running class counts on the right of the threshold */
+    protected int[] m_Right;
+
+    /** The number of rows at the node */
+    protected int m_NumRows;
+
+    /** The entropy of the node */
+    protected double m_ParentEntropy;
+
+    /** The split value found by the last scan */
+    protected double m_SplitValue;
+
+    /**
+     * Builds the table of n*log2(n) for n = 0..maxCount (0*log2(0) is taken to be 0).
+     *
+     * @param maxCount the largest count that will be looked up
+     * @return the table
+     */
+    public static double[] nLogNTable(int maxCount) {
+
+        double[] table = new double[maxCount + 1];
+        for (int n = 1; n <= maxCount; n++) {
+            table[n] = n * Utils.log2(n);
+        }
+        return table;
+    }
+
+    /**
+     * Builds the table of log2(n) for n = 0..maxCount (log2(0) is taken to be 0).
+     *
+     * @param maxCount the largest count that will be looked up
+     * @return the table
+     */
+    public static double[] log2Table(int maxCount) {
+
+        double[] table = new double[maxCount + 1];
+        for (int n = 1; n <= maxCount; n++) {
+            table[n] = Utils.log2(n);
+        }
+        return table;
+    }
+
+    /**
+     * Constructs a scanner.
+     *
+     * @param nLogN      the table of n*log2(n), large enough for the number of rows at any node
+     * @param log2       the table of log2(n), as large as nLogN
+     * @param numClasses the number of class values
+     */
+    public SplitScanner(double[] nLogN, double[] log2, int numClasses) {
+
+        m_NLogN = nLogN;
+        m_Log2 = log2;
+        m_ParentCounts = new int[numClasses];
+        m_Left = new int[numClasses];
+        m_Right = new int[numClasses];
+    }
+
+    /**
+     * Constructs a scanner for the same node as the given one, so that several threads can scan the attributes of
+     * a node at the same time.
+     *
+     * @param other the scanner to copy, already reset for the node
+     */
+    public SplitScanner(SplitScanner other) {
+
+        m_NLogN = other.m_NLogN;
+        m_Log2 = other.m_Log2;
+        m_ParentCounts = other.m_ParentCounts.clone();
+        m_Left = new int[m_ParentCounts.length];
+        m_Right = new int[m_ParentCounts.length];
+        m_NumRows = other.m_NumRows;
+        m_ParentEntropy = other.m_ParentEntropy;
+    }
+
+    /**
+     * Prepares the scanner for a node and computes the node's entropy.
+     *
+     * @param classCounts the number of rows of each class at the node
+     * @return the entropy of the node's class distribution
+     */
+    public double reset(int[] classCounts) {
+
+        System.arraycopy(classCounts, 0, m_ParentCounts, 0, m_ParentCounts.length);
+        int numRows = 0;
+        for (int count : m_ParentCounts) {
+            numRows += count;
+        }
+        m_NumRows = numRows;
+        m_ParentEntropy = numRows > 0 ? entropy(m_ParentCounts, numRows) : 0;
+        return m_ParentEntropy;
+    }
+
+    /**
+     * Computes the entropy of some class counts as -sum(c*log2(c)) / n + log2(n), the way the original split search
+     * did, so that the gains are rounded as they were.
+     *
+     * @param counts the class counts
+     * @param total  the sum of the counts, at least 1
+     * @return the entropy
+     */
+    protected double entropy(int[] counts, int total) {
+
+        double entropy = 0;
+        for (int count : counts) {
+            entropy -= m_NLogN[count];
+        }
+        entropy /= total;
+        return entropy + m_Log2[total];
+    }
+
+    /**
+     * Computes the information gain of the split whose sides have the class counts in m_Left and m_Right.
+     *
+     * @param numLeft the number of rows on the left, neither 0 nor all of them
+     * @return the information gain
+     */
+    protected double gain(int numLeft) {
+
+        int n = m_NumRows;
+        return m_ParentEntropy - entropy(m_Left, numLeft) * numLeft / n
+                - entropy(m_Right, n - numLeft) * (n - numLeft) / n;
+    }
+
+    /**
+     * @return the entropy of the node, as computed by the last reset
+     */
+    public double parentEntropy() {
+        return m_ParentEntropy;
+    }
+
+    /**
+     * @return the split value found by the last scan
+     */
+    public double splitValue() {
+        return m_SplitValue;
+    }
+
+    /**
+     * Finds the threshold with maximum information gain for one attribute. Thresholds are only placed between
+     * distinct values, halfway between them; the first of several equally good thresholds wins, as with
+     * Utils.maxIndex over the gain of every position.
+     *
+     * @param order       the rows in ascending order of the attribute
+     * @param from        the first position of the node's rows in order
+     * @param to          the position after the last one of the node's rows in order
+     * @param values      the value of the attribute for every row
+     * @param classValues the class value of every row
+     * @return the maximum information gain; the split value is available from {@link #splitValue()}
+     */
+    public double scan(int[] order, int from, int to, double[] values, int[] classValues) {
+
+        int n = m_NumRows;
+        if (n < 2) {
+            m_SplitValue = 0;
+            return 0;
+        }
+        System.arraycopy(m_ParentCounts, 0, m_Right, 0, m_Right.length);
+        Arrays.fill(m_Left, 0);
+        int[] left = m_Left;
+        int[] right = m_Right;
+
+        //positions where the value does not change have a gain of 0
+        double bestGain = Double.NEGATIVE_INFINITY;
+        int bestIndex = 0;
+        double valuePoint = values[order[from]];
+        for (int i = 0; i < n; i++) {
+            double currentValue = values[order[from + i]];
+            if (i > 0) {
+                double gain;
+                if (currentValue == valuePoint) {
+                    gain = 0.0;
+                } else {
+                    valuePoint = currentValue;
+                    gain = gain(i);
+                }
+                if (gain > bestGain) {
+                    bestGain = gain;
+                    bestIndex = i - 1;
+                }
+            }
+            //move the row to the left
+            int c = classValues[order[from + i]];
+            left[c]++;
+            right[c]--;
+        }
+        double lower = values[order[from + bestIndex]];
+        double upper = values[order[from + bestIndex + 1]];
+        //the halfway point of two neighbouring doubles can round down to the lower one, which must go to the left
+        m_SplitValue = (lower + upper) / 2 > lower ? (lower + upper) / 2 : upper;
+        return bestGain;
+    }
+
+    /**
+     * Finds the threshold with maximum information gain for one attribute stored as floats, as {@link #scan} does for
+     * doubles.
+     *
+     * @param order       the rows in ascending order of the attribute
+     * @param from        the first position of the node's rows in order
+     * @param to          the position after the last one of the node's rows in order
+     * @param values      the value of the attribute for every row
+     * @param classValues the class value of every row
+     * @return the maximum information gain; the split value is available from {@link #splitValue()}
+     */
+    public double scan(int[] order, int from, int to, float[] values, int[] classValues) {
+
+        int n = m_NumRows;
+        if (n < 2) {
+            m_SplitValue = 0;
+            return 0;
+        }
+        System.arraycopy(m_ParentCounts, 0, m_Right, 0, m_Right.length);
+        Arrays.fill(m_Left, 0);
+        int[] left = m_Left;
+        int[] right = m_Right;
+
+        double bestGain = Double.NEGATIVE_INFINITY;
+        int bestIndex = 0;
+        float valuePoint = values[order[from]];
+        for (int i = 0; i < n; i++) {
+            float currentValue = values[order[from + i]];
+            if (i > 0) {
+                double gain;
+                if (currentValue == valuePoint) {
+                    gain = 0.0;
+                } else {
+                    valuePoint = currentValue;
+                    gain = gain(i);
+                }
+                if (gain > bestGain) {
+                    bestGain = gain;
+                    bestIndex = i - 1;
+                }
+            }
+            int c = classValues[order[from + i]];
+            left[c]++;
+            right[c]--;
+        }
+        //the halfway point of two floats is exact as a double, so it is always above the lower one
+        m_SplitValue = ((double) values[order[from + bestIndex]] + values[order[from + bestIndex + 1]]) / 2;
+        return bestGain;
+    }
+
+    /**
+     * Finds the threshold with maximum information gain for one attribute of sparse data, given only the rows where
+     * the attribute is not zero. The zero rows are one group, taken in sorted order between the negative and the
+     * positive values, whose class counts are those of the node minus those of the nonzero rows. The result is
+     * the one {@link #scan} would give for the full column, but the cost depends only on the number of nonzero rows.
+     *
+     * @param rows        the nonzero rows in ascending order of the attribute
+     * @param from        the first position of the node's nonzero rows
+     * @param to          the position after the last one of the node's nonzero rows
+     * @param values      the value of the attribute at every position of rows
+     * @param classValues the class value of every row
+     * @param zeroCounts  the class counts of the node's rows where the attribute is zero
+     * @return the maximum information gain; the split value is available from {@link #splitValue()}
+     */
+    public double scanSparse(int[] rows, int from, int to, double[] values, int[] classValues, int[] zeroCounts) {
+
+        int n = m_NumRows;
+        if (n < 2) {
+            m_SplitValue = 0;
+            return 0;
+        }
+        int numZeros = 0;
+        for (int count : zeroCounts) {
+            numZeros += count;
+        }
+        System.arraycopy(m_ParentCounts, 0, m_Right, 0, m_Right.length);
+        Arrays.fill(m_Left, 0);
+        int[] left = m_Left;
+        int[] right = m_Right;
+
+        //as in scan(), a position inside a run of equal values has a gain of 0, and the first best position wins
+        double bestGain = Double.NEGATIVE_INFINITY;
+        double lower = 0;
+        double upper = 0;
+        int numLeft = 0;
+        double lastValue = 0;
+        boolean zerosDone = numZeros == 0;
+        for (int p = from; p <= to; p++) {
+            double value;
+            int groupSize;
+            boolean zeroGroup = !zerosDone && (p == to || !(values[p] < 0));
+            if (zeroGroup) {
+                //the zero group comes before the first value that is not negative
+                value = 0;
+                groupSize = numZeros;
+                zerosDone = true;
+            } else if (p == to) {
+                break;
+            } else {
+                value = values[p];
+                groupSize = 1;
+            }
+            if (numLeft > 0) {
+                double gain;
+                if (value != lastValue) {
+                    gain = gain(numLeft);
+                } else {
+                    gain = 0.0;
+                }
+                if (gain > bestGain) {
+                    bestGain = gain;
+                    lower = lastValue;
+                    upper = value;
+                }
+            }
+            if (groupSize > 1 && 0.0 > bestGain) {
+                bestGain = 0.0;
+                lower = value;
+                upper = value;
+            }
+            //move the group to the left
+            if (zeroGroup) {
+                for (int j = 0; j < left.length; j++) {
+                    left[j] += zeroCounts[j];
+                    right[j] -= zeroCounts[j];
+                }
+                //the value at p is still to come
+                p--;
+            } else {
+                int c = classValues[rows[p]];
+                left[c]++;
+                right[c]--;
+            }
+            numLeft += groupSize;
+            lastValue = value;
+        }
+        //the halfway point of two neighbouring doubles can round down to the lower one, which must go to the left
+        m_SplitValue = (lower + upper) / 2 > lower ? (lower + upper) / 2 : upper;
+        return bestGain;
+    }
+
+    /**
+     * Finds the bin boundary with maximum information gain from the class counts of every bin. Boundary k lies
+     * between bin k and bin k + 1, at the value cuts[k]; the first of several equally good boundaries wins.
+     *
+     * @param histogram the class counts of every bin, indexed [bin * numClasses + class]
+     * @param cuts      the values separating the bins, in ascending order
+     * @return the maximum information gain; the split value is available from {@link #splitValue()}
+     */
+    public double scanBins(int[] histogram, double[] cuts) {
+
+        int n = m_NumRows;
+        int numClasses = m_ParentCounts.length;
+        System.arraycopy(m_ParentCounts, 0, m_Right, 0, numClasses);
+        Arrays.fill(m_Left, 0);
+        int[] left = m_Left;
+        int[] right = m_Right;
+
+        double bestGain = 0;
+        int bestCut = -1;
+        int numLeft = 0;
+        for (int k = 0; k < cuts.length; k++) {
+            //move bin k to the left
+            int offset = k * numClasses;
+            for (int j = 0; j < numClasses; j++) {
+                int count = histogram[offset + j];
+                left[j] += count;
+                right[j] -= count;
+                numLeft += count;
+            }
+            if (numLeft == 0 || numLeft == n) {
+                continue;
+            }
+            double gain = gain(numLeft);
+            if (bestCut < 0 || gain > bestGain) {
+                bestGain = gain;
+                bestCut = k;
+            }
+        }
+        if (bestCut < 0) {
+            //all rows are in one bin
+            m_SplitValue = 0;
+            return 0;
+        }
+        m_SplitValue = cuts[bestCut];
+        return bestGain;
+    }
+}
@@ -0,0 +1,19 @@
+package weka.classifiers.meta.filtertree;
+
+import weka.core.Instance;
+
+/**
+ * The transform a FilterTree split node applies to an instance before comparing it with the split value.
+ * Implementations must allow several threads to call {@link #transform} at the same time.
+ */
+public interface SplitTransform {
+
+    /**
+     * Filters an instance and returns the value of one attribute of the result.
+     *
+     * @param instance the (unfiltered) instance
+     * @param attIndex the index of the attribute in the filtered data
+     * @return the value of the attribute after filtering
+     */
+    double transform(Instance instance, int attIndex) throws Exception;
+}
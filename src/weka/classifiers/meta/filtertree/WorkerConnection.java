@@ -0,0 +1,253 @@
+package weka.classifiers.meta.filtertree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * The coordinator's end of a connection to a {@link HistogramWorker}, which holds one shard of the training data
+ * of a distributed FilterTree build. Every request is a command byte followed by its arguments; the worker answers
+ * with a status byte, followed by the result for {@link #OK} or by a message for {@link #FAILED}. All numbers are
+ * written by DataOutputStream.
+ * <ul>
+ * <li>{@link #INFO}: answered by the number of rows, attributes and classes and the class index of the shard.</li>
+ * <li>{@link #SAMPLE} k, k rows: answered by the values of the rows for every non-class attribute in turn.</li>
+ * <li>{@link #CUTS} the number of cuts and the cuts of every attribute, -1 for the class: the worker bins its rows
+ * and puts them all into node 0.</li>
+ * <li>{@link #HISTOGRAMS} m, m node ids: answered, for every node, by its class counts and the class counts of
+ * every bin of every non-class attribute, indexed [bin * numClasses + class].</li>
+ * <li>{@link #SPLIT} m, m times node id, attribute, last bin to the left, left id, right id: the worker moves the
+ * rows of every node to its children.</li>
+ * </ul>
+ * The requests are split into sending and reading, so that a coordinator can send a request to every worker before
+ * it reads the first answer, and the workers do their part at the same time.
+ */
+public class WorkerConnection implements Closeable {
+
+    /** The command asking for the size of the shard */
+    public static final byte INFO = 1;
+
+    /** The command asking for the values of some rows */
+    public static final byte SAMPLE = 2;
+
+    /** The command setting the cuts of every attribute */
+    public static final byte CUTS = 3;
+
+    /** The command asking for the histograms of some nodes */
+    public static final byte HISTOGRAMS = 4;
+
+    /** The command splitting some nodes */
+    public static final byte SPLIT = 5;
+
+    /** The status of a request that succeeded */
+    public static final byte OK = 0;
+
+    /** The status of a request that failed */
+    public static final byte FAILED = 1;
+
+    /** The address of the worker, for messages */
+    protected String m_Address;
+
+    /** The socket connected to the worker */
+    protected Socket m_Socket;
+
+    /** The stream of answers from the worker */
+    protected DataInputStream m_In;
+
+    /** The stream of requests to the worker */
+    protected DataOutputStream m_Out;
+
+    /** The number of rows of the worker's shard, known after {@link #readInfo} */
+    protected int m_NumRows;
+
+    /**
+     * Connects to a worker.
+     *
+     * @param address the worker's address as host:port
+     * @throws IOException if the worker cannot be reached
+     */
+    public WorkerConnection(String address) throws IOException {
+
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Worker address must be host:port, got " + address);
+        }
+        m_Address = address;
+        m_Socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        m_Socket.setTcpNoDelay(true);
+        m_In = new DataInputStream(new BufferedInputStream(m_Socket.getInputStream()));
+        m_Out = new DataOutputStream(new BufferedOutputStream(m_Socket.getOutputStream()));
+    }
+
+    /**
+     * @return the number of rows of the worker's shard
+     */
+    public int numRows() {
+        return m_NumRows;
+    }
+
+    /**
+     * Reads the status of an answer.
+     *
+     * @throws IOException with the worker's message if the request failed
+     */
+    protected void readStatus() throws IOException {
+
+        if (m_In.readByte() != OK) {
+            throw new IOException("Worker " + m_Address + " failed: " + m_In.readUTF());
+        }
+    }
+
+    /**
+     * Asks for the size of the shard.
+     */
+    public void sendInfo() throws IOException {
+
+        m_Out.writeByte(INFO);
+        m_Out.flush();
+    }
+
+    /**
+     * @return the number of rows, attributes and classes and the class index of the shard
+     */
+    public int[] readInfo() throws IOException {
+
+        readStatus();
+        int[] info = new int[4];
+        for (int i = 0; i < info.length; i++) {
+            info[i] = m_In.readInt();
+        }
+        m_NumRows = info[0];
+        return info;
+    }
+
+    /**
+     * Asks for the values of some rows.
+     *
+     * @param rows the rows of the shard
+     */
+    public void sendSample(int[] rows) throws IOException {
+
+        m_Out.writeByte(SAMPLE);
+        m_Out.writeInt(rows.length);
+        for (int row : rows) {
+            m_Out.writeInt(row);
+        }
+        m_Out.flush();
+    }
+
+    /**
+     * Reads the values of the rows asked for into the given sample.
+     *
+     * @param sample  the sample of every attribute, null for the class
+     * @param offset  the position in the samples of the first row
+     * @param numRows the number of rows asked for
+     */
+    public void readSample(double[][] sample, int offset, int numRows) throws IOException {
+
+        readStatus();
+        for (double[] values : sample) {
+            if (values == null) {
+                continue;
+            }
+            for (int i = 0; i < numRows; i++) {
+                values[offset + i] = m_In.readDouble();
+            }
+        }
+    }
+
+    /**
+     * Sets the cuts of every attribute, which makes the worker bin its rows.
+     *
+     * @param cuts the cuts of every attribute, null for the class
+     */
+    public void sendCuts(double[][] cuts) throws IOException {
+
+        m_Out.writeByte(CUTS);
+        for (double[] attCuts : cuts) {
+            if (attCuts == null) {
+                m_Out.writeInt(-1);
+                continue;
+            }
+            m_Out.writeInt(attCuts.length);
+            for (double cut : attCuts) {
+                m_Out.writeDouble(cut);
+            }
+        }
+        m_Out.flush();
+    }
+
+    /**
+     * Reads the answer to a request without a result.
+     */
+    public void readDone() throws IOException {
+        readStatus();
+    }
+
+    /**
+     * Asks for the histograms of some nodes.
+     *
+     * @param nodes the node ids
+     */
+    public void sendHistograms(int[] nodes) throws IOException {
+
+        m_Out.writeByte(HISTOGRAMS);
+        m_Out.writeInt(nodes.length);
+        for (int node : nodes) {
+            m_Out.writeInt(node);
+        }
+        m_Out.flush();
+    }
+
+    /**
+     * Reads the histograms of the nodes asked for and adds them to the given ones.
+     *
+     * @param classCounts the class counts of every node
+     * @param histograms  the histograms of every node, indexed [node][attribute], null for the class
+     */
+    public void addHistograms(int[][] classCounts, int[][][] histograms) throws IOException {
+
+        readStatus();
+        for (int n = 0; n < classCounts.length; n++) {
+            for (int j = 0; j < classCounts[n].length; j++) {
+                classCounts[n][j] += m_In.readInt();
+            }
+            for (int[] histogram : histograms[n]) {
+                if (histogram == null) {
+                    continue;
+                }
+                for (int i = 0; i < histogram.length; i++) {
+                    histogram[i] += m_In.readInt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits some nodes.
+     *
+     * @param splits the splits, each as node id, attribute, last bin to the left, left id and right id
+     */
+    public void sendSplits(int[][] splits) throws IOException {
+
+        m_Out.writeByte(SPLIT);
+        m_Out.writeInt(splits.length);
+        for (int[] split : splits) {
+            for (int value : split) {
+                m_Out.writeInt(value);
+            }
+        }
+        m_Out.flush();
+    }
+
+    /**
+     * Closes the connection; the worker then waits for the next one.
+     */
+    public void close() throws IOException {
+        m_Socket.close();
+    }
+}
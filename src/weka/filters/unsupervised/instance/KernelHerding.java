@@ -7,11 +7,18 @@ import weka.core.Capabilities;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.OptionMetadata;
+import weka.core.Randomizable;
 import weka.filters.SimpleBatchFilter;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-public class KernelHerding extends SimpleBatchFilter {
+public class KernelHerding extends SimpleBatchFilter implements Randomizable {
 
     /** for serialization */
     static final long serialVersionUID = -251831442047263433L;
@@ -22,6 +29,18 @@ public class KernelHerding extends SimpleBatchFilter {
     /** The subsample size, percent of original set, default 100% */
     protected double m_SampleSizePercent = 100;
 
+    /** The seed for choosing the first instance */
+    protected int m_Seed = 1;
+
+    /** Whether to keep the kernel means and sums as floats */
+    protected boolean m_FloatBuffers = false;
+
+    /** The number of threads computing the kernel means and sums */
+    protected int m_NumThreads = 1;
+
+    /** The number of instances in a tile of the kernel means, whose values stay in cache */
+    protected static final int TILE_SIZE = 512;
+
     /**
      * Returns the Capabilities of this filter.
      *
@@ -61,6 +80,37 @@ public class KernelHerding extends SimpleBatchFilter {
     public void setSampleSizePercent(double newSampleSizePercent) { m_SampleSizePercent = newSampleSizePercent; }
     public double getSampleSizePercent() { return m_SampleSizePercent; }
 
+    /** Handling the seed of the first instance. */
+    @OptionMetadata(
+            displayName = "Random number seed",
+            description = "The seed for choosing the first instance (default = 1).", displayOrder = 4,
+            commandLineParamName = "S",
+            commandLineParamSynopsis = "-S <int>")
+    public void setSeed(int seed) { m_Seed = seed; }
+    public int getSeed() { return m_Seed; }
+
+    /** Handling the precision of the herding buffers. */
+    @OptionMetadata(
+            displayName = "Float buffers",
+            description = "Keep the kernel means and running kernel sums of every instance as floats, halving their"
+                    + " memory (default = doubles).", displayOrder = 5,
+            commandLineParamName = "float-buffers",
+            commandLineParamSynopsis = "-float-buffers",
+            commandLineParamIsFlag = true)
+    public void setFloatBuffers(boolean floatBuffers) { m_FloatBuffers = floatBuffers; }
+    public boolean getFloatBuffers() { return m_FloatBuffers; }
+
+    /** Handling the number of threads. */
+    @OptionMetadata(
+            displayName = "Number of threads",
+            description = "The number of threads computing the kernel means and sums, each with a copy of the kernel;"
+                    + " the sample does not depend on it, 0 = number of available processors (default = 1).",
+            displayOrder = 6,
+            commandLineParamName = "num-threads",
+            commandLineParamSynopsis = "-num-threads <int>")
+    public void setNumThreads(int numThreads) { m_NumThreads = numThreads; }
+    public int getNumThreads() { return m_NumThreads; }
+
     @Override
     public String globalInfo() { return "A filter implementing kernel herding for unsupervised subsampling of data."; }
 
@@ -71,6 +121,13 @@ public class KernelHerding extends SimpleBatchFilter {
 
     protected Instances collected;
     protected Instance seed;
+
+    //the buffers of k(x,y) and the sums of k(x, xt), as floats or as doubles; only set while processing
+    protected transient double[] kxy;
+    protected transient float[] kxyFloat;
+    protected transient double[] SUM_XT;
+    protected transient float[] SUM_XT_Float;
+
     @Override
     protected Instances process(Instances instances) throws Exception {
 
@@ -81,7 +138,7 @@ public class KernelHerding extends SimpleBatchFilter {
 //            int seedIndex = 0;
 //            seed = instances.get(0);
             //initialize the seed(the x1)
-            int seedIndex = new Random().nextInt(instances.numInstances() - 1);
+            int seedIndex = new Random(m_Seed).nextInt(instances.numInstances() - 1);
             seed = instances.get(seedIndex);
             //get output percentage num of instances
             double percent = getSampleSizePercent() / 100 ;
@@ -97,44 +154,81 @@ public class KernelHerding extends SimpleBatchFilter {
 
             //if use random seed
             //int MaxInstanceIndex = seedIndex;
-            //initial kernel
+            //initial kernel, and a copy for every other thread, as kernels with caches are not thread-safe
+            int numThreads = m_NumThreads > 0 ? m_NumThreads : Runtime.getRuntime().availableProcessors();
+            HerdingBlock[] blocks = new HerdingBlock[Math.max(1, Math.min(numThreads, total))];
             this.m_Kernel.clean();
-            this.m_Kernel.buildKernel(instances);
-
-            //storage array for k(x,y), k(x, xt)
-            double[] kxy = new double[total];
-            for(int i = 0; i < total; i++)
-            {
-                for (int j = 0; j < total; j++){
-                    kxy[i] += m_Kernel.eval(i, j, seed);
-                }
-                kxy[i] /= Double.valueOf(total);
+            for (int b = 0; b < blocks.length; b++) {
+                Kernel kernel = b == 0 ? m_Kernel : Kernel.makeCopy(m_Kernel);
+                kernel.buildKernel(instances);
+                blocks[b] = new HerdingBlock((int) ((long) total * b / blocks.length),
+                        (int) ((long) total * (b + 1) / blocks.length), kernel);
             }
-            //initial P2 related parameter
-
-            int[] Index_xt = new int[InsNum];
-            Index_xt[0] = seedIndex;
-            double[] SUM_XT = new double[total];
-
-            for(int f = 1; f < InsNum; f++){//loop from 1 to T
-                //Initial max value
-                double maxValue = Double.MIN_NORMAL;// MIN_VALUE0x1.0p-1022
-                int MaxInstanceIndex = seedIndex;
-                for ( int i = 0; i < total; i++){//loop every x in X
-                    SUM_XT[i] += P2(Index_xt[f-1],i);
-                    double k = kxy[i] - SUM_XT[i]/Double.valueOf(f +1.0);
-                        if (maxValue <= k){
-                            maxValue = k;
-                            MaxInstanceIndex = i;
-                            Index_xt[f] = i ;
+            ForkJoinPool pool = blocks.length > 1 ? new ForkJoinPool(blocks.length) : null;
+            try {
+                //storage array for k(x,y), k(x, xt); only the float or the double arrays are used
+                kxy = m_FloatBuffers ? null : new double[total];
+                kxyFloat = m_FloatBuffers ? new float[total] : null;
+                SUM_XT = m_FloatBuffers ? null : new double[total];
+                SUM_XT_Float = m_FloatBuffers ? new float[total] : null;
+                final Instances data = instances;
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(blocks.length);
+                for (final HerdingBlock block : blocks) {
+                    tasks.add(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            kernelMeans(block, data);
+                            return null;
                         }
+                    });
                 }
+                runBlocks(pool, tasks);
+
+                //initial P2 related parameter
+                int[] Index_xt = new int[InsNum];
+                Index_xt[0] = seedIndex;
+
+                for(int f = 1; f < InsNum; f++){//loop from 1 to T
+                    final int last = Index_xt[f-1];
+                    final double divisor = f + 1.0;
+                    tasks.clear();
+                    for (final HerdingBlock block : blocks) {
+                        tasks.add(new Callable<Void>() {
+                            public Void call() throws Exception {
+                                herdingStep(block, data, last, divisor);
+                                return null;
+                            }
+                        });
+                    }
+                    runBlocks(pool, tasks);
+                    //the last of the largest values wins, as in a single loop over all x in X with maxValue <= k
+                    double maxValue = Double.NEGATIVE_INFINITY;
+                    int MaxInstanceIndex = seedIndex;
+                    for (HerdingBlock block : blocks) {
+                        if (block.MaxIndex >= 0 && maxValue <= block.MaxValue) {
+                            maxValue = block.MaxValue;
+                            MaxInstanceIndex = block.MaxIndex;
+                            Index_xt[f] = block.MaxIndex;
+                        }
+                    }
 
-                //add to collect
-                this.collected.add(instances.get(MaxInstanceIndex));
+                    //add to collect
+                    this.collected.add(instances.get(MaxInstanceIndex));
+                }
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+                for (HerdingBlock block : blocks) {
+                    if (block != null) {
+                        block.BlockKernel.clean();
+                    }
+                }
+                kxy = null;
+                kxyFloat = null;
+                SUM_XT = null;
+                SUM_XT_Float = null;
             }
 
-            this.m_Kernel.clean();
             //signal for done
             this.m_FirstBatchDone = true;
         //System.out.println("what");
@@ -145,8 +239,123 @@ public class KernelHerding extends SimpleBatchFilter {
         //return this.collected;
         return instances;
     }
-    private double P2(int InsNum, int Index) throws Exception {
-        double res = m_Kernel.eval(Index, InsNum, seed);
+
+    /**
+     * A range of instances processed by one thread, with a kernel of its own.
+     */
+    protected static class HerdingBlock {
+
+        protected final int From;
+        protected final int To;
+        protected final Kernel BlockKernel;
+        //the largest criterion in the block after a herding step, and the last instance with it (-1 for none)
+        protected double MaxValue;
+        protected int MaxIndex;
+
+        protected HerdingBlock(int from, int to, Kernel kernel) {
+            From = from;
+            To = to;
+            BlockKernel = kernel;
+        }
+    }
+
+    /**
+     * Computes k(x,y), the mean kernel value against all instances, for the instances of a block. The instances
+     * are visited in tiles, so that a tile stays in cache for all instances of the block; each sum still adds the
+     * kernel values in the order of the instances, so the result does not depend on the tiles or the blocks.
+     *
+     * @param block     the block
+     * @param instances the instances
+     */
+    protected void kernelMeans(HerdingBlock block, Instances instances) throws Exception {
+
+        int total = instances.numInstances();
+        double[] sums = new double[block.To - block.From];
+        for (int tile = 0; tile < total; tile += TILE_SIZE) {
+            int tileEnd = Math.min(tile + TILE_SIZE, total);
+            for (int i = block.From; i < block.To; i++) {
+                double sum = sums[i - block.From];
+                for (int j = tile; j < tileEnd; j++) {
+                    sum += P2(block.BlockKernel, j, i, instances);
+                }
+                sums[i - block.From] = sum;
+            }
+        }
+        for (int i = block.From; i < block.To; i++) {
+            if (m_FloatBuffers) {
+                kxyFloat[i] = (float) (sums[i - block.From] / total);
+            } else {
+                kxy[i] = sums[i - block.From] / total;
+            }
+        }
+    }
+
+    /**
+     * Adds k(x, xt) of the last chosen instance to the sums of the instances of a block, and finds the instance
+     * of the block with the largest criterion.
+     *
+     * @param block     the block, which keeps the largest criterion and its instance
+     * @param instances the instances
+     * @param last      the index of the last chosen instance
+     * @param divisor   the number of instances chosen so far plus one
+     */
+    protected void herdingStep(HerdingBlock block, Instances instances, int last, double divisor) throws Exception {
+
+        //Initial max value
+        //the criterion is often negative, so any value can be the largest
+        double maxValue = Double.NEGATIVE_INFINITY;
+        int maxIndex = -1;
+        for (int i = block.From; i < block.To; i++) {//loop every x in the block
+            double k;
+            if (m_FloatBuffers) {
+                SUM_XT_Float[i] += P2(block.BlockKernel, last, i, instances);
+                k = kxyFloat[i] - SUM_XT_Float[i]/divisor;
+            } else {
+                SUM_XT[i] += P2(block.BlockKernel, last, i, instances);
+                k = kxy[i] - SUM_XT[i]/divisor;
+            }
+            if (maxValue <= k){
+                maxValue = k;
+                maxIndex = i;
+            }
+        }
+        block.MaxValue = maxValue;
+        block.MaxIndex = maxIndex;
+    }
+
+    /**
+     * Runs the tasks of all blocks and waits for them.
+     *
+     * @param pool  the pool, or null to run the tasks in this thread
+     * @param tasks the tasks
+     * @throws Exception the exception of the first task that failed
+     */
+    protected static void runBlocks(ForkJoinPool pool, List<Callable<Void>> tasks) throws Exception {
+
+        if (pool == null) {
+            for (Callable<Void> task : tasks) {
+                task.call();
+            }
+            return;
+        }
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    /**
+     * Evaluates the kernel for two instances, the one with the smaller index first. Kernels like the RBF kernel
+     * can differ in the last bit between the two orders, and a kernel cache returns whichever order it computed
+     * first, so a fixed order keeps the values independent of the order of evaluation and of the threads.
+     */
+    private static double P2(Kernel kernel, int InsNum, int Index, Instances instances) throws Exception {
+        //the kernel takes the instance of the first index along with it
+        int first = Math.min(InsNum, Index);
+        double res = kernel.eval(first, Math.max(InsNum, Index), instances.get(first));
         return res;
     }
 
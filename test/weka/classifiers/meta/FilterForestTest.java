@@ -0,0 +1,57 @@
+package weka.classifiers.meta;
+
+import org.junit.Test;
+import weka.core.Instances;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FilterForestTest {
+
+    @Test
+    public void batchPredictorUsesTheBatchPath() throws Exception {
+
+        Instances train = TestData.generate(500, 6, 3, 1);
+        Instances test = TestData.generate(200, 6, 3, 2);
+        final int[] batches = new int[1];
+        FilterForest forest = new FilterForest() {
+            @Override
+            public double[][] distributionForInstance(Instances instances) throws Exception {
+                batches[0]++;
+                return super.distributionForInstance(instances);
+            }
+        };
+        forest.setNumTrees(5);
+        forest.setNumThreads(2);
+        forest.buildClassifier(train);
+        double[][] distributions = forest.distributionsForInstances(test);
+        assertEquals(1, batches[0]);
+        for (int i = 0; i < test.numInstances(); i++) {
+            assertArrayEquals(forest.distributionForInstance(test.instance(i)), distributions[i], 1e-12);
+        }
+    }
+
+    @Test
+    public void forestDoesNotDependOnTheNumberOfThreads() throws Exception {
+
+        Instances train = TestData.generate(500, 6, 3, 1);
+        Instances test = TestData.generate(200, 6, 3, 2);
+        FilterForest oneThread = new FilterForest();
+        oneThread.setNumTrees(5);
+        oneThread.setNumThreads(1);
+        oneThread.setCalcOutOfBag(true);
+        oneThread.buildClassifier(train);
+        FilterForest threads = new FilterForest();
+        threads.setNumTrees(5);
+        threads.setNumThreads(4);
+        threads.setCalcOutOfBag(true);
+        threads.buildClassifier(train);
+        assertEquals(oneThread.toString(), threads.toString());
+        assertEquals(oneThread.getOutOfBagError(), threads.getOutOfBagError(), 0);
+        double[][] expected = oneThread.distributionForInstance(test);
+        double[][] actual = threads.distributionForInstance(test);
+        for (int i = 0; i < test.numInstances(); i++) {
+            assertArrayEquals(expected[i], actual[i], 1e-12);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package weka.classifiers.meta;
+
+import org.junit.Test;
+import weka.classifiers.meta.filtertree.ColumnFile;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+import weka.filters.AllFilter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FilterTreeTest {
+
+    /**
+     * @return a copy of the tree, written and read as a model file is
+     */
+    protected static FilterTree roundTrip(FilterTree tree) throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SerializationHelper.write(bytes, tree);
+        return (FilterTree) SerializationHelper.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    public void compiledTreeWithFilterSurvivesSerialization() throws Exception {
+
+        Instances train = TestData.generate(500, 6, 3, 1);
+        Instances test = TestData.generate(200, 6, 3, 2);
+        FilterTree tree = new FilterTree();
+        tree.setOptions(Utils.splitOptions("-compile -F \"weka.filters.unsupervised.attribute.RandomProjection -N 3\""));
+        tree.buildClassifier(train);
+        double[][] expected = tree.distributionForInstance(test);
+
+        FilterTree copy = roundTrip(tree);
+        assertEquals(tree.toString(), copy.toString());
+        for (int i = 0; i < test.numInstances(); i++) {
+            assertArrayEquals(expected[i], copy.distributionForInstance(test.instance(i)), 0);
+        }
+        //and once more, from a tree whose transforms were deserialized
+        FilterTree copyOfCopy = roundTrip(copy);
+        for (int i = 0; i < test.numInstances(); i++) {
+            assertArrayEquals(expected[i], copyOfCopy.distributionForInstance(test.instance(i)), 0);
+        }
+    }
+
+    /**
+     * @return true if the root of the tree is a split node
+     */
+    protected static boolean rootIsSplit(FilterTree tree) {
+        return tree.RootNode.NodeInfo instanceof FilterTree.SplitNodeInfo;
+    }
+
+    @Test
+    public void splitFoundBeforeTimeBudgetRunsOutIsUsed() throws Exception {
+
+        Instances train = TestData.generate(500, 6, 3, 1);
+        FilterTree tree = new FilterTree() {
+            @Override
+            protected boolean evaluateNode(Node node) throws Exception {
+                boolean split = super.evaluateNode(node);
+                //the budget runs out while the root is evaluated
+                m_Deadline = System.nanoTime();
+                return split;
+            }
+        };
+        tree.setTimeBudget(3600);
+        tree.buildClassifier(train);
+        assertTrue(rootIsSplit(tree));
+        FilterTree.SplitNodeInfo root = (FilterTree.SplitNodeInfo) tree.RootNode.NodeInfo;
+        assertTrue(root.Left.NodeInfo instanceof FilterTree.LeafNodeInfo);
+        assertTrue(root.Right.NodeInfo instanceof FilterTree.LeafNodeInfo);
+    }
+
+    @Test
+    public void byteLimitBelowRootSizeStillSplits() throws Exception {
+
+        Instances train = TestData.generate(500, 6, 3, 1);
+        FilterTree limited = new FilterTree();
+        limited.setMaxBytes(1);
+        limited.buildClassifier(train);
+        assertTrue(rootIsSplit(limited));
+
+        FilterTree unlimited = new FilterTree();
+        unlimited.buildClassifier(train);
+        assertTrue(limited.toString().split("\n").length <= unlimited.toString().split("\n").length);
+        assertEquals(train.numClasses(), limited.distributionForInstance(train.instance(0)).length);
+    }
+
+    /**
+     * Checks that every split of a subtree has a child on both sides, and that their training counts add up.
+     *
+     * @return the training counts of the subtree
+     */
+    protected static double countRows(FilterTree.Node node) {
+
+        if (node.NodeInfo instanceof FilterTree.LeafNodeInfo) {
+            return Utils.sum(((FilterTree.LeafNodeInfo) node.NodeInfo).Prediction);
+        }
+        FilterTree.SplitNodeInfo splitInfo = (FilterTree.SplitNodeInfo) node.NodeInfo;
+        assertNotNull(splitInfo.Left);
+        assertNotNull(splitInfo.Right);
+        double left = countRows(splitInfo.Left);
+        double right = countRows(splitInfo.Right);
+        assertTrue(left > 0 && right > 0);
+        return left + right;
+    }
+
+    @Test
+    public void splitsLeaveRowsOnBothSides() throws Exception {
+
+        Instances train = TestData.generate(1000, 6, 3, 1);
+        Instances test = TestData.generate(200, 6, 3, 2);
+        String[] options = {"-num-bins 16", "-split-sample 100 -F \"weka.filters.unsupervised.attribute.RandomProjection -N 3\"",
+                "-F weka.filters.unsupervised.attribute.PrincipalComponents"};
+        for (String option : options) {
+            FilterTree tree = new FilterTree();
+            tree.setOptions(Utils.splitOptions(option));
+            tree.buildClassifier(train);
+            assertEquals(option, train.numInstances(), countRows(tree.RootNode), 0);
+            //every row is predicted and printed from a leaf with training rows
+            tree.toString();
+            for (double[] distribution : tree.distributionForInstance(test)) {
+                assertEquals(1, Utils.sum(distribution), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void columnFileBuildsTheSameTree() throws Exception {
+
+        Instances train = TestData.generate(1000, 6, 3, 1);
+        File file = File.createTempFile("filtertree", ".col");
+        try {
+            ColumnFile.write(new DataSource(train), train.classIndex(), file);
+            for (String option : new String[]{"", "-num-bins 16"}) {
+                FilterTree fromInstances = new FilterTree();
+                fromInstances.setOptions(Utils.splitOptions(option));
+                fromInstances.buildClassifier(train);
+                FilterTree fromFile = new FilterTree();
+                fromFile.setOptions(Utils.splitOptions(option));
+                fromFile.buildClassifier(new ColumnFile(file));
+                assertEquals(option, fromInstances.toString(), fromFile.toString());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void batchPredictorUsesTheBatchPath() throws Exception {
+
+        Instances train = TestData.generate(500, 6, 3, 1);
+        Instances test = TestData.generate(200, 6, 3, 2);
+        final int[] batches = new int[1];
+        FilterTree tree = new FilterTree() {
+            @Override
+            public double[][] distributionForInstance(Instances instances) throws Exception {
+                batches[0]++;
+                return super.distributionForInstance(instances);
+            }
+        };
+        tree.buildClassifier(train);
+        double[][] distributions = tree.distributionsForInstances(test);
+        assertEquals(1, batches[0]);
+        for (int i = 0; i < test.numInstances(); i++) {
+            assertArrayEquals(tree.distributionForInstance(test.instance(i)), distributions[i], 1e-12);
+        }
+    }
+
+    /**
+     * A tree that remembers its size just before and just after it is pruned.
+     */
+    protected static class MeasuredTree extends FilterTree {
+
+        protected double[] m_MeasuredBefore;
+
+        protected double[] m_MeasuredAfter;
+
+        @Override
+        protected void pruneTree(Instances holdout) throws Exception {
+            m_MeasuredBefore = measureTree();
+            super.pruneTree(holdout);
+            m_MeasuredAfter = measureTree();
+        }
+    }
+
+    @Test
+    public void pruningNeverGrowsTheTree() throws Exception {
+
+        Instances train = TestData.generate(2000, 6, 3, 1);
+        for (String pruning : new String[]{"reduced-error", "cost-complexity"}) {
+            MeasuredTree tree = new MeasuredTree();
+            tree.setOptions(Utils.splitOptions("-pruning " + pruning));
+            tree.buildClassifier(train);
+            assertTrue(pruning, tree.m_MeasuredAfter[0] < tree.m_MeasuredBefore[0]);
+            assertTrue(pruning, tree.m_MeasuredAfter[2] <= tree.m_MeasuredBefore[2]);
+            //the size toString() reports is the size of the tree
+            assertArrayEquals(pruning, tree.m_MeasuredBefore, tree.m_SizeBeforePruning, 0);
+            assertArrayEquals(pruning, tree.m_MeasuredAfter, tree.m_SizeAfterPruning, 0);
+            assertArrayEquals(pruning, tree.measureTree(), tree.m_SizeAfterPruning, 0);
+            assertTrue(tree.toString().contains(String.format("Pruned from %.0f to %.0f nodes",
+                    tree.m_MeasuredBefore[0], tree.m_MeasuredAfter[0])));
+        }
+    }
+
+    /**
+     * Checks that every split of a subtree makes fewer errors on the training rows than a leaf would.
+     *
+     * @param counts the class counts to add the training counts of the subtree to
+     * @return the errors of the subtree on the training rows
+     */
+    protected static double checkSplitsReduceErrors(FilterTree.Node node, double[] counts) {
+
+        if (node.NodeInfo instanceof FilterTree.LeafNodeInfo) {
+            double[] prediction = ((FilterTree.LeafNodeInfo) node.NodeInfo).Prediction;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += prediction[i];
+            }
+            return Utils.sum(prediction) - prediction[Utils.maxIndex(prediction)];
+        }
+        FilterTree.SplitNodeInfo splitInfo = (FilterTree.SplitNodeInfo) node.NodeInfo;
+        double[] subtreeCounts = new double[counts.length];
+        double errors = checkSplitsReduceErrors(splitInfo.Left, subtreeCounts)
+                + checkSplitsReduceErrors(splitInfo.Right, subtreeCounts);
+        double leafErrors = Utils.sum(subtreeCounts) - subtreeCounts[Utils.maxIndex(subtreeCounts)];
+        assertTrue(errors + " errors below a split, " + leafErrors + " for a leaf", errors < leafErrors);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += subtreeCounts[i];
+        }
+        return errors;
+    }
+
+    @Test
+    public void freeSplitsAreKeptOnlyIfTheyReduceErrors() throws Exception {
+
+        Instances train = TestData.generate(2000, 6, 3, 1);
+        MeasuredTree tree = new MeasuredTree();
+        tree.setOptions(Utils.splitOptions("-pruning cost-complexity -split-cost 0 -max-depth 6"));
+        tree.buildClassifier(train);
+        assertTrue(tree.m_MeasuredAfter[0] < tree.m_MeasuredBefore[0]);
+        checkSplitsReduceErrors(tree.RootNode, new double[train.numClasses()]);
+    }
+
+    /**
+     * @return the tree built with the given options and number of threads
+     */
+    protected static FilterTree build(Instances train, String options, int numThreads) throws Exception {
+
+        FilterTree tree = new FilterTree();
+        tree.setOptions(Utils.splitOptions(options));
+        tree.setNumThreads(numThreads);
+        tree.buildClassifier(train);
+        return tree;
+    }
+
+    @Test
+    public void threadsDoNotChangeTheTree() throws Exception {
+
+        //big enough for the attributes of the first nodes to be evaluated in parallel
+        Instances train = TestData.generate(10000, 8, 3, 1);
+        for (String options : new String[]{"", "-num-bins 16"}) {
+            assertEquals(options, build(train, options, 1).toString(), build(train, options, 4).toString());
+        }
+    }
+
+    @Test
+    public void threadsDoNotChangeTheSeedsOfRandomizedFilters() throws Exception {
+
+        //big enough for the subtrees of the root to be built in parallel
+        Instances train = TestData.generate(10000, 8, 3, 1);
+        String options = "-max-depth 6 -F \"weka.filters.unsupervised.attribute.RandomProjection -N 4\"";
+        assertEquals(build(train, options, 1).toString(), build(train, options, 4).toString());
+    }
+
+    /**
+     * @return the leaf an instance is predicted from
+     */
+    protected static FilterTree.LeafNodeInfo leafFor(FilterTree.Node node, Instance instance) throws Exception {
+
+        while (node.NodeInfo instanceof FilterTree.SplitNodeInfo) {
+            FilterTree.SplitNodeInfo splitInfo = (FilterTree.SplitNodeInfo) node.NodeInfo;
+            double value = splitInfo.SplitFilter instanceof AllFilter
+                    ? instance.value(splitInfo.SplitAttribute.index())
+                    : splitInfo.transform().transform(instance, splitInfo.SplitAttribute.index());
+            node = value < splitInfo.SplitValue ? splitInfo.Left : splitInfo.Right;
+        }
+        return (FilterTree.LeafNodeInfo) node.NodeInfo;
+    }
+
+    @Test
+    public void floatColumnsRouteTrainingRowsAsNewInstances() throws Exception {
+
+        //gaussian values, most of which a float cannot hold exactly
+        Instances train = TestData.generate(2000, 6, 3, 1);
+        for (String options : new String[]{"-float-columns",
+                "-float-columns -F \"weka.filters.unsupervised.attribute.RandomProjection -N 3\""}) {
+            FilterTree tree = new FilterTree();
+            tree.setOptions(Utils.splitOptions(options));
+            tree.buildClassifier(train);
+            //the training rows predicted from every leaf are the rows it was grown from
+            Map<FilterTree.LeafNodeInfo, double[]> counts = new IdentityHashMap<FilterTree.LeafNodeInfo, double[]>();
+            for (int i = 0; i < train.numInstances(); i++) {
+                FilterTree.LeafNodeInfo leaf = leafFor(tree.RootNode, train.instance(i));
+                if (!counts.containsKey(leaf)) {
+                    counts.put(leaf, new double[train.numClasses()]);
+                }
+                counts.get(leaf)[(int) train.instance(i).classValue()]++;
+            }
+            for (Map.Entry<FilterTree.LeafNodeInfo, double[]> leaf : counts.entrySet()) {
+                assertArrayEquals(options, leaf.getKey().Prediction, leaf.getValue(), 0);
+            }
+        }
+    }
+}
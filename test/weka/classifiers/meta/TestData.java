@@ -0,0 +1,49 @@
+package weka.classifiers.meta;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Synthetic data for the FilterTree tests: numeric attributes, some with few distinct values, and a nominal class
+ * that depends on a weighted sum of them plus noise.
+ */
+public class TestData {
+
+    /**
+     * @param numRows       the number of rows
+     * @param numAttributes the number of numeric attributes
+     * @param numClasses    the number of class values
+     * @param seed          the seed of the generator
+     * @return the data, with the class last
+     */
+    public static Instances generate(int numRows, int numAttributes, int numClasses, long seed) {
+
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int j = 0; j < numAttributes; j++) {
+            attributes.add(new Attribute("a" + j));
+        }
+        ArrayList<String> classValues = new ArrayList<String>();
+        for (int c = 0; c < numClasses; c++) {
+            classValues.add("c" + c);
+        }
+        attributes.add(new Attribute("class", classValues));
+        Instances data = new Instances("synthetic", attributes, numRows);
+        data.setClassIndex(numAttributes);
+        Random random = new Random(seed);
+        for (int i = 0; i < numRows; i++) {
+            double[] values = new double[numAttributes + 1];
+            double sum = 0;
+            for (int j = 0; j < numAttributes; j++) {
+                values[j] = j % 3 == 0 ? random.nextInt(5) : random.nextGaussian();
+                sum += values[j] * (j % 2 == 0 ? 1 : -0.5);
+            }
+            values[numAttributes] = (int) Math.floor(Math.abs(sum + random.nextGaussian() * 0.5)) % numClasses;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+}
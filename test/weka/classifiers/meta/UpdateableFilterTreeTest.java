@@ -0,0 +1,109 @@
+package weka.classifiers.meta;
+
+import org.junit.Test;
+import weka.classifiers.meta.filtertree.ColumnFile;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class UpdateableFilterTreeTest {
+
+    /**
+     * @return a tree built from the instances, then updated with the extra instances
+     */
+    protected static UpdateableFilterTree update(UpdateableFilterTree tree, Instances extra) throws Exception {
+
+        for (int i = 0; i < extra.numInstances(); i++) {
+            tree.updateClassifier(extra.instance(i));
+        }
+        return tree;
+    }
+
+    @Test
+    public void treeBuiltFromRowsCanBeUpdated() throws Exception {
+
+        Instances train = TestData.generate(1000, 6, 3, 1);
+        Instances extra = TestData.generate(500, 6, 3, 2);
+        int[] rows = new int[train.numInstances()];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+        UpdateableFilterTree fromRows = new UpdateableFilterTree();
+        fromRows.buildClassifier(train, rows);
+        UpdateableFilterTree fromInstances = new UpdateableFilterTree();
+        fromInstances.buildClassifier(train);
+        assertEquals(fromInstances.toString(), fromRows.toString());
+
+        update(fromRows, extra);
+        update(fromInstances, extra);
+        assertEquals(fromInstances.toString(), fromRows.toString());
+    }
+
+    @Test
+    public void treeBuiltFromColumnFileCanBeUpdated() throws Exception {
+
+        Instances train = TestData.generate(1000, 6, 3, 1);
+        Instances extra = TestData.generate(500, 6, 3, 2);
+        File file = File.createTempFile("updateable", ".col");
+        try {
+            ColumnFile.write(new DataSource(train), train.classIndex(), file);
+            UpdateableFilterTree fromFile = new UpdateableFilterTree();
+            fromFile.buildClassifier(new ColumnFile(file));
+            UpdateableFilterTree fromInstances = new UpdateableFilterTree();
+            fromInstances.buildClassifier(train);
+            assertEquals(fromInstances.toString(), fromFile.toString());
+
+            update(fromFile, extra);
+            update(fromInstances, extra);
+            assertEquals(fromInstances.toString(), fromFile.toString());
+            assertArrayEquals(fromInstances.distributionForInstance(extra.instance(0)),
+                    fromFile.distributionForInstance(extra.instance(0)), 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void batchOnlyOptionsAreNotListed() throws Exception {
+
+        UpdateableFilterTree tree = new UpdateableFilterTree();
+        for (Option option : Collections.list(tree.listOptions())) {
+            assertFalse(option.name(), option.name().equals("pruning") || option.name().equals("max-leaves")
+                    || option.name().equals("split-sample") || option.name().equals("num-threads"));
+        }
+        String options = Utils.joinOptions(tree.getOptions());
+        assertFalse(options, options.contains("-pruning") || options.contains("-max-leaves"));
+        //and the options left are read back
+        UpdateableFilterTree copy = new UpdateableFilterTree();
+        copy.setOptions(tree.getOptions());
+        assertEquals(options, Utils.joinOptions(copy.getOptions()));
+    }
+
+    @Test
+    public void batchOnlyOptionsAreRejected() throws Exception {
+
+        String[][] rejected = {{"-pruning", "reduced-error"}, {"-max-leaves", "10"}, {"-split-sample", "100"},
+                {"-num-threads", "4"}, {"-time-budget", "1"}, {"-max-bytes", "1000"}};
+        for (String[] option : rejected) {
+            try {
+                new UpdateableFilterTree().setOptions(option.clone());
+                fail(option[0] + " was accepted by a tree that does not apply it");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        try {
+            new UpdateableFilterTree().setMaxLeaves(10);
+            fail("setMaxLeaves accepted a limit the tree does not apply");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
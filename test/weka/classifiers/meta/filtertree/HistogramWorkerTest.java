@@ -0,0 +1,77 @@
+package weka.classifiers.meta.filtertree;
+
+import org.junit.Test;
+import weka.classifiers.meta.FilterTree;
+import weka.classifiers.meta.TestData;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramWorkerTest {
+
+    @Test
+    public void distributedTreeIsTheLocalTree() throws Exception {
+
+        Instances train = TestData.generate(3000, 6, 3, 1);
+        int numShards = 3;
+        ServerSocket[] sockets = new ServerSocket[numShards];
+        Thread[] threads = new Thread[numShards];
+        StringBuilder workers = new StringBuilder();
+        try {
+            for (int s = 0; s < numShards; s++) {
+                int from = train.numInstances() * s / numShards;
+                int to = train.numInstances() * (s + 1) / numShards;
+                final HistogramWorker worker = new HistogramWorker(new Instances(train, from, to - from));
+                final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+                sockets[s] = socket;
+                threads[s] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            worker.serve(socket);
+                        } catch (IOException e) {
+                            //the socket was closed at the end of the test
+                        }
+                    }
+                };
+                threads[s].start();
+                if (s > 0) {
+                    workers.append(',');
+                }
+                workers.append("localhost:").append(socket.getLocalPort());
+            }
+
+            FilterTree local = new FilterTree();
+            local.setOptions(Utils.splitOptions("-num-bins 32 -max-depth 8"));
+            local.buildClassifier(train);
+            FilterTree distributed = new FilterTree();
+            distributed.setOptions(Utils.splitOptions("-num-bins 32 -max-depth 8"));
+            distributed.setWorkers(workers.toString());
+            distributed.buildClassifier(new Instances(train, 0));
+            assertEquals(local.toString(), distributed.toString());
+
+            //a worker serves the next coordinator with fresh nodes
+            FilterTree again = new FilterTree();
+            again.setOptions(Utils.splitOptions("-num-bins 32 -max-depth 8"));
+            again.setWorkers(workers.toString());
+            again.buildClassifier(new Instances(train, 0));
+            assertEquals(local.toString(), again.toString());
+        } finally {
+            for (int s = 0; s < numShards; s++) {
+                if (sockets[s] != null) {
+                    sockets[s].close();
+                }
+            }
+            for (Thread thread : threads) {
+                if (thread != null) {
+                    thread.join();
+                }
+            }
+        }
+    }
+}
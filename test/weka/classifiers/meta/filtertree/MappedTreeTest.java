@@ -0,0 +1,82 @@
+package weka.classifiers.meta.filtertree;
+
+import org.junit.Test;
+import weka.classifiers.meta.FilterTree;
+import weka.classifiers.meta.TestData;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedTreeTest {
+
+    /**
+     * Checks that a tree exported with its filters predicts as the tree does once loaded.
+     */
+    protected static void assertSamePredictions(String filter) throws Exception {
+
+        Instances train = TestData.generate(1000, 6, 3, 1);
+        Instances test = TestData.generate(300, 6, 3, 2);
+        FilterTree tree = new FilterTree();
+        tree.setOptions(Utils.splitOptions("-F \"" + filter + "\""));
+        tree.buildClassifier(train);
+        File file = File.createTempFile("mapped", ".tree");
+        try {
+            tree.exportBinary(file, true);
+            MappedTree mapped = MappedTree.load(file);
+            assertTrue(mapped.numNodes() > 1);
+            for (int i = 0; i < test.numInstances(); i++) {
+                assertArrayEquals(filter, tree.distributionForInstance(test.instance(i)),
+                        mapped.distributionForInstance(test.instance(i)), 0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void linearFilterPredictsAsTheTree() throws Exception {
+        assertSamePredictions("weka.filters.unsupervised.attribute.Standardize");
+    }
+
+    @Test
+    public void nonLinearFilterPredictsAsTheTree() throws Exception {
+        assertSamePredictions("weka.filters.unsupervised.attribute.RandomProjection -N 3 -D Gaussian");
+    }
+
+    @Test
+    public void childPointingBackIsRejectedOnLoad() throws Exception {
+
+        Instances train = TestData.generate(500, 6, 3, 1);
+        FilterTree tree = new FilterTree();
+        tree.buildClassifier(train);
+        File file = File.createTempFile("mapped", ".tree");
+        try {
+            tree.exportBinary(file, false);
+            MappedTree mapped = MappedTree.load(file);
+            long leftOfRoot = FlatTree.HEADER_BYTES + FlatTree.align(mapped.numNodes() * 8L)
+                    + FlatTree.align((long) mapped.m_Predictions.capacity() * 8) + FlatTree.align(mapped.numNodes() * 4L);
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                //the root becomes its own left child
+                out.seek(leftOfRoot);
+                out.write(new byte[4]);
+            } finally {
+                out.close();
+            }
+            try {
+                MappedTree.load(file);
+                fail("A tree whose root is its own child was loaded");
+            } catch (IOException expected) {
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
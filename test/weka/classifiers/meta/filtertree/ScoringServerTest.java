@@ -0,0 +1,198 @@
+package weka.classifiers.meta.filtertree;
+
+import org.junit.After;
+import org.junit.Test;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.meta.TestData;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScoringServerTest {
+
+    // The value of the first attribute that the test classifier cannot score
+    protected static final double BAD_VALUE = 999;
+
+    /**
+     * A classifier predicting the first class, failing on rows whose first value is BAD_VALUE, that remembers the
+     * size of every batch.
+     */
+    protected static class RecordingClassifier extends AbstractClassifier {
+
+        protected final List<Integer> m_Batches = new CopyOnWriteArrayList<Integer>();
+
+        public void buildClassifier(Instances data) {
+        }
+
+        @Override
+        public double[] distributionForInstance(Instance instance) throws Exception {
+
+            if (instance.value(0) == BAD_VALUE) {
+                throw new Exception("Cannot score " + instance);
+            }
+            double[] distribution = new double[instance.numClasses()];
+            distribution[0] = 1;
+            return distribution;
+        }
+
+        @Override
+        public boolean implementsMoreEfficientBatchPrediction() {
+            return true;
+        }
+
+        @Override
+        public double[][] distributionsForInstances(Instances instances) throws Exception {
+
+            m_Batches.add(instances.numInstances());
+            double[][] distributions = new double[instances.numInstances()][];
+            for (int i = 0; i < distributions.length; i++) {
+                distributions[i] = distributionForInstance(instances.instance(i));
+            }
+            return distributions;
+        }
+    }
+
+    protected Instances m_Header = new Instances(TestData.generate(1, 3, 2, 1), 0);
+
+    protected RecordingClassifier m_Classifier = new RecordingClassifier();
+
+    protected ScoringServer m_Server;
+
+    /**
+     * Starts a server on a free port of the loopback address.
+     */
+    protected void start(int maxBatchSize, double maxWaitMs) throws IOException {
+
+        m_Server = new ScoringServer(m_Classifier, m_Header, maxBatchSize, maxWaitMs);
+        m_Server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void stop() {
+        if (m_Server != null) {
+            m_Server.stop();
+        }
+    }
+
+    /**
+     * @return the status and the body of the answer to a POST of the given rows, one per line
+     */
+    protected String[] post(String body) throws IOException {
+
+        URL url = new URL("http://" + m_Server.address().getHostString() + ":" + m_Server.address().getPort() + "/score");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+        out.close();
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream answer = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            answer.write(buffer, 0, read);
+        }
+        in.close();
+        return new String[]{Integer.toString(status), new String(answer.toByteArray(), StandardCharsets.UTF_8)};
+    }
+
+    /**
+     * @return the given number of rows without their class
+     */
+    protected static String rows(int numRows, double firstValue) {
+
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < numRows; i++) {
+            rows.append(firstValue).append(",0.5,").append(i).append('\n');
+        }
+        return rows.toString();
+    }
+
+    @Test
+    public void rowsAreScoredInBatchesOfAtMostTheMaximumSize() throws Exception {
+
+        start(4, 1000);
+        String[] answer = post(rows(10, 1));
+        assertEquals("200", answer[0]);
+        assertEquals(10, answer[1].split("\n").length);
+        assertTrue(answer[1].startsWith("c0,1.0,0.0"));
+        int numRows = 0;
+        for (int size : m_Classifier.m_Batches) {
+            assertTrue(size <= 4);
+            numRows += size;
+        }
+        assertEquals(10, numRows);
+        //10 rows submitted together fill two batches of 4
+        assertTrue(m_Classifier.m_Batches.size() <= 3);
+    }
+
+    @Test
+    public void batchIsScoredWhenMaxWaitRunsOut() throws Exception {
+
+        start(100, 50);
+        long start = System.nanoTime();
+        String[] answer = post(rows(1, 1));
+        assertEquals("200", answer[0]);
+        //the batch never fills, so it is scored after the wait
+        assertTrue((System.nanoTime() - start) / 1e6 < 5000);
+        assertEquals(1, m_Classifier.m_Batches.size());
+        assertEquals(1, (int) m_Classifier.m_Batches.get(0));
+    }
+
+    @Test
+    public void badRowIsRejectedWithoutScoringTheOthers() throws Exception {
+
+        start(100, 1);
+        String[] answer = post(rows(3, 1) + "1,not a number,2\n");
+        assertEquals("400", answer[0]);
+        //the rows before the bad one were not queued either
+        Thread.sleep(100);
+        assertTrue(m_Classifier.m_Batches.isEmpty());
+    }
+
+    @Test
+    public void failingRowOnlyFailsItsOwnRequest() throws Exception {
+
+        //a long wait puts the rows of both clients into one batch
+        start(100, 500);
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        try {
+            Future<String[]> bad = clients.submit(new Callable<String[]>() {
+                public String[] call() throws Exception {
+                    return post(rows(1, BAD_VALUE));
+                }
+            });
+            Future<String[]> good = clients.submit(new Callable<String[]>() {
+                public String[] call() throws Exception {
+                    return post(rows(2, 1));
+                }
+            });
+            assertEquals("500", bad.get()[0]);
+            String[] answer = good.get();
+            assertEquals("200", answer[0]);
+            assertEquals(2, answer[1].split("\n").length);
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package weka.classifiers.meta.filtertree;
+
+import org.junit.Test;
+import weka.classifiers.meta.FilterTree;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SparseColumnsTest {
+
+    /**
+     * @return mostly zero data whose nonzero values are often negative or repeated, as sparse or dense instances
+     */
+    protected static Instances generate(int numRows, int numAttributes, long seed, boolean sparse) {
+
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int j = 0; j < numAttributes; j++) {
+            attributes.add(new Attribute("a" + j));
+        }
+        ArrayList<String> classValues = new ArrayList<String>();
+        classValues.add("c0");
+        classValues.add("c1");
+        classValues.add("c2");
+        attributes.add(new Attribute("class", classValues));
+        Instances data = new Instances("sparse", attributes, numRows);
+        data.setClassIndex(numAttributes);
+        Random random = new Random(seed);
+        for (int i = 0; i < numRows; i++) {
+            double[] values = new double[numAttributes + 1];
+            double sum = 0;
+            for (int j = 0; j < numAttributes; j++) {
+                if (random.nextInt(4) == 0) {
+                    //small integers repeat, on both sides of zero
+                    values[j] = j % 2 == 0 ? random.nextInt(7) - 3 : random.nextGaussian();
+                }
+                sum += values[j] * (j % 3 == 0 ? 1 : -0.7);
+            }
+            values[numAttributes] = sum < -0.5 ? 0 : sum < 0.5 ? 1 : 2;
+            data.add(sparse ? new SparseInstance(1.0, values) : new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    @Test
+    public void sparseDataGrowsTheDenseTree() throws Exception {
+
+        Instances sparse = generate(2000, 10, 1, true);
+        Instances dense = generate(2000, 10, 1, false);
+        assertTrue(SparseColumns.isSparse(sparse));
+        assertFalse(SparseColumns.isSparse(dense));
+        FilterTree fromSparse = new FilterTree();
+        fromSparse.buildClassifier(sparse);
+        FilterTree fromDense = new FilterTree();
+        fromDense.buildClassifier(dense);
+        assertEquals(fromDense.toString(), fromSparse.toString());
+        //some splits fall between negative values, which sparse columns keep apart from the positive ones
+        assertTrue(fromDense.toString(), fromDense.toString().contains("< -"));
+    }
+}
@@ -0,0 +1,93 @@
+package weka.classifiers.meta.filtertree;
+
+import org.junit.Test;
+import weka.core.Utils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SplitScannerTest {
+
+    /**
+     * Computes the entropy of some class counts as the split search of the first FilterTree did.
+     */
+    protected static double entropy(double[] classCounts) {
+
+        double entropy = 0;
+        for (int j = 0; j < classCounts.length; j++) {
+            if (classCounts[j] > 0) {
+                entropy -= classCounts[j] * Utils.log2(classCounts[j]);
+            }
+        }
+        double totalNum = 0;
+        for (double num : classCounts) {
+            totalNum += num;
+        }
+        entropy /= totalNum;
+        return entropy + Utils.log2(totalNum);
+    }
+
+    @Test
+    public void gainsAreThoseOfTheOriginalSearch() {
+
+        Random random = new Random(1);
+        int numClasses = 3;
+        for (int trial = 0; trial < 200; trial++) {
+            int n = 2 + random.nextInt(300);
+            final double[] values = new double[n];
+            int[] classValues = new int[n];
+            Integer[] boxed = new Integer[n];
+            int[] classCounts = new int[numClasses];
+            for (int i = 0; i < n; i++) {
+                //few distinct values, so that many thresholds have equal gains
+                values[i] = random.nextInt(8);
+                classValues[i] = random.nextInt(numClasses);
+                classCounts[classValues[i]]++;
+                boxed[i] = i;
+            }
+            Arrays.sort(boxed, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(values[a], values[b]);
+                }
+            });
+            int[] order = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = boxed[i];
+            }
+
+            //the original search: the gain of every position, the first maximum wins
+            double[] right = new double[numClasses];
+            double[] left = new double[numClasses];
+            for (int i = 0; i < n; i++) {
+                right[classValues[i]]++;
+            }
+            double originalEntropy = entropy(right);
+            double[] gains = new double[n - 1];
+            left[classValues[order[0]]]++;
+            right[classValues[order[0]]]--;
+            double valuePoint = values[order[0]];
+            for (int i = 1; i < n; i++) {
+                int c = classValues[order[i]];
+                if (values[order[i]] != valuePoint) {
+                    valuePoint = values[order[i]];
+                    gains[i - 1] = originalEntropy - entropy(left) * i / n - entropy(right) * (n - i) / n;
+                }
+                left[c]++;
+                right[c]--;
+            }
+            int best = Utils.maxIndex(gains);
+
+            SplitScanner scanner = new SplitScanner(SplitScanner.nLogNTable(n), SplitScanner.log2Table(n), numClasses);
+            assertEquals(originalEntropy, scanner.reset(classCounts), 0);
+            double gain = scanner.scan(order, 0, n, values, classValues);
+            assertEquals(gains[best], gain, 0);
+            if (gain > 0) {
+                assertEquals((values[order[best]] + values[order[best + 1]]) / 2, scanner.splitValue(), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package weka.filters.unsupervised.instance;
+
+import org.junit.Test;
+import weka.classifiers.functions.supportVector.RBFKernel;
+import weka.classifiers.meta.TestData;
+import weka.core.Instances;
+import weka.filters.Filter;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KernelHerdingTest {
+
+    /**
+     * @return the sample the filter herds from the data
+     */
+    protected static Instances herd(Instances data, int seed) throws Exception {
+        return herd(data, seed, 1, false);
+    }
+
+    /**
+     * @return the sample the filter herds from the data with the given threads and buffers
+     */
+    protected static Instances herd(Instances data, int seed, int numThreads, boolean floatBuffers) throws Exception {
+
+        KernelHerding herding = new KernelHerding();
+        herding.setKernel(new RBFKernel());
+        herding.setSampleSizePercent(20);
+        herding.setSeed(seed);
+        herding.setNumThreads(numThreads);
+        herding.setFloatBuffers(floatBuffers);
+        herding.setInputFormat(data);
+        return Filter.useFilter(data, herding);
+    }
+
+    /**
+     * @return the rows of the sample, in order; the relation name is left out as it holds the filter options
+     */
+    protected static List<String> rows(Instances sample) {
+
+        List<String> rows = new ArrayList<String>();
+        for (int i = 0; i < sample.numInstances(); i++) {
+            rows.add(sample.instance(i).toString());
+        }
+        return rows;
+    }
+
+    @Test
+    public void sameSeedGivesSameSample() throws Exception {
+
+        Instances data = TestData.generate(300, 4, 3, 1);
+        assertEquals(rows(herd(data, 7)), rows(herd(data, 7)));
+    }
+
+    @Test
+    public void sampleHoldsDistinctRows() throws Exception {
+
+        Instances data = TestData.generate(300, 4, 3, 1);
+        Instances sample = herd(data, 1);
+        Set<String> rows = new HashSet<String>();
+        for (int i = 0; i < sample.numInstances(); i++) {
+            rows.add(sample.instance(i).toString());
+        }
+        //a kernel evaluated on the wrong instances keeps choosing the same few rows
+        assertTrue(rows.size() + " distinct of " + sample.numInstances(), rows.size() >= sample.numInstances() * 9 / 10);
+    }
+
+    @Test
+    public void sampleDoesNotDependOnTheNumberOfThreads() throws Exception {
+
+        Instances data = TestData.generate(600, 4, 3, 1);
+        for (boolean floatBuffers : new boolean[]{false, true}) {
+            List<String> expected = rows(herd(data, 1, 1, floatBuffers));
+            for (int numThreads : new int[]{2, 3, 0}) {
+                assertEquals(numThreads + " threads, float buffers " + floatBuffers, expected,
+                        rows(herd(data, 1, numThreads, floatBuffers)));
+            }
+        }
+    }
+}